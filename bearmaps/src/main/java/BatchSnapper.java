@@ -0,0 +1,113 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Snaps large batches of points to their closest vertices. The points are first sorted along a
+ * Morton (Z-order) curve over their longitudes and latitudes, so that consecutive queries descend
+ * into the same parts of the KD-tree while those are still in cache. The sorted batch is then
+ * split into contiguous runs across a fork-join pool, which keeps each worker on its own patch
+ * of the map. Small graphs skip the sort, as their tree stays in cache in any order.
+ */
+class BatchSnapper {
+    /** The fewest points in a run that is not split further. */
+    private static final int CHUNK = 1 << 10;
+    /**
+     * Graphs with fewer vertices than this are snapped in input order. Their KD-tree mostly stays
+     * in cache anyway, and reordering the batch costs more than it saves; the crossover measured
+     * with <code>SnapBenchmark</code> on random points lies between 200k and 700k vertices.
+     */
+    private static final int MIN_VERTICES_TO_REORDER = 1 << 19;
+    /** Bits of each coordinate kept in the Morton code, for a grid of 256 by 256 cells. */
+    private static final int MORTON_BITS = 8;
+
+    private BatchSnapper() {
+    }
+
+    /**
+     * Returns the dense index of the vertex of <code>g</code> closest to each point.
+     *
+     * @param g    The graph to snap to.
+     * @param lons The longitude of every point.
+     * @param lats The latitude of every point, in the same order.
+     * @param pool The pool to snap on.
+     * @return The index into <code>g.csr()</code> of the vertex closest to each point, in the
+     * same order as the points.
+     */
+    static int[] closestIndices(GraphDB g, double[] lons, double[] lats, ForkJoinPool pool) {
+        if (lons.length != lats.length) {
+            throw new IllegalArgumentException("lons and lats differ in length");
+        }
+        return pool.invoke(ForkJoinTask.adapt(() -> snap(g, lons, lats)));
+    }
+
+    private static int[] snap(GraphDB g, double[] lons, double[] lats) {
+        int n = lons.length;
+        int[] order = g.csr().size() < MIN_VERTICES_TO_REORDER ? null : mortonOrder(lons, lats);
+        int[] result = new int[n];
+        new Runs(0, n, CHUNK, (from, to) -> {
+            for (int k = from; k < to; k += 1) {
+                int i = order == null ? k : order[k];
+                /* Around the snap cache: a batch would only churn it, and its Morton order
+                 * already gives the index the locality that the cache would. */
+                result[i] = g.closestIndex(lons[i], lats[i], -1);
+            }
+        }).invoke();
+        return result;
+    }
+
+    /**
+     * Returns the indices of the points in the order of the Morton codes of their cells in a
+     * grid over the batch's bounding box.
+     */
+    static int[] mortonOrder(double[] lons, double[] lats) {
+        int n = lons.length;
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i += 1) {
+            minLon = Math.min(minLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        /* Over a city, longitude and latitude order points as well as the projection does. */
+        double side = (1 << MORTON_BITS) - 1;
+        double scaleLon = maxLon > minLon ? side / (maxLon - minLon) : 0;
+        double scaleLat = maxLat > minLat ? side / (maxLat - minLat) : 0;
+        double originLon = minLon;
+        double originLat = minLat;
+
+        /* Counting sort by cell: points in one cell stay in input order, cells in curve order. */
+        int[] cells = new int[n];
+        new Runs(0, n, CHUNK, (from, to) -> {
+            for (int i = from; i < to; i += 1) {
+                int cellX = (int) ((lons[i] - originLon) * scaleLon);
+                int cellY = (int) ((lats[i] - originLat) * scaleLat);
+                cells[i] = spread(cellX) | spread(cellY) << 1;
+            }
+        }).invoke();
+        int[] starts = new int[(1 << 2 * MORTON_BITS) + 1];
+        for (int i = 0; i < n; i += 1) {
+            starts[cells[i] + 1] += 1;
+        }
+        for (int c = 1; c < starts.length; c += 1) {
+            starts[c] += starts[c - 1];
+        }
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            order[starts[cells[i]]++] = i;
+        }
+        return order;
+    }
+
+    /** Spreads the low <code>MORTON_BITS</code> bits of v out to every other bit. */
+    private static int spread(int v) {
+        v &= (1 << MORTON_BITS) - 1;
+        v = (v | v << 8) & 0x00FF00FF;
+        v = (v | v << 4) & 0x0F0F0F0F;
+        v = (v | v << 2) & 0x33333333;
+        v = (v | v << 1) & 0x55555555;
+        return v;
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Immutable compressed sparse row (CSR) storage for the road graph. Vertices are assigned dense
+ * int indices in increasing order of their OSM IDs, so the OSM ID of vertex <code>i</code> is
+ * <code>ids[i]</code> and its neighbors are <code>targets[offsets[i]]</code> through
+ * <code>targets[offsets[i + 1] - 1]</code>. Coordinates live in parallel primitive arrays, which
+ * keeps the whole graph in a handful of flat arrays instead of one object per vertex and edge.
+ *
+ * Every adjacency entry <code>e</code> also carries the precomputed great-circle length of its
+ * edge in <code>weights[e]</code> and the index of the way it belongs to in <code>ways[e]</code>,
+ * which refers into <code>wayTable</code> (or is -1 if the way is unknown). The OSM tags of the
+ * vertices are kept in the columnar <code>tags</code> store, and the node references of every
+ * highway way in <code>osmWays</code>.
+ *
+ * Graphs derived by <code>GraphUpdate</code> keep the vertex indices of the graph they came from,
+ * so only the first <code>sortedCount</code> IDs are sorted; vertices added or moved by an update
+ * are appended after them and found through a small sorted side table. A vertex that loses all
+ * its edges stays in the arrays with degree zero and is treated as absent.
+ */
+class CSRGraph {
+    /**
+     * OSM IDs of every vertex; the first <code>sortedCount</code> are sorted ascending. The array
+     * index is the dense vertex index.
+     */
+    final long[] ids;
+    /** Latitude of each vertex. */
+    final double[] lats;
+    /** Longitude of each vertex. */
+    final double[] lons;
+    /** Start of each vertex's adjacency run in <code>targets</code>; has one extra entry. */
+    final int[] offsets;
+    /** Dense indices of the neighbors of every vertex, laid out run after run. */
+    final int[] targets;
+    /** Length in miles of the edge behind each adjacency entry. */
+    final double[] weights;
+    /** Way index of the edge behind each adjacency entry, or -1. */
+    final int[] ways;
+    /** Metadata of the ways referred to by <code>ways</code>. */
+    final WayTable wayTable;
+    /** The OSM tags of the vertices, keyed by dense vertex index. */
+    final TagStore tags;
+    /** The node references of every highway way, by OSM way ID. */
+    final WayIndex osmWays;
+    /** The number of leading entries of <code>ids</code> that are sorted. */
+    final int sortedCount;
+    /** OSM IDs of the vertices appended after <code>sortedCount</code>, sorted ascending. */
+    final long[] tailIds;
+    /** The vertex index of each entry of <code>tailIds</code>, or -1 for a deleted node. */
+    final int[] tailIndices;
+
+    CSRGraph(long[] ids, double[] lats, double[] lons, int[] offsets, int[] targets,
+             double[] weights, int[] ways, WayTable wayTable, TagStore tags, WayIndex osmWays) {
+        this(ids, lats, lons, offsets, targets, weights, ways, wayTable, tags, osmWays,
+                ids.length, new long[0], new int[0]);
+    }
+
+    CSRGraph(long[] ids, double[] lats, double[] lons, int[] offsets, int[] targets,
+             double[] weights, int[] ways, WayTable wayTable, TagStore tags, WayIndex osmWays,
+             int sortedCount, long[] tailIds, int[] tailIndices) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.ways = ways;
+        this.wayTable = wayTable;
+        this.tags = tags;
+        this.osmWays = osmWays;
+        this.sortedCount = sortedCount;
+        this.tailIds = tailIds;
+        this.tailIndices = tailIndices;
+    }
+
+    /**
+     * Freezes the build-time node table into CSR form. Only nodes with at least one edge are
+     * kept, and duplicate edges between the same pair of vertices are collapsed.
+     *
+     * @param nodes    The build-time nodes, keyed by OSM ID.
+     * @param wayTable The metadata of the ways the edges of <code>nodes</code> refer to.
+     * @param tags     The tags of <code>nodes</code>.
+     * @param osmWays  The node references of the highway ways.
+     * @return A new <code>CSRGraph</code> holding the connected vertices of <code>nodes</code>.
+     */
+    static CSRGraph build(Map<Long, GraphDB.Node> nodes, WayTable wayTable,
+                          TagStore.Builder tags, WayIndex osmWays) {
+        int n = 0;
+        for (GraphDB.Node node : nodes.values()) {
+            if (!node.edgyHashMap.isEmpty()) {
+                n += 1;
+            }
+        }
+        long[] ids = new long[n];
+        int k = 0;
+        for (GraphDB.Node node : nodes.values()) {
+            if (!node.edgyHashMap.isEmpty()) {
+                ids[k] = node.id;
+                k += 1;
+            }
+        }
+        Arrays.sort(ids);
+
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i += 1) {
+            GraphDB.Node node = nodes.get(ids[i]);
+            lats[i] = node.lat;
+            lons[i] = node.lon;
+            offsets[i + 1] = offsets[i] + node.edgyHashMap.size();
+        }
+
+        int[] targets = new int[offsets[n]];
+        int[] ways = new int[offsets[n]];
+        long[] run = new long[0];
+        for (int i = 0; i < n; i += 1) {
+            /* Sorted runs keep neighboring vertices close together in memory. */
+            Map<Long, GraphDB.Edge> edges = nodes.get(ids[i]).edgyHashMap;
+            if (run.length < edges.size()) {
+                run = new long[edges.size()];
+            }
+            int count = 0;
+            for (GraphDB.Edge edge : edges.values()) {
+                long target = Arrays.binarySearch(ids, edge.to);
+                run[count] = target << 32 | (edge.way & 0xFFFFFFFFL);
+                count += 1;
+            }
+            Arrays.sort(run, 0, count);
+            for (int j = 0; j < count; j += 1) {
+                targets[offsets[i] + j] = (int) (run[j] >>> 32);
+                ways[offsets[i] + j] = (int) run[j];
+            }
+        }
+        return new CSRGraph(ids, lats, lons, offsets, targets, weights(ids, lats, lons, offsets,
+                targets), ways, wayTable, tags.build(ids), osmWays);
+    }
+
+    /**
+     * Computes the great-circle length of the edge behind every adjacency entry.
+     */
+    static double[] weights(long[] ids, double[] lats, double[] lons, int[] offsets,
+                            int[] targets) {
+        double[] weights = new double[targets.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            for (int e = offsets[i]; e < offsets[i + 1]; e += 1) {
+                int j = targets[e];
+                weights[e] = GraphDB.distance(lons[i], lats[i], lons[j], lats[j]);
+            }
+        }
+        return weights;
+    }
+
+    /** Returns the number of vertex indices in use, including any without edges. */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the dense index of the vertex with OSM ID <code>id</code>.
+     *
+     * @param id The OSM ID of a vertex.
+     * @return The vertex index, or a negative number if the vertex is not in the graph.
+     */
+    int indexOf(long id) {
+        int i = slotOf(id);
+        return i >= 0 && offsets[i + 1] > offsets[i] ? i : -1;
+    }
+
+    /**
+     * Returns the most recent vertex index assigned to OSM ID <code>id</code>, whether or not
+     * the vertex still has edges.
+     *
+     * @param id The OSM ID of a vertex.
+     * @return The vertex index, or -1 if the ID was never in the graph.
+     */
+    int slotOf(long id) {
+        if (tailIds.length > 0) {
+            int k = Arrays.binarySearch(tailIds, id);
+            if (k >= 0) {
+                return tailIndices[k];
+            }
+        }
+        int i = Arrays.binarySearch(ids, 0, sortedCount, id);
+        return i < 0 ? -1 : i;
+    }
+
+    /** Returns true if every vertex index is in sorted order and has at least one edge. */
+    boolean isCompact() {
+        if (sortedCount < ids.length) {
+            return false;
+        }
+        for (int i = 0; i < ids.length; i += 1) {
+            if (offsets[i + 1] == offsets[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of edges leaving vertex index <code>i</code>. */
+    int degree(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Returns the adjacency entry for the edge from vertex index <code>i</code> to vertex index
+     * <code>j</code>.
+     *
+     * @return The position of the edge in <code>targets</code>, or -1 if there is no such edge.
+     */
+    int edgeIndex(int i, int j) {
+        int e = Arrays.binarySearch(targets, offsets[i], offsets[i + 1], j);
+        return e < 0 ? -1 : e;
+    }
+
+    /**
+     * Returns the vertex index that the adjacency entry <code>e</code> leaves from.
+     *
+     * @param e A position in <code>targets</code>.
+     * @return The vertex index <code>i</code> with <code>offsets[i] <= e < offsets[i + 1]</code>.
+     */
+    int source(int e) {
+        int lo = 0;
+        int hi = ids.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= e) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns an iterable over the OSM IDs of all vertices with edges, in vertex index order,
+     * which is ascending unless the graph was updated.
+     */
+    IdIterable vertexIds() {
+        return new IdIterable(ids, null, 0, ids.length, offsets);
+    }
+
+    /** Returns an iterable over the OSM IDs of the neighbors of vertex index <code>i</code>. */
+    IdIterable neighborIds(int i) {
+        return new IdIterable(ids, targets, offsets[i], offsets[i + 1], null);
+    }
+
+    /**
+     * An <code>Iterable</code> over a run of OSM IDs whose iterator is a
+     * <code>PrimitiveIterator.OfLong</code>, so callers that use <code>nextLong</code> never box.
+     */
+    static class IdIterable implements Iterable<Long> {
+        private final long[] ids;
+        private final int[] indirection;
+        private final int from;
+        private final int to;
+        private final int[] offsets;
+
+        /**
+         * @param ids         The OSM ID table.
+         * @param indirection If non-null, positions are looked up in this array first.
+         * @param from        The first position, inclusive.
+         * @param to          The last position, exclusive.
+         * @param offsets     If non-null, vertices with no adjacency entries here are skipped.
+         */
+        IdIterable(long[] ids, int[] indirection, int from, int to, int[] offsets) {
+            this.ids = ids;
+            this.indirection = indirection;
+            this.from = from;
+            this.to = to;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public PrimitiveIterator.OfLong iterator() {
+            return new PrimitiveIterator.OfLong() {
+                private int pos = skip(from);
+
+                @Override
+                public boolean hasNext() {
+                    return pos < to;
+                }
+
+                private int skip(int p) {
+                    while (offsets != null && p < to && offsets[p + 1] == offsets[p]) {
+                        p += 1;
+                    }
+                    return p;
+                }
+
+                @Override
+                public long nextLong() {
+                    if (pos >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    int i = indirection == null ? pos : indirection[pos];
+                    pos = skip(pos + 1);
+                    return ids[i];
+                }
+            };
+        }
+    }
+}
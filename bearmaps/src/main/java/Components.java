@@ -0,0 +1,118 @@
+import java.util.Arrays;
+
+/**
+ * Connected-component labels for the vertices of a <code>CSRGraph</code>. Components are
+ * numbered 0, 1, ... in order of their smallest vertex index, and the label of vertex index
+ * <code>i</code> is <code>labels[i]</code>, so telling whether two vertices are connected costs
+ * two array reads. Vertices left without edges by an update belong to no component and are
+ * labeled -1.
+ */
+class Components {
+    /** The component of every vertex. */
+    final int[] labels;
+    /** The number of vertices in every component. */
+    final int[] sizes;
+    /** The component with the most vertices, or -1 if the graph is empty. */
+    final int largest;
+
+    private Components(int[] labels, int[] sizes, int largest) {
+        this.labels = labels;
+        this.sizes = sizes;
+        this.largest = largest;
+    }
+
+    /**
+     * Labels the connected components of <code>csr</code> with an iterative depth-first search.
+     *
+     * @param csr The graph to label.
+     * @return The component labels.
+     */
+    static Components label(CSRGraph csr) {
+        int n = csr.size();
+        int[] labels = new int[n];
+        Arrays.fill(labels, -1);
+        int[] sizes = new int[16];
+        int[] stack = new int[Math.max(1, n)];
+        int count = 0;
+        for (int root = 0; root < n; root += 1) {
+            if (labels[root] >= 0 || csr.degree(root) == 0) {
+                continue;
+            }
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            int top = 0;
+            stack[top++] = root;
+            labels[root] = count;
+            while (top > 0) {
+                int v = stack[--top];
+                sizes[count] += 1;
+                for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                    int w = csr.targets[e];
+                    if (labels[w] < 0) {
+                        labels[w] = count;
+                        stack[top++] = w;
+                    }
+                }
+            }
+            count += 1;
+        }
+        sizes = Arrays.copyOf(sizes, count);
+        int largest = -1;
+        for (int c = 0; c < count; c += 1) {
+            if (largest < 0 || sizes[c] > sizes[largest]) {
+                largest = c;
+            }
+        }
+        return new Components(labels, sizes, largest);
+    }
+
+    /** Returns the number of components. */
+    int count() {
+        return sizes.length;
+    }
+
+    /** Returns true if vertex indices <code>i</code> and <code>j</code> are connected. */
+    boolean connected(int i, int j) {
+        return labels[i] == labels[j];
+    }
+
+    /** Returns true if vertex index <code>i</code> lies in the largest component. */
+    boolean inLargest(int i) {
+        return labels[i] == largest;
+    }
+
+    /**
+     * Returns how many components have each size, as pairs <code>{size, count}</code> sorted by
+     * size, for a quick picture of how fragmented the road network is.
+     */
+    int[][] sizeHistogram() {
+        int[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        int[][] histogram = new int[sorted.length][];
+        int rows = 0;
+        for (int k = 0; k < sorted.length; k += 1) {
+            if (rows > 0 && histogram[rows - 1][0] == sorted[k]) {
+                histogram[rows - 1][1] += 1;
+            } else {
+                histogram[rows++] = new int[]{sorted[k], 1};
+            }
+        }
+        return Arrays.copyOf(histogram, rows);
+    }
+
+    /** Summarizes the components for operators, for example in startup logs. */
+    @Override
+    public String toString() {
+        int n = 0;
+        for (int size : sizes) {
+            n += size;
+        }
+        if (largest < 0) {
+            return "0 components";
+        }
+        return String.format("%d components over %d vertices; the largest has %d (%.1f%%), "
+                + "leaving %d vertices unreachable from it", count(), n, sizes[largest],
+                100.0 * sizes[largest] / n, n - sizes[largest]);
+    }
+}
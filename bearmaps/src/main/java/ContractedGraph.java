@@ -0,0 +1,248 @@
+import java.util.Arrays;
+
+/**
+ * A topology-compressed view of a <code>CSRGraph</code>. Most vertices of OSM road data are shape
+ * points along a way, with exactly two neighbors. This view keeps only the junctions (vertices
+ * whose degree is not two) and replaces every chain of shape points between two junctions with a
+ * single edge whose weight is the length of the whole chain.
+ *
+ * Every chain remembers the base vertices it passes through, in order, so a path found in the
+ * contracted graph can be expanded back into base vertices. Vertex and chain indices below are
+ * dense indices: base vertices index <code>base</code>, junctions index <code>junctions</code>.
+ */
+class ContractedGraph {
+    /** The graph this view compresses. */
+    final CSRGraph base;
+    /** The base index of every junction. */
+    final int[] junctions;
+    /** The junction index of every base vertex, or -1 if it lies inside a chain. */
+    final int[] junctionOf;
+
+    /** Start of each junction's adjacency run; has one extra entry. */
+    final int[] offsets;
+    /** The junction at the far end of each adjacency entry. */
+    final int[] targets;
+    /** The length of the chain behind each adjacency entry. */
+    final double[] weights;
+    /**
+     * The chain behind each adjacency entry: <code>c</code> if the chain is walked from its
+     * first vertex to its last, or <code>~c</code> if it is walked backwards.
+     */
+    final int[] chains;
+
+    /** Start of each chain's run in <code>chainVertices</code>; has one extra entry. */
+    final int[] chainOffsets;
+    /** The base vertices of every chain, including both end junctions, run after run. */
+    final int[] chainVertices;
+    /** The distance along its chain from the chain's first vertex to each chain vertex. */
+    final double[] chainDistances;
+    /** The chain that every base vertex lies inside, or -1 for junctions. */
+    final int[] chainOf;
+    /** The position in <code>chainVertices</code> of every base vertex inside a chain. */
+    final int[] chainPosition;
+
+    private ContractedGraph(CSRGraph base, int[] junctions, int[] junctionOf, int[] offsets,
+                            int[] targets, double[] weights, int[] chains, int[] chainOffsets,
+                            int[] chainVertices, double[] chainDistances, int[] chainOf,
+                            int[] chainPosition) {
+        this.base = base;
+        this.junctions = junctions;
+        this.junctionOf = junctionOf;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.chains = chains;
+        this.chainOffsets = chainOffsets;
+        this.chainVertices = chainVertices;
+        this.chainDistances = chainDistances;
+        this.chainOf = chainOf;
+        this.chainPosition = chainPosition;
+    }
+
+    /**
+     * Contracts every chain of degree-two vertices in <code>base</code>.
+     *
+     * @param base The graph to compress.
+     * @return The contracted view.
+     */
+    static ContractedGraph build(CSRGraph base) {
+        int n = base.size();
+        boolean[] junction = new boolean[n];
+        for (int i = 0; i < n; i += 1) {
+            junction[i] = base.degree(i) != 2;
+        }
+        promoteCycles(base, junction);
+
+        int[] junctionOf = new int[n];
+        int junctionCount = 0;
+        for (int i = 0; i < n; i += 1) {
+            junctionOf[i] = junction[i] ? junctionCount++ : -1;
+        }
+        int[] junctions = new int[junctionCount];
+        for (int i = 0; i < n; i += 1) {
+            if (junction[i]) {
+                junctions[junctionOf[i]] = i;
+            }
+        }
+
+        /*
+         * Walk every chain out of every junction. Each chain is seen once from each end; it is
+         * kept from the end with the smaller index, or, for a loop back to the same junction,
+         * from the direction whose first step has the smaller index.
+         */
+        int[] chainOffsets = new int[16];
+        int[] chainVertices = new int[Math.max(16, base.targets.length)];
+        double[] chainDistances = new double[chainVertices.length];
+        int[] chainOf = new int[n];
+        int[] chainPosition = new int[n];
+        Arrays.fill(chainOf, -1);
+        int chainCount = 0;
+        int length = 0;
+        int[] degree = new int[junctionCount];
+        for (int j = 0; j < junctionCount; j += 1) {
+            int a = junctions[j];
+            for (int e = base.offsets[a]; e < base.offsets[a + 1]; e += 1) {
+                int start = length;
+                chainVertices[length] = a;
+                chainDistances[length] = 0.0;
+                length += 1;
+                int previous = a;
+                int current = base.targets[e];
+                double distance = base.weights[e];
+                while (true) {
+                    /* Room for this vertex and the next walk's first. A chain kept from its other
+                     * end is still written out before it is dropped, so the walks can need more
+                     * slots than the graph has edges. */
+                    if (length + 1 >= chainVertices.length) {
+                        chainVertices = Arrays.copyOf(chainVertices, chainVertices.length * 2);
+                        chainDistances = Arrays.copyOf(chainDistances, chainVertices.length);
+                    }
+                    chainVertices[length] = current;
+                    chainDistances[length] = distance;
+                    length += 1;
+                    if (junction[current]) {
+                        break;
+                    }
+                    int next = base.offsets[current];
+                    if (base.targets[next] == previous) {
+                        next += 1;
+                    }
+                    previous = current;
+                    current = base.targets[next];
+                    distance += base.weights[next];
+                }
+                int b = current;
+                boolean keep = a < b
+                        || a == b && chainVertices[start + 1] < chainVertices[length - 2];
+                if (!keep) {
+                    length = start;
+                    continue;
+                }
+                for (int k = start + 1; k < length - 1; k += 1) {
+                    chainOf[chainVertices[k]] = chainCount;
+                    chainPosition[chainVertices[k]] = k;
+                }
+                if (a != b) {
+                    degree[j] += 1;
+                    degree[junctionOf[b]] += 1;
+                }
+                if (chainCount + 1 == chainOffsets.length) {
+                    chainOffsets = Arrays.copyOf(chainOffsets, chainOffsets.length * 2);
+                }
+                chainOffsets[chainCount] = start;
+                chainCount += 1;
+                chainOffsets[chainCount] = length;
+            }
+        }
+        chainOffsets = Arrays.copyOf(chainOffsets, chainCount + 1);
+        chainVertices = Arrays.copyOf(chainVertices, length);
+        chainDistances = Arrays.copyOf(chainDistances, length);
+
+        /* Lay out the junction-to-junction edges; loops are dropped since no path needs them. */
+        int[] offsets = new int[junctionCount + 1];
+        for (int j = 0; j < junctionCount; j += 1) {
+            offsets[j + 1] = offsets[j] + degree[j];
+        }
+        int[] fill = Arrays.copyOf(offsets, junctionCount);
+        int[] targets = new int[offsets[junctionCount]];
+        double[] weights = new double[targets.length];
+        int[] chains = new int[targets.length];
+        for (int c = 0; c < chainCount; c += 1) {
+            int a = junctionOf[chainVertices[chainOffsets[c]]];
+            int b = junctionOf[chainVertices[chainOffsets[c + 1] - 1]];
+            if (a == b) {
+                continue;
+            }
+            double w = chainDistances[chainOffsets[c + 1] - 1];
+            targets[fill[a]] = b;
+            weights[fill[a]] = w;
+            chains[fill[a]] = c;
+            fill[a] += 1;
+            targets[fill[b]] = a;
+            weights[fill[b]] = w;
+            chains[fill[b]] = ~c;
+            fill[b] += 1;
+        }
+        return new ContractedGraph(base, junctions, junctionOf, offsets, targets, weights, chains,
+                chainOffsets, chainVertices, chainDistances, chainOf, chainPosition);
+    }
+
+    /**
+     * Marks one vertex of every cycle made only of degree-two vertices as a junction, along with
+     * its neighbor, so that every such cycle splits into two chains between two junctions.
+     */
+    private static void promoteCycles(CSRGraph base, boolean[] junction) {
+        int n = base.size();
+        boolean[] seen = new boolean[n];
+        for (int i = 0; i < n; i += 1) {
+            if (junction[i] || seen[i]) {
+                continue;
+            }
+            /* Follow the chain through i in one direction until it ends or comes back. */
+            seen[i] = true;
+            int previous = i;
+            int current = base.targets[base.offsets[i]];
+            while (!junction[current] && current != i) {
+                seen[current] = true;
+                int next = base.offsets[current];
+                if (base.targets[next] == previous) {
+                    next += 1;
+                }
+                previous = current;
+                current = base.targets[next];
+            }
+            if (current == i) {
+                junction[i] = true;
+                junction[base.targets[base.offsets[i]]] = true;
+            } else {
+                /* Mark the rest of the chain, on the other side of i, as seen. */
+                previous = i;
+                current = base.targets[base.offsets[i] + 1];
+                while (!junction[current]) {
+                    seen[current] = true;
+                    int next = base.offsets[current];
+                    if (base.targets[next] == previous) {
+                        next += 1;
+                    }
+                    previous = current;
+                    current = base.targets[next];
+                }
+            }
+        }
+    }
+
+    /** Returns the number of junctions. */
+    int size() {
+        return junctions.length;
+    }
+
+    /** Returns the number of base vertices in chain <code>c</code>, including its ends. */
+    int chainLength(int c) {
+        return chainOffsets[c + 1] - chainOffsets[c];
+    }
+
+    /** Returns the length of chain <code>c</code>. */
+    double chainWeight(int c) {
+        return chainDistances[chainOffsets[c + 1] - 1];
+    }
+}
@@ -0,0 +1,582 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A contraction hierarchy over a <code>CSRGraph</code>. Vertices are contracted one at a time,
+ * least important first: contracting a vertex removes it and joins each pair of its remaining
+ * neighbors by a shortcut edge, unless a path between them that avoids it is no longer. The
+ * rank of a vertex is its place in that order, and the hierarchy keeps, for every vertex, its
+ * edges to higher-ranked vertices, original or shortcut, in CSR form: the upward edges of
+ * vertex v are those at positions <code>[offsets[v], offsets[v + 1])</code>. Every shortest
+ * path has a shortest path of the same length that climbs in rank and then descends, so a
+ * query searches upward from both ends and meets at the top.
+ *
+ * A shortcut from u to w records the vertex <code>middles[e]</code> that it bypasses, which
+ * ranks below both, so it is unpacked through that vertex's upward edges to u and to w; an
+ * original edge has a middle of -1.
+ *
+ * Building orders the vertices by the number of shortcuts their contraction adds less the
+ * edges it removes, the number of neighbors already contracted and their depth in the
+ * hierarchy, and contracts them in rounds: each round takes every vertex that comes before all
+ * of its remaining neighbors, so no two are adjacent, and contracts them in parallel. The
+ * searches for paths that avoid a vertex, which decide whether a shortcut is needed, give up
+ * after <code>WITNESS_SETTLED</code> vertices and add it anyway, which costs an edge but never
+ * a wrong answer; when they only estimate a vertex's priority, they give up sooner.
+ *
+ * A hierarchy is saved next to the OSM file it was built for, in the following layout (all
+ * values big-endian):
+ *
+ * <pre>
+ * long    MAGIC
+ * int     VERSION
+ * long    fingerprint of the graph
+ * int     n, the number of vertices
+ * int     m, the number of upward edges
+ * int[n] ranks, int[n + 1] offsets, int[m] targets, double[m] weights, int[m] middles
+ * long    CRC32 of every preceding byte
+ * </pre>
+ *
+ * Run the main method to build the hierarchy for an OSM file and save it.
+ *
+ * <pre>java ContractionHierarchy [path] [threads]</pre>
+ */
+class ContractionHierarchy {
+    /** Identifies a hierarchy file: "BMAPHIER" in ASCII. */
+    private static final long MAGIC = 0x424D415048494552L;
+    /** Bumped whenever the layout changes; hierarchies of any other version are rebuilt. */
+    static final int VERSION = 1;
+    /** Suffix appended to the XML path to locate its hierarchy. */
+    private static final String SUFFIX = ".ch";
+    /** The most vertices a search for a path around a contracted vertex settles. */
+    static final int WITNESS_SETTLED = 128;
+    /**
+     * The most vertices settled by the same searches when they only estimate the shortcuts of
+     * a vertex to order it, which they do far more often. Cutting them short overestimates a
+     * little, but on the test grids ordered as well as the full searches in half the time.
+     */
+    static final int ESTIMATE_SETTLED = 16;
+    /** The number of vertices one task works on at a time. */
+    private static final int CHUNK = 256;
+
+    /** The place of every vertex in the contraction order. */
+    final int[] ranks;
+    final int[] offsets;
+    final int[] targets;
+    final double[] weights;
+    final int[] middles;
+    /** Identifies the graph that this hierarchy was built for. */
+    private final long fingerprint;
+
+    private ContractionHierarchy(int[] ranks, int[] offsets, int[] targets, double[] weights,
+                                 int[] middles, long fingerprint) {
+        this.ranks = ranks;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.middles = middles;
+        this.fingerprint = fingerprint;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : "../library-su18/bearmaps/berkeley-2018.osm.xml";
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        GraphDB g = GraphDB.load(path);
+        long start = System.nanoTime();
+        ContractionHierarchy ch = build(g.csr(), threads);
+        System.out.println(String.format("Contracted %d vertices into %d upward edges in %.1f s"
+                        + " on %d threads.", ch.size(), ch.targets.length,
+                (System.nanoTime() - start) / 1e9, threads));
+        ch.write(pathFor(path));
+    }
+
+    /** Returns the number of vertices. */
+    int size() {
+        return ranks.length;
+    }
+
+    /**
+     * Returns the position of the upward edge from v to w, which must exist.
+     *
+     * @param v A vertex.
+     * @param w A vertex ranked above v and adjacent to it in the hierarchy.
+     * @return The edge's position in <code>targets</code>.
+     */
+    int edge(int v, int w) {
+        for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+            if (targets[e] == w) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("no upward edge from " + v + " to " + w);
+    }
+
+    /**
+     * Returns whether this hierarchy was built for <code>csr</code>, as far as a fingerprint of
+     * its vertices and edges can tell.
+     */
+    boolean builtFor(CSRGraph csr) {
+        return fingerprint == fingerprint(csr);
+    }
+
+    /**
+     * Builds the hierarchy over <code>csr</code>, contracting on as many threads as there are
+     * processors.
+     *
+     * @param csr The graph.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy build(CSRGraph csr) {
+        return build(csr, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Builds the hierarchy over <code>csr</code>. The result does not depend on the number of
+     * threads.
+     *
+     * @param csr     The graph.
+     * @param threads The number of threads to contract on.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy build(CSRGraph csr, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return new Builder(csr, pool).build();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** The graph as contracted so far, with the work of each round. */
+    private static class Builder {
+        private final CSRGraph csr;
+        private final ForkJoinPool pool;
+        private final int n;
+        /** The edges between remaining vertices, kept in both directions. */
+        private final int[][] neighbors;
+        private final double[][] lengths;
+        private final int[][] vias;
+        private final int[] degrees;
+        private final int[] priorities;
+        /** The number of contracted neighbors of every vertex, and its depth above them. */
+        private final int[] deleted;
+        private final int[] levels;
+        /** Whether a vertex is being contracted in the current round. */
+        private final boolean[] inRound;
+        private final boolean[] dirty;
+        private final int[] ranks;
+        /** The upward edges of every contracted vertex, as its remaining edges at the time. */
+        private final int[][] upTargets;
+        private final double[][] upWeights;
+        private final int[][] upMiddles;
+
+        Builder(CSRGraph csr, ForkJoinPool pool) {
+            this.csr = csr;
+            this.pool = pool;
+            n = csr.size();
+            neighbors = new int[n][];
+            lengths = new double[n][];
+            vias = new int[n][];
+            degrees = new int[n];
+            priorities = new int[n];
+            deleted = new int[n];
+            levels = new int[n];
+            inRound = new boolean[n];
+            dirty = new boolean[n];
+            ranks = new int[n];
+            Arrays.fill(ranks, -1);
+            upTargets = new int[n][];
+            upWeights = new double[n][];
+            upMiddles = new int[n][];
+            for (int v = 0; v < n; v += 1) {
+                int degree = csr.offsets[v + 1] - csr.offsets[v];
+                neighbors[v] = new int[Math.max(degree, 1)];
+                lengths[v] = new double[Math.max(degree, 1)];
+                vias[v] = new int[Math.max(degree, 1)];
+                for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                    if (csr.targets[e] != v) {
+                        connect(v, csr.targets[e], csr.weights[e], -1);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy build() {
+            int[] remaining = new int[n];
+            for (int v = 0; v < n; v += 1) {
+                remaining[v] = v;
+            }
+            int count = n;
+            int[] all = remaining.clone();
+            run(n, (from, to) -> {
+                for (int k = from; k < to; k += 1) {
+                    priorities[all[k]] = priority(all[k]);
+                }
+            });
+
+            int rank = 0;
+            int[] round = new int[n];
+            while (count > 0) {
+                /* Every vertex before all of its remaining neighbors, in index order. */
+                int[] candidates = Arrays.copyOf(remaining, count);
+                boolean[] chosen = new boolean[count];
+                run(count, (from, to) -> {
+                    for (int k = from; k < to; k += 1) {
+                        chosen[k] = first(candidates[k]);
+                    }
+                });
+                int size = 0;
+                int kept = 0;
+                for (int k = 0; k < count; k += 1) {
+                    if (chosen[k]) {
+                        round[size] = candidates[k];
+                        inRound[candidates[k]] = true;
+                        size += 1;
+                    } else {
+                        remaining[kept] = candidates[k];
+                        kept += 1;
+                    }
+                }
+                count = kept;
+
+                int[][] shortcuts = new int[size][];
+                int[] contracting = Arrays.copyOf(round, size);
+                run(size, (from, to) -> {
+                    for (int k = from; k < to; k += 1) {
+                        shortcuts[k] = shortcuts(contracting[k], true);
+                    }
+                });
+                for (int k = 0; k < size; k += 1) {
+                    contract(contracting[k], shortcuts[k], rank);
+                    rank += 1;
+                }
+
+                int[] stale = new int[count];
+                int staleCount = 0;
+                for (int k = 0; k < count; k += 1) {
+                    if (dirty[remaining[k]]) {
+                        dirty[remaining[k]] = false;
+                        stale[staleCount] = remaining[k];
+                        staleCount += 1;
+                    }
+                }
+                int[] update = stale;
+                run(staleCount, (from, to) -> {
+                    for (int k = from; k < to; k += 1) {
+                        priorities[update[k]] = priority(update[k]);
+                    }
+                });
+            }
+
+            int[] offsets = new int[n + 1];
+            for (int v = 0; v < n; v += 1) {
+                offsets[v + 1] = offsets[v] + upTargets[v].length;
+            }
+            int m = offsets[n];
+            int[] targets = new int[m];
+            double[] weights = new double[m];
+            int[] middles = new int[m];
+            for (int v = 0; v < n; v += 1) {
+                System.arraycopy(upTargets[v], 0, targets, offsets[v], upTargets[v].length);
+                System.arraycopy(upWeights[v], 0, weights, offsets[v], upWeights[v].length);
+                System.arraycopy(upMiddles[v], 0, middles, offsets[v], upMiddles[v].length);
+            }
+            return new ContractionHierarchy(ranks, offsets, targets, weights, middles,
+                    fingerprint(csr));
+        }
+
+        /** Returns whether v comes before every remaining neighbor in the contraction order. */
+        private boolean first(int v) {
+            for (int i = 0; i < degrees[v]; i += 1) {
+                int u = neighbors[v][i];
+                if (priorities[u] < priorities[v] || priorities[u] == priorities[v] && u < v) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int priority(int v) {
+            int added = shortcuts(v, false)[0];
+            return 2 * (added - degrees[v]) + deleted[v] + levels[v];
+        }
+
+        /**
+         * Finds the pairs of remaining neighbors of v that need a shortcut when v is
+         * contracted: those with no path of at most the same length that avoids v and the
+         * other vertices of the round.
+         *
+         * @param collect Whether to return the pairs, or only count them.
+         * @return The number of pairs, then, if collected, the positions of each pair in v's
+         * neighbors.
+         */
+        private int[] shortcuts(int v, boolean collect) {
+            int degree = degrees[v];
+            int[] found = new int[collect ? 1 + 2 * degree * (degree - 1) / 2 : 1];
+            for (int i = 0; i + 1 < degree; i += 1) {
+                double limit = 0;
+                for (int j = i + 1; j < degree; j += 1) {
+                    limit = Math.max(limit, lengths[v][i] + lengths[v][j]);
+                }
+                SearchState state = witnesses(v, i, limit,
+                        collect ? WITNESS_SETTLED : ESTIMATE_SETTLED);
+                for (int j = i + 1; j < degree; j += 1) {
+                    if (state.distance(neighbors[v][j]) > lengths[v][i] + lengths[v][j]) {
+                        if (collect) {
+                            found[1 + 2 * found[0]] = i;
+                            found[2 + 2 * found[0]] = j;
+                        }
+                        found[0] += 1;
+                    }
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Runs Dijkstra's algorithm from neighbor i of v over the remaining vertices other than
+         * v and those of the round, no farther than <code>limit</code>, until it has settled the
+         * neighbors after i or <code>maxSettled</code> vertices.
+         */
+        private SearchState witnesses(int v, int i, double limit, int maxSettled) {
+            SearchState state = SearchState.take(n);
+            int u = neighbors[v][i];
+            state.relax(u, 0.0, u, -1, 0.0);
+            int left = degrees[v] - i - 1;
+            for (int settled = 0; settled < maxSettled && left > 0 && !state.isEmpty();
+                 settled += 1) {
+                int x = state.poll();
+                if (x != u && contains(v, i + 1, x)) {
+                    left -= 1;
+                }
+                double d = state.distance(x);
+                for (int k = 0; k < degrees[x]; k += 1) {
+                    int y = neighbors[x][k];
+                    double length = d + lengths[x][k];
+                    if (length <= limit && y != v && !inRound[y]) {
+                        state.relax(y, length, x, -1, length);
+                    }
+                }
+            }
+            return state;
+        }
+
+        /** Returns whether x is one of the neighbors of v from position i on. */
+        private boolean contains(int v, int i, int x) {
+            for (int j = i; j < degrees[v]; j += 1) {
+                if (neighbors[v][j] == x) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Contracts v: records its remaining edges as its upward edges, removes it, and joins
+         * the pairs of its neighbors in <code>found</code> by shortcuts through it.
+         */
+        private void contract(int v, int[] found, int rank) {
+            int degree = degrees[v];
+            ranks[v] = rank;
+            upTargets[v] = Arrays.copyOf(neighbors[v], degree);
+            upWeights[v] = Arrays.copyOf(lengths[v], degree);
+            upMiddles[v] = Arrays.copyOf(vias[v], degree);
+            inRound[v] = false;
+            for (int i = 0; i < degree; i += 1) {
+                int u = neighbors[v][i];
+                disconnect(u, v);
+                deleted[u] += 1;
+                levels[u] = Math.max(levels[u], levels[v] + 1);
+                dirty[u] = true;
+            }
+            for (int k = 0; k < found[0]; k += 1) {
+                int i = found[1 + 2 * k];
+                int j = found[2 + 2 * k];
+                double length = upWeights[v][i] + upWeights[v][j];
+                connect(upTargets[v][i], upTargets[v][j], length, v);
+                connect(upTargets[v][j], upTargets[v][i], length, v);
+            }
+            neighbors[v] = null;
+            lengths[v] = null;
+            vias[v] = null;
+            degrees[v] = 0;
+        }
+
+        /** Adds an edge from u to w, or shortens the one there. */
+        private void connect(int u, int w, double length, int via) {
+            for (int i = 0; i < degrees[u]; i += 1) {
+                if (neighbors[u][i] == w) {
+                    if (length < lengths[u][i]) {
+                        lengths[u][i] = length;
+                        vias[u][i] = via;
+                    }
+                    return;
+                }
+            }
+            int i = degrees[u];
+            if (i == neighbors[u].length) {
+                neighbors[u] = Arrays.copyOf(neighbors[u], 2 * i);
+                lengths[u] = Arrays.copyOf(lengths[u], 2 * i);
+                vias[u] = Arrays.copyOf(vias[u], 2 * i);
+            }
+            neighbors[u][i] = w;
+            lengths[u][i] = length;
+            vias[u][i] = via;
+            degrees[u] = i + 1;
+        }
+
+        /** Removes the edge from u to w. */
+        private void disconnect(int u, int w) {
+            for (int i = 0; i < degrees[u]; i += 1) {
+                if (neighbors[u][i] == w) {
+                    int last = degrees[u] - 1;
+                    neighbors[u][i] = neighbors[u][last];
+                    lengths[u][i] = lengths[u][last];
+                    vias[u][i] = vias[u][last];
+                    degrees[u] = last;
+                    return;
+                }
+            }
+        }
+
+        /** Runs a body over <code>[0, count)</code> on the pool. */
+        private void run(int count, Runs.Body body) {
+            pool.invoke(new Runs(0, count, CHUNK, body));
+        }
+    }
+
+    /**
+     * Returns a hash of the vertices and edges of <code>csr</code>, which changes whenever an
+     * update or a different source file changes the graph.
+     */
+    static long fingerprint(CSRGraph csr) {
+        long hash = csr.size();
+        hash = hash * 31 + Arrays.hashCode(csr.ids);
+        hash = hash * 31 + Arrays.hashCode(csr.offsets);
+        hash = hash * 31 + Arrays.hashCode(csr.targets);
+        hash = hash * 31 + Arrays.hashCode(csr.weights);
+        return hash;
+    }
+
+    /**
+     * Returns the hierarchy path used for the XML file at <code>dbPath</code>.
+     *
+     * @param dbPath Path to an OSM XML file.
+     * @return Path of the hierarchy kept next to it.
+     */
+    static String pathFor(String dbPath) {
+        return dbPath + SUFFIX;
+    }
+
+    /**
+     * Writes this hierarchy to <code>path</code>. Like a graph snapshot, the file is written
+     * next to its final location and moved into place.
+     *
+     * @param path Where to write the hierarchy.
+     * @throws IOException If the hierarchy cannot be written.
+     */
+    void write(String path) throws IOException {
+        Path temp = Paths.get(path + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                     new BufferedOutputStream(fos, 1 << 16), crc))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(ranks.length);
+            out.writeInt(targets.length);
+            for (int rank : ranks) {
+                out.writeInt(rank);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (int target : targets) {
+                out.writeInt(target);
+            }
+            for (double weight : weights) {
+                out.writeDouble(weight);
+            }
+            for (int middle : middles) {
+                out.writeInt(middle);
+            }
+            out.flush();
+            /* Written straight to the file so the checksum does not cover itself. */
+            new DataOutputStream(fos).writeLong(crc.getValue());
+        }
+        Files.move(temp, Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads the hierarchy at <code>path</code> if it is usable: present, of this version,
+     * intact, and built for <code>csr</code>.
+     *
+     * @param path Path to the hierarchy.
+     * @param csr  The graph the hierarchy should have been built for.
+     * @return The loaded hierarchy, or null if it is unusable.
+     * @throws IOException If the hierarchy exists but cannot be read.
+     */
+    static ContractionHierarchy read(String path, CSRGraph csr) throws IOException {
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < Long.BYTES * 3 + Integer.BYTES * 3 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getLong() != MAGIC || buf.getInt() != VERSION
+                    || buf.getLong() != fingerprint(csr)) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(0).limit((int) size - Long.BYTES);
+            crc.update(body);
+            if (buf.getLong((int) size - Long.BYTES) != crc.getValue()) {
+                return null;
+            }
+
+            int n = buf.getInt();
+            int m = buf.getInt();
+            long expected = Long.BYTES * 3 + Integer.BYTES * 3 + (long) Integer.BYTES * (2 * n + 1)
+                    + (long) (2 * Integer.BYTES + Double.BYTES) * m;
+            if (n != csr.size() || m < 0 || size != expected) {
+                return null;
+            }
+            int[] ranks = new int[n];
+            int[] offsets = new int[n + 1];
+            int[] targets = new int[m];
+            double[] weights = new double[m];
+            int[] middles = new int[m];
+            buf.asIntBuffer().get(ranks);
+            buf.position(buf.position() + n * Integer.BYTES);
+            buf.asIntBuffer().get(offsets);
+            buf.position(buf.position() + (n + 1) * Integer.BYTES);
+            buf.asIntBuffer().get(targets);
+            buf.position(buf.position() + m * Integer.BYTES);
+            buf.asDoubleBuffer().get(weights);
+            buf.position(buf.position() + m * Double.BYTES);
+            buf.asIntBuffer().get(middles);
+            return new ContractionHierarchy(ranks, offsets, targets, weights, middles,
+                    fingerprint(csr));
+        }
+    }
+}
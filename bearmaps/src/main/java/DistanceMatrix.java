@@ -0,0 +1,148 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Computes the road distances between every source and every target of a batch, as behind
+ * <code>Router.distanceMatrix</code>. All the points are snapped once, together, with
+ * <code>BatchSnapper</code>; sources and targets that snap to the same vertex share its work.
+ * Each distinct source vertex then runs one Dijkstra search, which stops as soon as it has
+ * settled every distinct target vertex in its component, and the searches are spread across a
+ * fork-join pool, each on its worker's own <code>SearchState</code>.
+ */
+class DistanceMatrix {
+    /** The most entries in a matrix, the largest array most JVMs will allocate. */
+    static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private DistanceMatrix() {
+    }
+
+    /**
+     * Returns the length of the shortest path from the vertex closest to each source to the
+     * vertex closest to each target, in miles, or infinity where there is none.
+     *
+     * @param g       The graph to route on.
+     * @param sources The longitude and latitude of every source.
+     * @param targets The longitude and latitude of every target.
+     * @param pool    The pool to search on.
+     * @return The distance from source i to target j at <code>i * targets.length + j</code>.
+     * @throws IllegalArgumentException If a point is not a longitude and latitude, or the
+     *                                  matrix would not fit in an array.
+     */
+    static double[] compute(GraphDB g, double[][] sources, double[][] targets,
+                            ForkJoinPool pool) {
+        int rows = sources.length;
+        int columns = targets.length;
+        if ((long) rows * columns > MAX_SIZE) {
+            throw new IllegalArgumentException(String.format("%d by %d is too large a matrix",
+                    rows, columns));
+        }
+        double[] lons = new double[rows + columns];
+        double[] lats = new double[rows + columns];
+        for (int k = 0; k < rows + columns; k += 1) {
+            double[] point = k < rows ? sources[k] : targets[k - rows];
+            if (point == null || point.length != 2) {
+                throw new IllegalArgumentException("a point is not a longitude and latitude");
+            }
+            lons[k] = point[0];
+            lats[k] = point[1];
+        }
+        int[] snapped = BatchSnapper.closestIndices(g, lons, lats, pool);
+        return pool.invoke(ForkJoinTask.adapt(() -> distances(g,
+                Arrays.copyOfRange(snapped, 0, rows),
+                Arrays.copyOfRange(snapped, rows, rows + columns))));
+    }
+
+    /** Computes the matrix between snapped sources and targets, as for <code>compute</code>. */
+    private static double[] distances(GraphDB g, int[] sources, int[] targets) {
+        CSRGraph csr = g.csr();
+        int[] at = new int[csr.size()];
+        Arrays.fill(at, -1);
+        int[] sourceOf = new int[sources.length];
+        int[] distinctSources = distinct(sources, sourceOf, at);
+        for (int s : distinctSources) {
+            at[s] = -1;
+        }
+        int[] targetOf = new int[targets.length];
+        int[] distinctTargets = distinct(targets, targetOf, at);
+        /* Which distinct target every vertex is, or -1, for the searches to test as they settle. */
+        int[] targetAt = at;
+
+        /* One row per distinct source, and an infinite one for sources that snapped to nothing. */
+        double[][] found = new double[distinctSources.length + 1][];
+        found[distinctSources.length] = new double[distinctTargets.length + 1];
+        Arrays.fill(found[distinctSources.length], Double.POSITIVE_INFINITY);
+        /* One source per task: each is already a large one, and their lengths vary widely. */
+        new Runs(0, distinctSources.length, 1, (from, to) -> {
+            for (int k = from; k < to; k += 1) {
+                found[k] = search(g, distinctSources[k], distinctTargets, targetAt);
+            }
+        }).invoke();
+
+        double[] matrix = new double[sources.length * targets.length];
+        for (int i = 0; i < sources.length; i += 1) {
+            double[] row = found[sourceOf[i]];
+            for (int j = 0; j < targets.length; j += 1) {
+                matrix[i * targets.length + j] = row[targetOf[j]];
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Returns the distinct vertices of <code>vertices</code> other than -1, the mark of a point
+     * that snapped to nothing, and stores where each one landed among them in
+     * <code>positions</code>; a point that snapped to nothing gets the position past the last.
+     * <code>at</code> must hold -1 for every vertex, and is left holding the position of each
+     * distinct vertex.
+     */
+    private static int[] distinct(int[] vertices, int[] positions, int[] at) {
+        int[] result = new int[vertices.length];
+        int count = 0;
+        for (int v : vertices) {
+            if (v >= 0 && at[v] < 0) {
+                at[v] = count;
+                result[count] = v;
+                count += 1;
+            }
+        }
+        for (int k = 0; k < vertices.length; k += 1) {
+            positions[k] = vertices[k] >= 0 ? at[vertices[k]] : count;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from vertex index s until it has settled every target in its
+     * component, and returns the distance to each target, followed by an infinite one for
+     * points that snapped to nothing.
+     */
+    private static double[] search(GraphDB g, int s, int[] targets, int[] targetAt) {
+        CSRGraph csr = g.csr();
+        Components components = g.components();
+        double[] distances = new double[targets.length + 1];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        int left = 0;
+        for (int t : targets) {
+            if (components.connected(s, t)) {
+                left += 1;
+            }
+        }
+
+        SearchState state = SearchState.take(csr.size());
+        state.relax(s, 0.0, s, -1, 0.0);
+        while (left > 0 && !state.isEmpty()) {
+            int v = state.poll();
+            double sToV = state.distance(v);
+            if (targetAt[v] >= 0) {
+                distances[targetAt[v]] = sToV;
+                left -= 1;
+            }
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                double sToW = sToV + csr.weights[e];
+                state.relax(csr.targets[e], sToW, v, e, sToW);
+            }
+        }
+        return distances;
+    }
+}
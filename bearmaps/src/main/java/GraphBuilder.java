@@ -0,0 +1,251 @@
+import java.util.Arrays;
+
+/**
+ * Accumulates nodes, ways and edges in growable primitive arrays and freezes them into a
+ * <code>CSRGraph</code>. Unlike the <code>GraphDB.Node</code> table filled by the SAX handler, a
+ * builder allocates nothing per node, and several builders filled independently (for example,
+ * one per chunk of an XML file) can be merged with <code>addAll</code> before building.
+ *
+ * Edges may refer to nodes that are added later, or to nodes added to another builder that is
+ * merged in later; endpoints are only resolved in <code>build</code>.
+ */
+class GraphBuilder {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] nodeIds = new long[INITIAL_CAPACITY];
+    private double[] nodeLats = new double[INITIAL_CAPACITY];
+    private double[] nodeLons = new double[INITIAL_CAPACITY];
+    private int nodeCount;
+
+    private final TagStore.Builder tags = new TagStore.Builder();
+
+    /** Endpoints of every edge, by OSM ID, and the way each edge belongs to. */
+    private long[] edgeFrom = new long[INITIAL_CAPACITY];
+    private long[] edgeTo = new long[INITIAL_CAPACITY];
+    private int[] edgeWay = new int[INITIAL_CAPACITY];
+    private int edgeCount;
+
+    private final WayTable.Builder ways = new WayTable.Builder();
+    private final WayIndex.Builder osmWays = new WayIndex.Builder();
+
+    /**
+     * Adds a node to the graph.
+     *
+     * @param id  The OSM ID of the node.
+     * @param lon The longitude of the node.
+     * @param lat The latitude of the node.
+     */
+    void addNode(long id, double lon, double lat) {
+        if (nodeCount == nodeIds.length) {
+            int capacity = nodeCount * 2;
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            nodeLats = Arrays.copyOf(nodeLats, capacity);
+            nodeLons = Arrays.copyOf(nodeLons, capacity);
+        }
+        nodeIds[nodeCount] = id;
+        nodeLats[nodeCount] = lat;
+        nodeLons[nodeCount] = lon;
+        nodeCount += 1;
+    }
+
+    /**
+     * Adds a tag to the most recently added node.
+     *
+     * @param key   The tag key.
+     * @param value The tag value.
+     */
+    void tagLastNode(String key, String value) {
+        tags.add(nodeIds[nodeCount - 1], key, value);
+    }
+
+    /**
+     * Adds an undirected edge between the nodes with OSM IDs <code>v</code> and <code>w</code>.
+     * If the same pair of nodes is connected more than once, the last edge added wins.
+     *
+     * @param v   The OSM ID of one endpoint.
+     * @param w   The OSM ID of the other endpoint.
+     * @param way The index of the edge's way, as returned by <code>internWay</code>, or -1.
+     */
+    void addEdge(long v, long w, int way) {
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            edgeWay = Arrays.copyOf(edgeWay, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = v;
+        edgeTo[edgeCount] = w;
+        edgeWay[edgeCount] = way;
+        edgeCount += 1;
+    }
+
+    /**
+     * Returns the index of the way with the given tags, for use with <code>addWay</code>.
+     *
+     * @param name     The name tag, or null.
+     * @param highway  The highway tag, or null.
+     * @param maxSpeed The maxspeed tag, or null.
+     * @return The way index.
+     */
+    int internWay(String name, String highway, String maxSpeed) {
+        return ways.intern(name, highway, maxSpeed);
+    }
+
+    /**
+     * Adds an edge between every pair of consecutive nodes in a way, and remembers the way's
+     * node references for later updates.
+     *
+     * @param id     The OSM ID of the way.
+     * @param refs   The OSM IDs of the nodes along the way.
+     * @param length The number of valid entries in <code>refs</code>.
+     * @param way    The index of the way, as returned by <code>internWay</code>.
+     */
+    void addWay(long id, long[] refs, int length, int way) {
+        osmWays.add(id, refs, 0, length);
+        for (int i = 0; i + 1 < length; i += 1) {
+            addEdge(refs[i], refs[i + 1], way);
+        }
+    }
+
+    /**
+     * Appends every node, tag and edge of <code>other</code> to this builder.
+     *
+     * @param other The builder to merge in; it is left unchanged.
+     */
+    void addAll(GraphBuilder other) {
+        int nodes = nodeCount + other.nodeCount;
+        if (nodes > nodeIds.length) {
+            nodeIds = Arrays.copyOf(nodeIds, nodes);
+            nodeLats = Arrays.copyOf(nodeLats, nodes);
+            nodeLons = Arrays.copyOf(nodeLons, nodes);
+        }
+        System.arraycopy(other.nodeIds, 0, nodeIds, nodeCount, other.nodeCount);
+        System.arraycopy(other.nodeLats, 0, nodeLats, nodeCount, other.nodeCount);
+        System.arraycopy(other.nodeLons, 0, nodeLons, nodeCount, other.nodeCount);
+
+        tags.addAll(other.tags);
+        osmWays.addAll(other.osmWays);
+
+        int edges = edgeCount + other.edgeCount;
+        if (edges > edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edges);
+            edgeTo = Arrays.copyOf(edgeTo, edges);
+            edgeWay = Arrays.copyOf(edgeWay, edges);
+        }
+        System.arraycopy(other.edgeFrom, 0, edgeFrom, edgeCount, other.edgeCount);
+        System.arraycopy(other.edgeTo, 0, edgeTo, edgeCount, other.edgeCount);
+        int[] remap = ways.internAll(other.ways);
+        for (int e = 0; e < other.edgeCount; e += 1) {
+            int way = other.edgeWay[e];
+            edgeWay[edgeCount + e] = way < 0 ? -1 : remap[way];
+        }
+
+        nodeCount = nodes;
+        edgeCount = edges;
+    }
+
+    /**
+     * Freezes the accumulated nodes and edges into CSR form. As in <code>GraphDB.clean</code>,
+     * nodes without edges are dropped; edges with an endpoint that was never added, self loops,
+     * and duplicate edges are dropped as well.
+     *
+     * @return A new <code>CSRGraph</code>.
+     */
+    CSRGraph build() {
+        long[] all = Arrays.copyOf(nodeIds, nodeCount);
+        Arrays.parallelSort(all);
+        int unique = 0;
+        for (int i = 0; i < all.length; i += 1) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[unique] = all[i];
+                unique += 1;
+            }
+        }
+        all = Arrays.copyOf(all, unique);
+
+        /* Resolve both endpoints of every edge and count the degree of every node. */
+        int[] from = new int[edgeCount];
+        int[] to = new int[edgeCount];
+        int[] order = new int[edgeCount];
+        int[] degree = new int[unique];
+        int resolved = 0;
+        for (int e = 0; e < edgeCount; e += 1) {
+            int a = Arrays.binarySearch(all, edgeFrom[e]);
+            int b = Arrays.binarySearch(all, edgeTo[e]);
+            if (a < 0 || b < 0 || a == b) {
+                continue;
+            }
+            from[resolved] = a;
+            to[resolved] = b;
+            order[resolved] = e;
+            degree[a] += 1;
+            degree[b] += 1;
+            resolved += 1;
+        }
+
+        /* Assign dense indices to the nodes that have edges. */
+        int[] index = new int[unique];
+        int n = 0;
+        for (int i = 0; i < unique; i += 1) {
+            index[i] = degree[i] > 0 ? n++ : -1;
+        }
+        long[] ids = new long[n];
+        for (int i = 0; i < unique; i += 1) {
+            if (index[i] >= 0) {
+                ids[index[i]] = all[i];
+            }
+        }
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        for (int p = 0; p < nodeCount; p += 1) {
+            int i = index[Arrays.binarySearch(all, nodeIds[p])];
+            if (i >= 0) {
+                lats[i] = nodeLats[p];
+                lons[i] = nodeLons[p];
+            }
+        }
+
+        /*
+         * Fill the adjacency runs with (target, edge order) pairs packed into longs, then sort
+         * each run and squeeze out duplicate targets, keeping the edge that was added last.
+         */
+        int[] fill = new int[n + 1];
+        for (int i = 0; i < unique; i += 1) {
+            if (index[i] >= 0) {
+                fill[index[i] + 1] = degree[i];
+            }
+        }
+        for (int i = 0; i < n; i += 1) {
+            fill[i + 1] += fill[i];
+        }
+        int[] runStart = Arrays.copyOf(fill, n + 1);
+        long[] entries = new long[fill[n]];
+        for (int e = 0; e < resolved; e += 1) {
+            int a = index[from[e]];
+            int b = index[to[e]];
+            entries[fill[a]++] = (long) b << 32 | order[e];
+            entries[fill[b]++] = (long) a << 32 | order[e];
+        }
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[entries.length];
+        int[] edgeWays = new int[entries.length];
+        int m = 0;
+        for (int i = 0; i < n; i += 1) {
+            Arrays.sort(entries, runStart[i], runStart[i + 1]);
+            offsets[i] = m;
+            for (int e = runStart[i]; e < runStart[i + 1]; e += 1) {
+                int target = (int) (entries[e] >>> 32);
+                if (e + 1 < runStart[i + 1] && (int) (entries[e + 1] >>> 32) == target) {
+                    continue;
+                }
+                targets[m] = target;
+                edgeWays[m] = edgeWay[(int) entries[e]];
+                m += 1;
+            }
+        }
+        offsets[n] = m;
+        targets = Arrays.copyOf(targets, m);
+        return new CSRGraph(ids, lats, lons, offsets, targets,
+                CSRGraph.weights(ids, lats, lons, offsets, targets), Arrays.copyOf(edgeWays, m),
+                ways.build(), tags.build(ids), osmWays.build());
+    }
+}
@@ -31,7 +31,7 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = Set.of(
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = Set.of(
             "motorway", "trunk", "primary", "secondary", "tertiary", "unclassified", "residential",
             "living_street", "motorway_link", "trunk_link", "primary_link", "secondary_link",
             "tertiary_link"
@@ -42,6 +42,10 @@ public class GraphBuildingHandler extends DefaultHandler {
     private LinkedList<GraphDB.Node> way;
     private LinkedList<Long> tempNeighbour = new LinkedList<>();
     private boolean isHighway = false;
+    private String wayName;
+    private String wayHighway;
+    private String wayMaxSpeed;
+    private long wayId;
 
     /**
      * Create a new GraphBuildingHandler.
@@ -80,6 +84,7 @@ public class GraphBuildingHandler extends DefaultHandler {
         } else if (qName.equals("way")) {
             /* Encountering a new <way...> tag. */
             activeState = "way";
+            wayId = Long.parseLong(attributes.getValue("id"));
             // System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
             /* While looking at a way, found a <nd...> tag. */
@@ -97,27 +102,25 @@ public class GraphBuildingHandler extends DefaultHandler {
             String v = attributes.getValue("v");
             if (k.equals("maxspeed")) {
                 // System.out.println("Max Speed: " + v);
-                lastNode.extraInfo.put(k, v);
+                wayMaxSpeed = v;
             } else if (k.equals("highway")) {
                 // System.out.println("Highway type: " + v);
-
+                wayHighway = v;
                 if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
                     isHighway = true;
                 }
             } else if (k.equals("name")) {
                 // System.out.println("Way Name: " + v);
-                lastNode.extraInfo.put(k, v);
+                wayName = v;
             }
             // System.out.println("Tag with k=" + k + ", v=" + v + ".");
-        } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
-            /* While looking at a node, found a <tag...> with k="name". */
+        } else if (activeState.equals("node") && qName.equals("tag")) {
+            /* While looking at a node, found a <tag...>, such as k="name". */
 
             /* Hint: Since we found this <tag...> INSIDE a node, we should probably remember which
              * node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
              * last node that you looked at (check the first if-case). */
-            lastNode.extraInfo.put(attributes.getValue("k"), attributes.getValue("v"));
-            // System.out.println("Node's name: " + attributes.getValue("v"));
+            g.addTag(lastNode.id, attributes.getValue("k"), attributes.getValue("v"));
         }
     }
 
@@ -142,10 +145,12 @@ public class GraphBuildingHandler extends DefaultHandler {
 
             // System.out.println("Finishing a way...");
             if (isHighway) {
+                int way = g.addWay(wayName, wayHighway, wayMaxSpeed);
+                g.addWayRefs(wayId, tempNeighbour);
                 for (int i = 0; i < tempNeighbour.size() - 1; i++) {
                     if (tempNeighbour.size() > 1) {
                         if (i != tempNeighbour.size() - 1) {
-                            g.addEdge(tempNeighbour.get(i), tempNeighbour.get(i + 1));
+                            g.addEdge(tempNeighbour.get(i), tempNeighbour.get(i + 1), way);
                         }
                     }
 
@@ -157,6 +162,9 @@ public class GraphBuildingHandler extends DefaultHandler {
             //reset
             activeState = "";
             isHighway = false;
+            wayName = null;
+            wayHighway = null;
+            wayMaxSpeed = null;
         }
 
     }
@@ -7,11 +7,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Set;
 import java.util.List;
+import java.util.Map;
 import java.util.Collections;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -41,24 +42,55 @@ public class GraphDB {
      * @source https://gis.stackexchange.com/a/7298
      */
     private static final double K0 = 1.0;
+    /** Updates may append this many vertices, or a sixteenth of the graph, before compaction. */
+    private static final int MIN_APPENDED_BEFORE_COMPACTION = 1024;
+    /** Build-time node table, released once the graph is frozen into <code>csr</code>. */
+    private HashMap<Long, Node> nodes = new HashMap<>();
+    /** Build-time way metadata, frozen into <code>csr</code> along with the nodes. */
+    private WayTable.Builder wayTable = new WayTable.Builder();
+    /** Build-time node tags, frozen into <code>csr</code> along with the nodes. */
+    private TagStore.Builder tags = new TagStore.Builder();
+    /** Build-time node references of the highway ways, frozen into <code>csr</code>. */
+    private WayIndex.Builder osmWays = new WayIndex.Builder();
+    /** Immutable CSR storage that serves every query once the graph is built. */
+    private CSRGraph csr;
+    /** Connected-component labels of the vertices of <code>csr</code>. */
+    private Components components;
+    /** Degree-two chain contraction of <code>csr</code>, built on first use. */
+    private volatile ContractedGraph contracted;
+    /** R-tree over the edges of <code>csr</code>, built on first use. */
+    private volatile SegmentIndex segments;
+    /**
+     * Contraction hierarchy over <code>csr</code>, loaded with the graph or built in the
+     * background once asked for; null until then.
+     */
+    private volatile ContractionHierarchy hierarchy;
+    /** The background build of <code>hierarchy</code>, once started; guarded by this. */
+    private CompletableFuture<ContractionHierarchy> hierarchyBuild;
+    /** Landmark distances for the ALT heuristic, built on first use. */
+    private volatile Landmarks landmarks;
+    /**
+     * The spatial index over the vertices, of the kind chosen by
+     * <code>SpatialIndex.Kind.configured</code>; like every field, unchanged once built.
+     */
+    private SpatialIndex index;
+    /**
+     * Vertices appended by updates since the spatial index was built. They are few, and are
+     * scanned one by one after the index is searched.
+     */
+    private KdTree kdExtras = KdTree.unsorted(new int[0], new double[0], new double[0]);
+    /**
+     * Caches the vertices closest to recently snapped points. Every version of the graph starts
+     * with an empty one, so nothing cached outlives a reload or an update.
+     */
+    private final SnapCache snapCache = SnapCache.configured();
+
     /**
      * This constructor creates and starts an XML parser, cleans the nodes, and prepares the
      * data structures for processing. Modify this constructor to initialize your data structures.
      *
      * @param dbPath Path to the XML file to be parsed.
      */
-    private HashMap<Long, Node> nodes = new HashMap<>();
-    private HashMap<Long, HashMap<Long, Edge>> nodeEdges = new HashMap<>();
-    private HashMap<Long, KdNode> kdNodes = new HashMap<>();
-    private HashMap<Double, Long> kdNodesX = new HashMap<>();
-    private HashMap<Double, Long> kdNodesY = new HashMap<>();
-    private KdNode root;
-    private double minX;
-    private double minY;
-    private double maxX;
-    private double maxY;
-    private KdNode currentClosestNode;
-
     public GraphDB(String dbPath) {
         File inputFile = new File(dbPath);
         try (FileInputStream inputStream = new FileInputStream(inputFile)) {
@@ -68,12 +100,388 @@ public class GraphDB {
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
+        finish();
+    }
+
+    /**
+     * Creates a graph over already frozen CSR storage and builds its spatial index.
+     *
+     * @param csr The CSR storage of the graph.
+     */
+    private GraphDB(CSRGraph csr) {
+        this.nodes = null;
+        this.wayTable = null;
+        this.tags = null;
+        this.osmWays = null;
+        this.csr = csr;
+        components = Components.label(csr);
+        indexVertices();
+    }
+
+    /**
+     * Creates the next version of <code>previous</code> over updated CSR storage. The vertices
+     * that <code>previous</code> had keep their indices, so its index is shared as is; vertices
+     * that lost their edges are skipped by the search, and appended vertices are added to
+     * <code>kdExtras</code>.
+     *
+     * @param previous The graph that <code>csr</code> was derived from.
+     * @param csr      The CSR storage of the new version.
+     */
+    private GraphDB(GraphDB previous, CSRGraph csr) {
+        this.nodes = null;
+        this.wayTable = null;
+        this.tags = null;
+        this.osmWays = null;
+        this.csr = csr;
+        components = Components.label(csr);
+        index = previous.index;
+        KdTree old = previous.kdExtras;
+        int capacity = old.size() + csr.size() - previous.csr.size();
+        int[] vertices = new int[capacity];
+        double[] xs = new double[capacity];
+        double[] ys = new double[capacity];
+        int count = 0;
+        for (int p = 0; p < old.size(); p += 1) {
+            if (csr.degree(old.vertices[p]) > 0) {
+                vertices[count] = old.vertices[p];
+                xs[count] = old.xs[p];
+                ys[count] = old.ys[p];
+                count += 1;
+            }
+        }
+        for (int i = previous.csr.size(); i < csr.size(); i += 1) {
+            if (csr.degree(i) > 0) {
+                vertices[count] = i;
+                xs[count] = projectToX(csr.lons[i], csr.lats[i]);
+                ys[count] = projectToY(csr.lons[i], csr.lats[i]);
+                count += 1;
+            }
+        }
+        kdExtras = KdTree.unsorted(Arrays.copyOf(vertices, count), Arrays.copyOf(xs, count),
+                Arrays.copyOf(ys, count));
+    }
+
+    /**
+     * Restores a graph from previously built parts without touching the XML file. The KD-tree is
+     * recreated from <code>kdOrder</code> if that is the configured index and the order covers
+     * every vertex; any other index is built afresh.
+     *
+     * @param csr     The CSR storage of the graph.
+     * @param kdOrder The KD-tree in the format produced by <code>kdTreeOrder</code>.
+     */
+    GraphDB(CSRGraph csr, int[] kdOrder) {
+        this.nodes = null;
+        this.wayTable = null;
+        this.tags = null;
+        this.osmWays = null;
+        this.csr = csr;
+        components = Components.label(csr);
+        double[][] projected = project(csr);
+        SpatialIndex.Kind kind = SpatialIndex.Kind.configured();
+        if (kind == SpatialIndex.Kind.KD_TREE && kdOrder.length == csr.size()) {
+            index = KdTree.restore(kdOrder, projected[0], projected[1]);
+        } else {
+            index = kind.build(projected[0], projected[1]);
+        }
+    }
+
+    /**
+     * Creates a copy of <code>previous</code> that shares its storage but searches a freshly
+     * built index of another kind, covering the appended vertices too.
+     *
+     * @param previous The graph to copy.
+     * @param kind     The kind of index to build.
+     */
+    private GraphDB(GraphDB previous, SpatialIndex.Kind kind) {
+        this.nodes = null;
+        this.wayTable = null;
+        this.tags = null;
+        this.osmWays = null;
+        this.csr = previous.csr;
+        this.components = previous.components;
+        double[][] projected = project(csr);
+        index = kind.build(projected[0], projected[1]);
+    }
+
+    /**
+     * Returns a graph for the XML file at <code>dbPath</code>, loading it from the binary snapshot
+     * next to it when that snapshot is present and up to date. Otherwise the XML file is parsed
+     * with <code>parseRoutableOnly</code>, to keep peak memory low, and a fresh snapshot is
+     * written for the next start. A contraction hierarchy saved next to the XML file is loaded
+     * too, if it was built for this graph.
+     *
+     * @param dbPath Path to the XML file backing the graph.
+     * @return The loaded graph.
+     */
+    public static GraphDB load(String dbPath) {
+        GraphDB g = loadGraph(dbPath);
+        try {
+            g.hierarchy = ContractionHierarchy.read(ContractionHierarchy.pathFor(dbPath), g.csr);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return g;
+    }
+
+    private static GraphDB loadGraph(String dbPath) {
+        String snapshotPath = GraphSnapshot.pathFor(dbPath);
+        try {
+            GraphDB g = GraphSnapshot.read(snapshotPath, dbPath);
+            if (g != null) {
+                return g;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        GraphDB g = parseRoutableOnly(dbPath);
+        if (g.csr.size() > 0) {
+            try {
+                GraphSnapshot.write(g, snapshotPath, dbPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Builds the graph for the XML file at <code>dbPath</code> by splitting the file into chunks
+     * that are parsed in parallel. Produces the same vertices and edges as the constructor.
+     *
+     * @param dbPath  Path to the XML file to be parsed.
+     * @param threads The number of parser threads.
+     * @return The built graph.
+     */
+    public static GraphDB parseParallel(String dbPath, int threads) {
+        try {
+            return new GraphDB(ParallelGraphLoader.load(dbPath, threads));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new GraphDB(new GraphBuilder().build());
+        }
+    }
+
+    /**
+     * Builds the graph for the XML file at <code>dbPath</code> with <code>OsmStreamReader</code>
+     * instead of a SAX parser. Produces the same vertices and edges as the constructor.
+     *
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The built graph.
+     */
+    public static GraphDB parseStreaming(String dbPath) {
+        try {
+            return new GraphDB(OsmStreamReader.load(dbPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new GraphDB(new GraphBuilder().build());
+        }
+    }
+
+    /**
+     * Builds the graph for the XML file at <code>dbPath</code> in two streaming passes, only
+     * materializing the nodes that highway ways reference. Produces the same vertices and edges
+     * as the constructor, with a peak heap close to the size of the final graph.
+     *
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The built graph.
+     */
+    public static GraphDB parseRoutableOnly(String dbPath) {
+        try {
+            return new GraphDB(OsmStreamReader.loadRoutable(dbPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new GraphDB(new GraphBuilder().build());
+        }
+    }
+
+    /**
+     * Cleans the parsed nodes, freezes them into CSR storage and builds the spatial index.
+     */
+    private void finish() {
         clean();
-        minX = Double.MAX_VALUE;
-        minY = Double.MAX_VALUE;
-        maxX = Double.MIN_VALUE;
-        minY = Double.MIN_VALUE;
-        root = buildKdTree(nodes.keySet(), 0, root);
+        csr = CSRGraph.build(nodes, wayTable.build(), tags, osmWays.build());
+        nodes = null;
+        wayTable = null;
+        tags = null;
+        osmWays = null;
+        components = Components.label(csr);
+        indexVertices();
+    }
+
+    /**
+     * Returns the graph that results from applying an OSM change to this one. This graph is
+     * left untouched, so it can go on serving requests while the new version is built; see
+     * <code>GraphUpdate</code> for what is rebuilt. Once updates have appended many vertices,
+     * the new version is compacted and its spatial index rebuilt from scratch.
+     *
+     * @param change The edits to apply.
+     * @return The updated graph.
+     */
+    GraphDB apply(OsmChange change) {
+        CSRGraph updated = GraphUpdate.apply(csr, change);
+        int appended = updated.size() - updated.sortedCount;
+        if (appended > Math.max(MIN_APPENDED_BEFORE_COMPACTION, updated.sortedCount / 16)) {
+            return new GraphDB(GraphUpdate.compact(updated));
+        }
+        return new GraphDB(this, updated);
+    }
+
+    /**
+     * Returns an equivalent graph with its vertices renumbered and its spatial index rebuilt, as
+     * if it had been loaded from scratch, or this graph if it was never updated.
+     */
+    GraphDB compacted() {
+        if (csr.isCompact()) {
+            return this;
+        }
+        return new GraphDB(GraphUpdate.compact(csr));
+    }
+
+    /**
+     * Builds the configured spatial index over every vertex in <code>csr</code>, by dense vertex
+     * index. Every vertex is projected once.
+     */
+    private void indexVertices() {
+        double[][] projected = project(csr);
+        index = SpatialIndex.Kind.configured().build(projected[0], projected[1]);
+    }
+
+    /**
+     * Returns a graph with the same vertices and edges as this one, searched through a spatial
+     * index of the given kind instead of the configured one.
+     *
+     * @param kind The kind of index to build.
+     * @return The graph.
+     */
+    GraphDB withIndex(SpatialIndex.Kind kind) {
+        return new GraphDB(this, kind);
+    }
+
+    /** Returns the spatial index over the vertices that were present when it was built. */
+    SpatialIndex spatialIndex() {
+        return index;
+    }
+
+    /** Returns the cache behind <code>closest</code>, for its hit and miss counts. */
+    SnapCache snapCache() {
+        return snapCache;
+    }
+
+    /** Returns the projected x and y coordinates of every vertex of <code>csr</code>. */
+    private static double[][] project(CSRGraph csr) {
+        int n = csr.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            xs[i] = projectToX(csr.lons[i], csr.lats[i]);
+            ys[i] = projectToY(csr.lons[i], csr.lats[i]);
+        }
+        return new double[][]{xs, ys};
+    }
+
+    /** Returns the CSR storage backing this graph. */
+    CSRGraph csr() {
+        return csr;
+    }
+
+    /** Returns the connected components of this graph. */
+    Components components() {
+        return components;
+    }
+
+    /**
+     * Returns the topology-compressed view of this graph, building it on first use. Concurrent
+     * first calls may each build a copy; any of them is as good as the others.
+     */
+    ContractedGraph contracted() {
+        ContractedGraph c = contracted;
+        if (c == null) {
+            c = ContractedGraph.build(csr);
+            contracted = c;
+        }
+        return c;
+    }
+
+    /**
+     * Returns the landmarks over this graph, building them on first use. Like the contracted
+     * view, concurrent first calls may each build a copy.
+     */
+    Landmarks landmarks() {
+        Landmarks l = landmarks;
+        if (l == null) {
+            l = Landmarks.build(csr, components);
+            landmarks = l;
+        }
+        return l;
+    }
+
+    /**
+     * Returns the contraction hierarchy over this graph if it was loaded with the graph or has
+     * been built; otherwise starts building it in the background, unless that has started
+     * already, and returns null. Building takes seconds even on a small map, far too long to
+     * keep a request waiting, and every update makes a version that needs a hierarchy of its own.
+     */
+    ContractionHierarchy hierarchy() {
+        ContractionHierarchy h = hierarchy;
+        if (h == null) {
+            buildHierarchy();
+        }
+        return h;
+    }
+
+    /** Returns whether the contraction hierarchy is ready, without starting to build it. */
+    boolean hasHierarchy() {
+        return hierarchy != null;
+    }
+
+    /**
+     * Returns the contraction hierarchy over this graph, starting to build it if need be and
+     * waiting until it is built.
+     */
+    ContractionHierarchy awaitHierarchy() {
+        return buildHierarchy().join();
+    }
+
+    /**
+     * Returns the build of the contraction hierarchy, started on a daemon thread of its own on
+     * the first call unless the hierarchy was loaded with the graph.
+     */
+    synchronized CompletableFuture<ContractionHierarchy> buildHierarchy() {
+        if (hierarchyBuild == null) {
+            ContractionHierarchy loaded = hierarchy;
+            if (loaded != null) {
+                hierarchyBuild = CompletableFuture.completedFuture(loaded);
+            } else {
+                hierarchyBuild = CompletableFuture.supplyAsync(() -> {
+                    ContractionHierarchy built = ContractionHierarchy.build(csr);
+                    hierarchy = built;
+                    return built;
+                }, task -> {
+                    Thread builder = new Thread(task, "hierarchy builder");
+                    builder.setDaemon(true);
+                    builder.start();
+                });
+                hierarchyBuild.whenComplete((built, e) -> {
+                    if (e != null) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+        }
+        return hierarchyBuild;
+    }
+
+    /**
+     * Returns the R-tree over the edges of this graph, building it on first use. Like the
+     * contracted view, it is built per version, and concurrent first calls may each build a copy.
+     */
+    SegmentIndex segments() {
+        SegmentIndex s = segments;
+        if (s == null) {
+            s = SegmentIndex.build(csr);
+            segments = s;
+        }
+        return s;
     }
 
     /**
@@ -86,13 +494,6 @@ public class GraphDB {
         return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
     }
 
-    static double euclideanNodeMod(double x, double y, KdNode node) {
-        if (node == null) {
-            return Double.MAX_VALUE;
-        }
-        return euclideanDistance(x, y, node.x, node.y);
-    }
-
     static double euclideanDistance(double x1, double y1, double x2, double y2) {
         return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
     }
@@ -136,9 +537,9 @@ public class GraphDB {
      */
     private void clean() {
         LinkedList<Long> toBeDeleted = new LinkedList<>();
-        for (long i : nodes.keySet()) {
-            if (nodeEdges.get(i) == null) {
-                toBeDeleted.add(i);
+        for (Node node : nodes.values()) {
+            if (node.edgyHashMap.isEmpty()) {
+                toBeDeleted.add(node.id);
             }
         }
         for (long i : toBeDeleted) {
@@ -153,10 +554,11 @@ public class GraphDB {
      * @return The longitude of that vertex, or 0.0 if the vertex is not in the graph.
      */
     double lon(long v) {
-        if (!nodes.containsKey(v)) {
+        int i = csr.indexOf(v);
+        if (i < 0) {
             return 0.0;
         }
-        return nodes.get(v).lon;
+        return csr.lons[i];
     }
 
     /**
@@ -166,10 +568,11 @@ public class GraphDB {
      * @return The latitude of that vertex, or 0.0 if the vertex is not in the graph.
      */
     double lat(long v) {
-        if (!nodes.containsKey(v)) {
+        int i = csr.indexOf(v);
+        if (i < 0) {
             return 0.0;
         }
-        return nodes.get(v).lat;
+        return csr.lats[i];
     }
 
     /**
@@ -178,7 +581,7 @@ public class GraphDB {
      * @return An iterable of all vertex IDs in the graph.
      */
     Iterable<Long> vertices() {
-        return nodes.keySet();
+        return csr.vertexIds();
     }
 
     /**
@@ -189,7 +592,11 @@ public class GraphDB {
      * iterable if the vertex is not in the graph.
      */
     Iterable<Long> adjacent(long v) {
-        return nodes.get(v).edgyHashMap.keySet();
+        int i = csr.indexOf(v);
+        if (i < 0) {
+            return Collections.emptyList();
+        }
+        return csr.neighborIds(i);
     }
 
     /**
@@ -202,10 +609,30 @@ public class GraphDB {
      * @source https://www.movable-type.co.uk/scripts/latlong.html
      */
     public double distance(long v, long w) {
-        double phi1 = Math.toRadians(lat(v));
-        double phi2 = Math.toRadians(lat(w));
-        double dphi = Math.toRadians(lat(w) - lat(v));
-        double dlambda = Math.toRadians(lon(w) - lon(v));
+        int i = csr.indexOf(v);
+        int j = csr.indexOf(w);
+        double latV = i < 0 ? 0.0 : csr.lats[i];
+        double lonV = i < 0 ? 0.0 : csr.lons[i];
+        double latW = j < 0 ? 0.0 : csr.lats[j];
+        double lonW = j < 0 ? 0.0 : csr.lons[j];
+        return distance(lonV, latV, lonW, latW);
+    }
+
+    /**
+     * Returns the great-circle distance between two points, in miles.
+     *
+     * @param lonV The longitude of the first point.
+     * @param latV The latitude of the first point.
+     * @param lonW The longitude of the second point.
+     * @param latW The latitude of the second point.
+     * @return The great-circle distance between the two points.
+     * @source https://www.movable-type.co.uk/scripts/latlong.html
+     */
+    static double distance(double lonV, double latV, double lonW, double latW) {
+        double phi1 = Math.toRadians(latV);
+        double phi2 = Math.toRadians(latW);
+        double dphi = Math.toRadians(latW - latV);
+        double dlambda = Math.toRadians(lonW - lonV);
 
         double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
         a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
@@ -221,73 +648,339 @@ public class GraphDB {
      * @return The ID for the vertex closest to the <code>lon</code> and <code>lat</code>.
      */
     public long closest(double lon, double lat) {
+        return csr.ids[closestIndex(lon, lat)];
+    }
 
-        double pointValueX = projectToX(lon, lat);
-        double pointValueY = projectToY(lon, lat);
-        if (pointValueX < minX) {
-            minX = pointValueX;
-        }
-        if (pointValueX > maxX) {
-            maxX = pointValueX;
+    /**
+     * Returns the dense index of the vertex closest to the given longitude and latitude, through
+     * the snap cache.
+     *
+     * @param lon The given longitude.
+     * @param lat The given latitude.
+     * @return The index into <code>csr()</code> of the closest vertex.
+     */
+    int closestIndex(double lon, double lat) {
+        return snapCache.closest(this, lon, lat);
+    }
+
+    /**
+     * Returns the dense index of the vertex in component <code>component</code> closest to the
+     * given longitude and latitude.
+     *
+     * @param lon       The given longitude.
+     * @param lat       The given latitude.
+     * @param component A component of <code>components()</code>, or -1 for any component.
+     * @return The index into <code>csr()</code> of the closest vertex.
+     */
+    int closestIndex(double lon, double lat, int component) {
+        return closestProjected(projectToX(lon, lat), projectToY(lon, lat), component);
+    }
+
+    /**
+     * Returns the dense index of the vertex in component <code>component</code> closest to the
+     * given point of the projection.
+     *
+     * @param x         The projected x coordinate, as from <code>projectToX</code>.
+     * @param y         The projected y coordinate, as from <code>projectToY</code>.
+     * @param component A component of <code>components()</code>, or -1 for any component.
+     * @return The index into <code>csr()</code> of the closest vertex.
+     */
+    int closestProjected(double x, double y, int component) {
+        SpatialIndex.Nearest best = new SpatialIndex.Nearest();
+        index.nearest(x, y, csr, components, component, best);
+        kdExtras.nearest(x, y, csr, components, component, best);
+        return best.vertex;
+    }
+
+    /**
+     * Returns the road segment closest to the given longitude and latitude, with the point on it
+     * closest to them. Unlike <code>closest</code>, this does not jump to the end of a long
+     * segment that passes right by the point.
+     *
+     * @param lon The given longitude.
+     * @param lat The given latitude.
+     * @return The closest segment, or null if the graph has no edges.
+     */
+    SegmentIndex.Hit nearestEdge(double lon, double lat) {
+        return nearestEdge(lon, lat, -1);
+    }
+
+    /**
+     * Returns the road segment in component <code>component</code> closest to the given
+     * longitude and latitude.
+     *
+     * @param lon       The given longitude.
+     * @param lat       The given latitude.
+     * @param component A component of <code>components()</code>, or -1 for any component.
+     * @return The closest segment, or null if there is none.
+     */
+    SegmentIndex.Hit nearestEdge(double lon, double lat, int component) {
+        return segments().nearest(projectToX(lon, lat), projectToY(lon, lat), components,
+                component);
+    }
+
+    /**
+     * Returns the ID of the vertex closest to each of a batch of points. The points are snapped in
+     * an order that keeps nearby points together, split across the common fork-join pool.
+     *
+     * @param lons The longitude of every point.
+     * @param lats The latitude of every point, in the same order.
+     * @return The ID of the vertex closest to each point, in the same order.
+     */
+    public long[] closest(double[] lons, double[] lats) {
+        int[] indices = BatchSnapper.closestIndices(this, lons, lats, ForkJoinPool.commonPool());
+        long[] out = new long[indices.length];
+        for (int i = 0; i < out.length; i += 1) {
+            out[i] = csr.ids[indices[i]];
         }
-        if (pointValueY < minY) {
-            minY = pointValueY;
+        return out;
+    }
+
+    /**
+     * Returns the IDs of the <code>k</code> vertices closest to the given longitude and latitude,
+     * closest first. Distances are measured in the same projection as <code>closest</code>.
+     *
+     * @param lon The given longitude.
+     * @param lat The given latitude.
+     * @param k   The number of vertices wanted.
+     * @return The IDs of the closest <code>k</code> vertices, or of every vertex if there are
+     * fewer.
+     */
+    public long[] kNearest(double lon, double lat, int k) {
+        SpatialIndex.Neighbors result = new SpatialIndex.Neighbors(Math.min(k, 1024));
+        kNearest(lon, lat, k, -1, result);
+        return ids(result);
+    }
+
+    /**
+     * Returns the IDs of every vertex within <code>miles</code> of the given longitude and
+     * latitude, closest first. Distances are measured in the same projection as
+     * <code>closest</code>, which near Berkeley is within a few parts per million of the
+     * great-circle distance.
+     *
+     * @param lon   The given longitude.
+     * @param lat   The given latitude.
+     * @param miles The radius of the search.
+     * @return The IDs of the vertices no farther than <code>miles</code> away.
+     */
+    public long[] withinRadius(double lon, double lat, double miles) {
+        SpatialIndex.Neighbors result = new SpatialIndex.Neighbors();
+        withinRadius(lon, lat, miles, -1, result);
+        return ids(result);
+    }
+
+    /**
+     * Finds the <code>k</code> vertices in component <code>component</code> closest to the given
+     * longitude and latitude. Reusing <code>result</code> across calls avoids allocation.
+     *
+     * @param lon       The given longitude.
+     * @param lat       The given latitude.
+     * @param k         The number of vertices wanted.
+     * @param component A component of <code>components()</code>, or -1 for any component.
+     * @param result    Receives the dense indices of the vertices found, closest first.
+     * @return The number of vertices found.
+     */
+    int kNearest(double lon, double lat, int k, int component, SpatialIndex.Neighbors result) {
+        result.reset(Math.max(0, k), Double.POSITIVE_INFINITY);
+        return search(lon, lat, component, result);
+    }
+
+    /**
+     * Finds every vertex in component <code>component</code> within <code>miles</code> of the
+     * given longitude and latitude. Reusing <code>result</code> across calls avoids allocation.
+     *
+     * @param lon       The given longitude.
+     * @param lat       The given latitude.
+     * @param miles     The radius of the search.
+     * @param component A component of <code>components()</code>, or -1 for any component.
+     * @param result    Receives the dense indices of the vertices found, closest first.
+     * @return The number of vertices found.
+     */
+    int withinRadius(double lon, double lat, double miles, int component,
+                     SpatialIndex.Neighbors result) {
+        double radius = miles / R;
+        result.reset(Integer.MAX_VALUE, Math.nextUp(radius * radius));
+        return search(lon, lat, component, result);
+    }
+
+    private int search(double lon, double lat, int component, SpatialIndex.Neighbors result) {
+        neighborsProjected(projectToX(lon, lat), projectToY(lon, lat), component, result);
+        return result.size;
+    }
+
+    /**
+     * Adds to <code>result</code> the vertices in component <code>component</code> closer to the
+     * given point of the projection than its current worst entry, and sorts them closest first.
+     *
+     * @param x         The projected x coordinate, as from <code>projectToX</code>.
+     * @param y         The projected y coordinate, as from <code>projectToY</code>.
+     * @param component A component of <code>components()</code>, or -1 for any component.
+     * @param result    Receives the dense indices of the vertices found, reset by the caller.
+     */
+    void neighborsProjected(double x, double y, int component, SpatialIndex.Neighbors result) {
+        index.neighbors(x, y, csr, components, component, result);
+        kdExtras.neighbors(x, y, csr, components, component, result);
+        result.sort();
+    }
+
+    /**
+     * Returns the IDs of every vertex inside the bounds of a raster, such as the part of the map
+     * that one response shows.
+     *
+     * @param raster The raster whose upper-left and lower-right corners bound the query.
+     * @return The IDs of the vertices inside the raster, in no particular order.
+     */
+    public long[] verticesIn(RasterResultParams raster) {
+        return verticesIn(raster.rasterUlLon, raster.rasterUlLat, raster.rasterLrLon,
+                raster.rasterLrLat);
+    }
+
+    /**
+     * Returns the IDs of every vertex inside the box between the given corners, edges
+     * included.
+     *
+     * @param ullon The longitude of the upper-left corner.
+     * @param ullat The latitude of the upper-left corner.
+     * @param lrlon The longitude of the lower-right corner.
+     * @param lrlat The latitude of the lower-right corner.
+     * @return The IDs of the vertices inside the box, in no particular order.
+     */
+    public long[] verticesIn(double ullon, double ullat, double lrlon, double lrlat) {
+        SpatialIndex.Matches result = new SpatialIndex.Matches();
+        verticesIn(ullon, ullat, lrlon, lrlat, result);
+        return ids(result.items, result.size);
+    }
+
+    /**
+     * Finds every vertex inside the box between the given corners. The spatial index is asked
+     * for the vertices in a projected box that holds the whole query box, and those are then
+     * checked against it by longitude and latitude, so the work done is proportional to what is
+     * inside the box rather than to the size of the graph. Reusing <code>result</code> across
+     * calls avoids allocation.
+     *
+     * @param ullon  The longitude of the upper-left corner.
+     * @param ullat  The latitude of the upper-left corner.
+     * @param lrlon  The longitude of the lower-right corner.
+     * @param lrlat  The latitude of the lower-right corner.
+     * @param result Receives the dense indices of the vertices found.
+     * @return The number of vertices found.
+     */
+    int verticesIn(double ullon, double ullat, double lrlon, double lrlat,
+                   SpatialIndex.Matches result) {
+        result.clear();
+        double[] box = projectBox(ullon, ullat, lrlon, lrlat);
+        index.range(box[0], box[1], box[2], box[3], csr, result);
+        kdExtras.range(box[0], box[1], box[2], box[3], csr, result);
+        int kept = 0;
+        for (int k = 0; k < result.size; k += 1) {
+            int v = result.items[k];
+            if (csr.lons[v] >= ullon && csr.lons[v] <= lrlon && csr.lats[v] >= lrlat
+                    && csr.lats[v] <= ullat) {
+                result.items[kept] = v;
+                kept += 1;
+            }
         }
-        if (pointValueY > maxY) {
-            maxY = pointValueY;
+        result.size = kept;
+        return kept;
+    }
+
+    /**
+     * Finds every road segment that passes through the box between the given corners, drawing
+     * each as a straight line in longitude and latitude as <code>MapServer</code> does. Each
+     * undirected edge is found once, as its adjacency entry from the lower vertex index to the
+     * higher. Reusing <code>result</code> across calls avoids allocation.
+     *
+     * @param ullon  The longitude of the upper-left corner.
+     * @param ullat  The latitude of the upper-left corner.
+     * @param lrlon  The longitude of the lower-right corner.
+     * @param lrlat  The latitude of the lower-right corner.
+     * @param result Receives the adjacency entries of the segments found, in no particular order.
+     * @return The number of segments found.
+     */
+    int segmentsIn(double ullon, double ullat, double lrlon, double lrlat,
+                   SpatialIndex.Matches result) {
+        result.clear();
+        double[] box = projectBox(ullon, ullat, lrlon, lrlat);
+        segments().range(box[0], box[1], box[2], box[3], result);
+        int kept = 0;
+        for (int k = 0; k < result.size; k += 1) {
+            int e = result.items[k];
+            int v = csr.source(e);
+            int w = csr.targets[e];
+            if (crosses(csr.lons[v], csr.lats[v], csr.lons[w], csr.lats[w], ullon, lrlat, lrlon,
+                    ullat)) {
+                result.items[kept] = e;
+                kept += 1;
+            }
         }
-        Box boundingBox = new Box(minX, maxY, maxX, minY);
-        currentClosestNode = null;
-        closestHelper(root, pointValueX, pointValueY, boundingBox);
-        return currentClosestNode.nodeId;
+        result.size = kept;
+        return kept;
     }
 
-    public void closestHelper(KdNode currNode, double x, double y, Box currBox) {
-        if (currNode == null) {
-            return;
+    /**
+     * Returns the smallest box of the projection that holds the box between the given corners.
+     * Across a box in one hemisphere, x is extreme at the corners, and so is y except along the
+     * central meridian, where the parallels bulge toward the pole; both corners on it are
+     * included when it crosses the box. The box is widened by a hair against rounding.
+     */
+    private static double[] projectBox(double ullon, double ullat, double lrlon, double lrlat) {
+        double[] lons = {ullon, lrlon, ullon, lrlon, ROOT_LON, ROOT_LON};
+        double[] lats = {ullat, ullat, lrlat, lrlat, ullat, lrlat};
+        int points = ullon <= ROOT_LON && ROOT_LON <= lrlon ? 6 : 4;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < points; k += 1) {
+            double x = projectToX(lons[k], lats[k]);
+            double y = projectToY(lons[k], lats[k]);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
         }
-        if (euclideanNodeMod(x, y, currNode) < euclideanNodeMod(x, y, currentClosestNode)) {
-            //found a shorter distance point (champion)
-            currentClosestNode = currNode;
-        }
-        if (currNode.xOrY == 0) {
-            Box leftBox = new Box(minX, maxY, currNode.x, minY);
-            Box rightBox = new Box(currNode.x, maxY, maxX, minY);
-            if (x <= currNode.x) {
-                //in the left
-                closestHelper(currNode.left, x, y, leftBox);
-                if (euclideanNodeMod(x, y, currentClosestNode) < rightBox.pointToBox(x, y)) {
-                    return;
-                }
-                closestHelper(currNode.right, x, y, rightBox);
-            } else {
-                //in the right
-                closestHelper(currNode.right, x, y, rightBox);
-                if (euclideanNodeMod(x, y, currentClosestNode) < leftBox.pointToBox(x, y)) {
-                    return;
-                }
-                closestHelper(currNode.left, x, y, leftBox);
-            }
-        } else {
-            Box bottomBox = new Box(minX, currNode.y, maxX, minY);
-            Box topBox = new Box(minX, maxY, maxX, currNode.y);
-            if (y <= currNode.y) {
-                //in the bottom
-                closestHelper(currNode.left, x, y, bottomBox);
-                if (euclideanNodeMod(x, y, currentClosestNode) < topBox.pointToBox(x, y)) {
-                    return;
-                }
-                closestHelper(currNode.right, x, y, topBox);
-            } else {
-                //in the top
-                closestHelper(currNode.right, x, y, topBox);
-                if (euclideanNodeMod(x, y, currentClosestNode) < bottomBox.pointToBox(x, y)) {
-                    return;
-                }
-                closestHelper(currNode.left, x, y, bottomBox);
-            }
+        double margin = 1e-12;
+        return new double[]{minX - margin, minY - margin, maxX + margin, maxY + margin};
+    }
+
+    /**
+     * Returns whether the segment from <code>(ax, ay)</code> to <code>(bx, by)</code> touches the
+     * box from <code>(minX, minY)</code> to <code>(maxX, maxY)</code>, by clipping the segment's
+     * parameter range to each slab of the box in turn.
+     */
+    static boolean crosses(double ax, double ay, double bx, double by, double minX, double minY,
+                           double maxX, double maxY) {
+        double[] range = {0, 1};
+        return clip(ax, bx - ax, minX, maxX, range) && clip(ay, by - ay, minY, maxY, range);
+    }
+
+    /**
+     * Narrows <code>range</code> to the parameters <code>t</code> at which
+     * <code>start + t * delta</code> lies in <code>[min, max]</code>, and returns whether any
+     * are left.
+     */
+    private static boolean clip(double start, double delta, double min, double max,
+                                double[] range) {
+        if (delta == 0) {
+            return start >= min && start <= max;
         }
+        double enter = (min - start) / delta;
+        double exit = (max - start) / delta;
+        range[0] = Math.max(range[0], Math.min(enter, exit));
+        range[1] = Math.min(range[1], Math.max(enter, exit));
+        return range[0] <= range[1];
+    }
 
+    private long[] ids(SpatialIndex.Neighbors result) {
+        return ids(result.vertices, result.size);
+    }
+
+    private long[] ids(int[] vertices, int count) {
+        long[] out = new long[count];
+        for (int i = 0; i < count; i += 1) {
+            out[i] = csr.ids[vertices[i]];
+        }
+        return out;
     }
 
     /**
@@ -346,175 +1039,162 @@ public class GraphDB {
     }
 
     public void addEdge(long v1, long v2) {
-        Edge temp1 = new Edge(v1, v2);
-        Edge temp2 = new Edge(v2, v1);
+        addEdge(v1, v2, -1);
+    }
+
+    /**
+     * Adds an edge between <code>v1</code> and <code>v2</code> that belongs to a way. A self
+     * loop, from a way that repeats a node, is dropped as <code>GraphBuilder</code> drops it: it
+     * is never on a shortest path.
+     *
+     * @param v1  The ID of one endpoint.
+     * @param v2  The ID of the other endpoint.
+     * @param way The index of the way, as returned by <code>addWay</code>, or -1.
+     */
+    void addEdge(long v1, long v2, int way) {
+        if (v1 == v2) {
+            return;
+        }
+        Edge temp1 = new Edge(v1, v2, way);
+        Edge temp2 = new Edge(v2, v1, way);
         //adding vertex data to vertices
         nodes.get(v1).edgyHashMap.put(v2, temp1);
         nodes.get(v2).edgyHashMap.put(v1, temp2);
+    }
 
-        nodeEdges.put(v1, nodes.get(v1).edgyHashMap);
-        nodeEdges.put(v2, nodes.get(v2).edgyHashMap);
+    /**
+     * Records the metadata of a way while the graph is built.
+     *
+     * @param name     The name tag of the way, or null.
+     * @param highway  The highway tag of the way, or null.
+     * @param maxSpeed The maxspeed tag of the way, or null.
+     * @return The index to pass to <code>addEdge</code> for the edges of this way.
+     */
+    int addWay(String name, String highway, String maxSpeed) {
+        return wayTable.intern(name, highway, maxSpeed);
     }
 
-    KdNode buildKdTree(Set<Long> list, int depth, KdNode curr) {
-        int n = list.size();
-        if (n <= 0) {
-            return null;
+    /**
+     * Records the node references of a highway way while the graph is built, so that later
+     * updates can find the edges the way contributed.
+     *
+     * @param id   The OSM ID of the way.
+     * @param refs The OSM IDs of the nodes along the way.
+     */
+    void addWayRefs(long id, List<Long> refs) {
+        long[] array = new long[refs.size()];
+        int k = 0;
+        for (long ref : refs) {
+            array[k] = ref;
+            k += 1;
         }
-        ArrayList<Double> sortedList = sortList(depth % 2, list);
-        double median = sortedList.get(sortedList.size() / 2);
+        osmWays.add(id, array, 0, array.length);
+    }
 
-        if (depth % 2 == 0) {
-            curr = new KdNode(kdNodesX.get(median), 0);
-            HashSet<Long> firstHalf = new HashSet<>();
-            HashSet<Long> secondHalf = new HashSet<>();
-            for (int i = 0; i < sortedList.size() / 2; i++) {
-                firstHalf.add(kdNodesX.get(sortedList.get(i)));
-            }
-            curr.left = buildKdTree(firstHalf, depth + 1, curr.left);
-            for (int i = sortedList.size() / 2 + 1; i < sortedList.size(); i++) {
-                secondHalf.add(kdNodesX.get(sortedList.get(i)));
-            }
-            curr.right = buildKdTree(secondHalf, depth + 1, curr.right);
-            return curr;
+    /**
+     * Returns the name of the way that the edge between <code>v</code> and <code>w</code>
+     * belongs to.
+     *
+     * @param v The ID of one endpoint.
+     * @param w The ID of the other endpoint.
+     * @return The way's name, or null if there is no such edge or the way is unnamed.
+     */
+    String wayName(long v, long w) {
+        int way = wayBetween(v, w);
+        return way < 0 ? null : csr.wayTable.names[way];
+    }
 
-        } else {
-            curr = new KdNode(kdNodesY.get(median), 1);
-            HashSet<Long> firstHalf = new HashSet<>();
-            HashSet<Long> secondHalf = new HashSet<>();
-            for (int i = 0; i < sortedList.size() / 2; i++) {
-                firstHalf.add(kdNodesY.get(sortedList.get(i)));
-            }
-            curr.left = buildKdTree(firstHalf, depth + 1, curr.left);
-            for (int i = sortedList.size() / 2 + 1; i < sortedList.size(); i++) {
-                secondHalf.add(kdNodesY.get(sortedList.get(i)));
-            }
-            curr.right = buildKdTree(secondHalf, depth + 1, curr.right);
-            return curr;
+    /**
+     * Returns the index into <code>ways()</code> of the way that the edge between
+     * <code>v</code> and <code>w</code> belongs to.
+     *
+     * @param v The ID of one endpoint.
+     * @param w The ID of the other endpoint.
+     * @return The way index, or -1 if there is no such edge or its way is unknown.
+     */
+    int wayBetween(long v, long w) {
+        int i = csr.indexOf(v);
+        int j = csr.indexOf(w);
+        if (i < 0 || j < 0) {
+            return -1;
         }
+        int e = csr.edgeIndex(i, j);
+        return e < 0 ? -1 : csr.ways[e];
     }
 
+    /** Returns the metadata of every way in the graph. */
+    WayTable ways() {
+        return csr.wayTable;
+    }
 
+    /**
+     * Records a tag of the node with ID <code>id</code> while the graph is built.
+     *
+     * @param id    The ID of the node.
+     * @param key   The tag key.
+     * @param value The tag value.
+     */
+    void addTag(long id, String key, String value) {
+        tags.add(id, key, value);
+    }
 
-    public ArrayList sortList(int i, Set<Long> list) {
-        ArrayList<Double> medianFinder = new ArrayList<>();
-        if (i == 0) {
-            for (long l : list) {
-                KdNode n = new KdNode(l, i);
-                if (n.x < minX) {
-                    minX = n.x;
-                }
-                if (n.x > maxX) {
-                    maxX = n.x;
-                }
-                medianFinder.add(n.x);
-                kdNodes.put(l, n);
-                kdNodesX.put(n.x, l);
-            }
-            medianFinder.sort((a, b) -> Double.compare(a, b));
-        } else {
-            for (long l : list) {
-                KdNode n = new KdNode(l, i);
-                if (n.y < minY) {
-                    minY = n.y;
-                }
-                if (n.y > maxY) {
-                    maxY = n.y;
-                }
-                medianFinder.add(n.y);
-                kdNodes.put(l, n);
-                kdNodesY.put(n.y, l);
-            }
-            medianFinder.sort((a, b) -> Double.compare(a, b));
-        }
-        return medianFinder;
+    /**
+     * Returns the value of tag <code>key</code> on vertex <code>v</code>.
+     *
+     * @param v   The ID of a vertex.
+     * @param key The tag key, such as "name".
+     * @return The tag value, or null if <code>v</code> is not in the graph or lacks the tag.
+     */
+    String tag(long v, String key) {
+        int i = csr.indexOf(v);
+        return i < 0 ? null : csr.tags.get(i, key);
+    }
+
+    /**
+     * Returns every tag of vertex <code>v</code>.
+     *
+     * @param v The ID of a vertex.
+     * @return An unmodifiable map from key to value, empty if <code>v</code> has no tags.
+     */
+    Map<String, String> tags(long v) {
+        int i = csr.indexOf(v);
+        return i < 0 ? Collections.emptyMap() : csr.tags.tags(i);
+    }
+
+    /**
+     * Returns the KD-tree as the vertex order from which <code>KdTree.restore</code> recreates
+     * it, or an empty order if the graph is searched through another kind of index.
+     */
+    int[] kdTreeOrder() {
+        return index instanceof KdTree ? ((KdTree) index).vertices : new int[0];
     }
 
-    //node class that put lat and lon info into a hash map
+    //build-time node class that put lat and lon info into a hash map; frozen into CSRGraph
     static class Node {
         long id;
         double lat;
         double lon;
 
-        HashMap<String, String> extraInfo;
         HashMap<Long, Edge> edgyHashMap;
 
         Node(long id, double lon, double lat) {
             this.id = id;
             this.lon = lon;
             this.lat = lat;
-            this.extraInfo = new HashMap<>();
             this.edgyHashMap = new HashMap<>();
         }
     }
 
-    //second node class to handle kd tree
-    //verticalOrHorizontal: when 0 is x, 1 is y
-    private class KdNode {
-        long nodeId;
-        double x;
-        double y;
-        int xOrY;
-        private KdNode left;
-        private KdNode right;
-
-        KdNode(long nodeId, int xOrY) {
-            this.nodeId = nodeId;
-            this.xOrY = xOrY;
-            x = projectToX(getNode(nodeId).lon, getNode(nodeId).lat);
-            y = projectToY(getNode(nodeId).lon, getNode(nodeId).lat);
-        }
-
-        KdNode() {
-        }
-    }
-
-    class Box {
-        double topLeftX;
-        double topLeftY;
-        double bottomRightX;
-        double bottomRightY;
-
-        Box(double minX, double maxY, double maxX, double minY) {
-            topLeftX = minX;
-            topLeftY = maxY;
-            bottomRightX = maxX;
-            bottomRightY = minY;
-        }
-
-        public boolean containsNode(double x, double y) {
-            if (x >= topLeftX && x <= bottomRightX
-                    && y >= bottomRightY && y <= topLeftY) {
-                return true;
-            }
-            return false;
-        }
-
-        public double pointToBox(double x, double y) {
-            if (containsNode(x, y)) {
-                return 0;
-            } else if ((x >= topLeftX && x <= bottomRightX)) {
-                return Math.min(Math.abs(y - topLeftY), Math.abs(y - bottomRightY));
-            } else if ((y <= topLeftY && y >= bottomRightY)) {
-                return Math.min(Math.abs(x - topLeftX), Math.abs(x - bottomRightX));
-            } else {
-                double lefttop = euclideanDistance(x, y, topLeftX, topLeftY);
-                double righttop = euclideanDistance(x, y, bottomRightX, topLeftY);
-                double leftbottom = euclideanDistance(x, y, topLeftX, bottomRightY);
-                double rightbottom = euclideanDistance(x, y, bottomRightX, bottomRightY);
-                return Math.min(lefttop, Math.min(righttop, Math.min(leftbottom, rightbottom)));
-            }
-        }
-    }
-
-    private class Edge {
+    static class Edge {
 
-        private long from;
-        private long to;
+        long from;
+        long to;
+        int way;
 
-        Edge(long from, long to) {
+        Edge(long from, long to, int way) {
             this.from = from;
             this.to = to;
+            this.way = way;
         }
 
         public String toString() {
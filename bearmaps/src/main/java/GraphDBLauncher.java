@@ -10,13 +10,17 @@ public class GraphDBLauncher {
     private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
 
     public static void main(String[] args) {
-        GraphDB g = new GraphDB(OSM_DB_PATH);
+        GraphDB g = GraphDB.load(OSM_DB_PATH);
         List<Long> vertices = new ArrayList<>();
         for (long v : g.vertices()) {
             vertices.add(v);
         }
 
         System.out.println("There are " + vertices.size() + " vertices in the graph.");
+        System.out.println("They form " + g.components() + ".");
+        for (int[] row : g.components().sizeHistogram()) {
+            System.out.println("  " + row[1] + " component(s) of " + row[0] + " vertices");
+        }
 
         System.out.println("The first 10 vertices are:");
         for (int i = 0; i < 10; i += 1) {
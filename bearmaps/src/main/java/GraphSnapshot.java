@@ -0,0 +1,317 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes binary snapshots of a built <code>GraphDB</code> so that later starts can skip
+ * parsing the OSM XML file. A snapshot holds the CSR arrays, the way table, the KD-tree, the
+ * vertex tag store and the node references of the highway ways, and is laid out as follows (all
+ * values big-endian):
+ *
+ * <pre>
+ * long    MAGIC
+ * int     VERSION
+ * long    length of the source XML file
+ * long    last-modified time of the source XML file
+ * int     n, the number of vertices
+ * int     m, the number of adjacency entries
+ * long[n] ids, double[n] lats, double[n] lons, int[n + 1] offsets, int[m] targets,
+ *         double[m] weights, int[m] ways
+ * int     w, then w times three strings (name, highway, maxspeed) of the way table
+ * int     k, then int[k] KD-tree vertex order; k is 0 if another index was configured
+ * int     a, then a strings (tag keys); int b, then b strings (tag values)
+ * int     t, int e, then int[t] tagged vertices, int[t + 1] tag offsets, int[e] tag keys,
+ *         int[e] tag values
+ * int     h, int r, then long[h] highway way IDs, int[h + 1] ref offsets, long[r] node refs
+ * long    CRC32 of every preceding byte
+ * </pre>
+ *
+ * where a string is an int byte length (or -1 for null) followed by that many UTF-8 bytes.
+ *
+ * Snapshots are read through a memory-mapped <code>FileChannel</code>, so loading costs little
+ * more than copying the arrays out of the page cache.
+ */
+class GraphSnapshot {
+    /** Identifies a snapshot file: "BMAPSNAP" in ASCII. */
+    private static final long MAGIC = 0x424D4150534E4150L;
+    /** Bumped whenever the layout changes; snapshots of any other version are rebuilt. */
+    static final int VERSION = 5;
+    /** Suffix appended to the XML path to locate its snapshot. */
+    private static final String SUFFIX = ".snap";
+
+    private GraphSnapshot() {
+    }
+
+    /**
+     * Returns the snapshot path used for the XML file at <code>dbPath</code>.
+     *
+     * @param dbPath Path to an OSM XML file.
+     * @return Path of the snapshot kept next to it.
+     */
+    static String pathFor(String dbPath) {
+        return dbPath + SUFFIX;
+    }
+
+    /**
+     * Writes a snapshot of <code>g</code>, stamped with the size and modification time of the
+     * XML file it was built from. The file is written next to its final location and moved into
+     * place, so a concurrent reader never sees a partial snapshot. A graph that has been updated
+     * is compacted before it is written.
+     *
+     * @param g            The graph to save.
+     * @param snapshotPath Where to write the snapshot.
+     * @param sourcePath   Path to the XML file <code>g</code> was built from.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    static void write(GraphDB g, String snapshotPath, String sourcePath) throws IOException {
+        if (!g.csr().isCompact()) {
+            g = g.compacted();
+        }
+        CSRGraph csr = g.csr();
+        File source = new File(sourcePath);
+        Path snapshot = Paths.get(snapshotPath);
+        Path temp = Paths.get(snapshotPath + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                     new BufferedOutputStream(fos, 1 << 16), crc))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+
+            int n = csr.size();
+            out.writeInt(n);
+            out.writeInt(csr.targets.length);
+            for (long id : csr.ids) {
+                out.writeLong(id);
+            }
+            for (double lat : csr.lats) {
+                out.writeDouble(lat);
+            }
+            for (double lon : csr.lons) {
+                out.writeDouble(lon);
+            }
+            for (int offset : csr.offsets) {
+                out.writeInt(offset);
+            }
+            for (int target : csr.targets) {
+                out.writeInt(target);
+            }
+            for (double weight : csr.weights) {
+                out.writeDouble(weight);
+            }
+            for (int way : csr.ways) {
+                out.writeInt(way);
+            }
+            WayTable ways = csr.wayTable;
+            out.writeInt(ways.size());
+            for (int w = 0; w < ways.size(); w += 1) {
+                writeString(out, ways.names[w]);
+                writeString(out, ways.highways[w]);
+                writeString(out, ways.maxSpeeds[w]);
+            }
+
+            int[] kdOrder = g.kdTreeOrder();
+            out.writeInt(kdOrder.length);
+            for (int i : kdOrder) {
+                out.writeInt(i);
+            }
+
+            TagStore tags = csr.tags.compact();
+            out.writeInt(tags.keys.length);
+            for (String key : tags.keys) {
+                writeString(out, key);
+            }
+            out.writeInt(tags.values.length);
+            for (String value : tags.values) {
+                writeString(out, value);
+            }
+            out.writeInt(tags.vertices.length);
+            out.writeInt(tags.tagKeys.length);
+            for (int i : tags.vertices) {
+                out.writeInt(i);
+            }
+            for (int offset : tags.offsets) {
+                out.writeInt(offset);
+            }
+            for (int k : tags.tagKeys) {
+                out.writeInt(k);
+            }
+            for (int v : tags.tagValues) {
+                out.writeInt(v);
+            }
+
+            WayIndex osmWays = csr.osmWays.compact();
+            long[] wayIds = osmWays.ids();
+            long[] wayRefs = osmWays.refs();
+            out.writeInt(wayIds.length);
+            out.writeInt(wayRefs.length);
+            for (long id : wayIds) {
+                out.writeLong(id);
+            }
+            for (int offset : osmWays.offsets()) {
+                out.writeInt(offset);
+            }
+            for (long ref : wayRefs) {
+                out.writeLong(ref);
+            }
+            out.flush();
+            /* Written straight to the file so the checksum does not cover itself. */
+            new DataOutputStream(fos).writeLong(crc.getValue());
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads the snapshot at <code>snapshotPath</code> if it is usable. A snapshot is unusable if it
+     * is missing, was written by another version, fails its checksum, or was built from a source
+     * file whose size or modification time has since changed. A snapshot whose source file no
+     * longer exists is trusted, so that servers can be shipped the snapshot alone.
+     *
+     * @param snapshotPath Path to the snapshot.
+     * @param sourcePath   Path to the XML file the snapshot should have been built from.
+     * @return The loaded graph, or null if the snapshot is unusable.
+     * @throws IOException If the snapshot exists but cannot be read.
+     */
+    static GraphDB read(String snapshotPath, String sourcePath) throws IOException {
+        Path path = Paths.get(snapshotPath);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < Long.BYTES * 4 + Integer.BYTES || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getLong() != MAGIC || buf.getInt() != VERSION) {
+                return null;
+            }
+            File source = new File(sourcePath);
+            long sourceLength = buf.getLong();
+            long sourceModified = buf.getLong();
+            boolean changed = source.length() != sourceLength
+                    || source.lastModified() != sourceModified;
+            if (source.exists() && changed) {
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(0).limit((int) size - Long.BYTES);
+            crc.update(body);
+            if (buf.getLong((int) size - Long.BYTES) != crc.getValue()) {
+                return null;
+            }
+
+            int n = buf.getInt();
+            int m = buf.getInt();
+            long[] ids = new long[n];
+            double[] lats = new double[n];
+            double[] lons = new double[n];
+            int[] offsets = new int[n + 1];
+            int[] targets = new int[m];
+            buf.asLongBuffer().get(ids);
+            buf.position(buf.position() + n * Long.BYTES);
+            buf.asDoubleBuffer().get(lats);
+            buf.position(buf.position() + n * Double.BYTES);
+            buf.asDoubleBuffer().get(lons);
+            buf.position(buf.position() + n * Double.BYTES);
+            buf.asIntBuffer().get(offsets);
+            buf.position(buf.position() + (n + 1) * Integer.BYTES);
+            buf.asIntBuffer().get(targets);
+            buf.position(buf.position() + m * Integer.BYTES);
+            double[] weights = new double[m];
+            int[] ways = new int[m];
+            buf.asDoubleBuffer().get(weights);
+            buf.position(buf.position() + m * Double.BYTES);
+            buf.asIntBuffer().get(ways);
+            buf.position(buf.position() + m * Integer.BYTES);
+            int w = buf.getInt();
+            String[] wayNames = new String[w];
+            String[] wayHighways = new String[w];
+            String[] wayMaxSpeeds = new String[w];
+            for (int k = 0; k < w; k += 1) {
+                wayNames[k] = readString(buf);
+                wayHighways[k] = readString(buf);
+                wayMaxSpeeds[k] = readString(buf);
+            }
+            WayTable wayTable = new WayTable(wayNames, wayHighways, wayMaxSpeeds);
+
+            int[] kdOrder = new int[buf.getInt()];
+            buf.asIntBuffer().get(kdOrder);
+            buf.position(buf.position() + kdOrder.length * Integer.BYTES);
+
+            String[] keys = new String[buf.getInt()];
+            for (int k = 0; k < keys.length; k += 1) {
+                keys[k] = readString(buf);
+            }
+            String[] values = new String[buf.getInt()];
+            for (int v = 0; v < values.length; v += 1) {
+                values[v] = readString(buf);
+            }
+            int[] tagged = new int[buf.getInt()];
+            int[] tagOffsets = new int[tagged.length + 1];
+            int[] tagKeys = new int[buf.getInt()];
+            int[] tagValues = new int[tagKeys.length];
+            buf.asIntBuffer().get(tagged);
+            buf.position(buf.position() + tagged.length * Integer.BYTES);
+            buf.asIntBuffer().get(tagOffsets);
+            buf.position(buf.position() + tagOffsets.length * Integer.BYTES);
+            buf.asIntBuffer().get(tagKeys);
+            buf.position(buf.position() + tagKeys.length * Integer.BYTES);
+            buf.asIntBuffer().get(tagValues);
+            buf.position(buf.position() + tagValues.length * Integer.BYTES);
+            TagStore tags = new TagStore(keys, values, tagged, tagOffsets, tagKeys, tagValues);
+
+            long[] wayIds = new long[buf.getInt()];
+            int[] refOffsets = new int[wayIds.length + 1];
+            long[] wayRefs = new long[buf.getInt()];
+            buf.asLongBuffer().get(wayIds);
+            buf.position(buf.position() + wayIds.length * Long.BYTES);
+            buf.asIntBuffer().get(refOffsets);
+            buf.position(buf.position() + refOffsets.length * Integer.BYTES);
+            buf.asLongBuffer().get(wayRefs);
+            buf.position(buf.position() + wayRefs.length * Long.BYTES);
+            WayIndex osmWays = WayIndex.of(wayIds, refOffsets, wayRefs);
+
+            CSRGraph csr = new CSRGraph(ids, lats, lons, offsets, targets, weights, ways,
+                    wayTable, tags, osmWays);
+            return new GraphDB(csr, kdOrder);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
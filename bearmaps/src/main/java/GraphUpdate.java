@@ -0,0 +1,354 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Derives updated versions of a <code>CSRGraph</code> from OSM change files. The graph being
+ * updated is never modified, so requests still running against it are unaffected; the new
+ * version shares nothing mutable with it.
+ *
+ * Only the part of the graph a change touches is rebuilt from OSM IDs: the vertices on changed
+ * ways, changed nodes and their neighbors. Every other adjacency run is block-copied unchanged,
+ * and every vertex keeps its index, so structures keyed by vertex index, such as the KD-tree, stay
+ * valid for the vertices they already hold. A vertex that is added, moved, or regains edges after
+ * losing them all gets a fresh index appended to the arrays; the index it had before is left
+ * with no edges. Over many updates the appended indices pile up, and <code>compact</code>
+ * renumbers the graph from scratch.
+ *
+ * An edge is identified by its endpoints, so if two ways share a segment and one of them changes,
+ * the segment goes with the changed way. A way that gains a node the graph has never held, and
+ * which the change does not list, cannot be placed and loses the edges to that node, just as a
+ * full load drops edges to missing nodes. The same goes for nodes the change deletes.
+ */
+class GraphUpdate {
+    private GraphUpdate() {
+    }
+
+    /**
+     * Returns the graph that results from applying <code>change</code> to <code>csr</code>.
+     *
+     * @param csr    The graph to update; it is left unchanged.
+     * @param change The edits to apply.
+     * @return The updated graph.
+     */
+    static CSRGraph apply(CSRGraph csr, OsmChange change) {
+        /* The new adjacency of every touched vertex, as neighbor ID to way index. */
+        Map<Long, Map<Long, Integer>> adjacency = new HashMap<>();
+        Map<Long, long[]> wayRefs = new HashMap<>();
+
+        /*
+         * Take away the edges of every changed or deleted way before adding any, so that a
+         * segment passed from one changed way to another survives.
+         */
+        for (Map.Entry<Long, OsmChange.WayChange> entry : change.ways.entrySet()) {
+            long[] old = csr.osmWays.refs(entry.getKey());
+            if (old != null) {
+                for (int k = 0; k + 1 < old.length; k += 1) {
+                    touch(csr, adjacency, old[k]).remove(old[k + 1]);
+                    touch(csr, adjacency, old[k + 1]).remove(old[k]);
+                }
+            }
+            OsmChange.WayChange way = entry.getValue();
+            if (way != null && way.routable()) {
+                wayRefs.put(entry.getKey(), way.refs);
+            } else if (old != null) {
+                wayRefs.put(entry.getKey(), null);
+            }
+        }
+        WayTable wayTable = csr.wayTable;
+        WayTable.Builder ways = null;
+        for (OsmChange.WayChange way : change.ways.values()) {
+            if (way == null || !way.routable()) {
+                continue;
+            }
+            if (ways == null) {
+                ways = new WayTable.Builder(wayTable);
+            }
+            int index = ways.intern(way.name, way.highway, way.maxSpeed);
+            for (int k = 0; k + 1 < way.refs.length; k += 1) {
+                if (way.refs[k] != way.refs[k + 1]) {
+                    touch(csr, adjacency, way.refs[k]).put(way.refs[k + 1], index);
+                    touch(csr, adjacency, way.refs[k + 1]).put(way.refs[k], index);
+                }
+            }
+        }
+        if (ways != null) {
+            wayTable = ways.build();
+        }
+
+        /* Changed nodes need their edges measured again; deleted nodes lose them. */
+        for (Map.Entry<Long, OsmChange.NodeChange> entry : change.nodes.entrySet()) {
+            long id = entry.getKey();
+            Map<Long, Integer> edges = touch(csr, adjacency, id);
+            for (long neighbor : new ArrayList<>(edges.keySet())) {
+                Map<Long, Integer> back = touch(csr, adjacency, neighbor);
+                if (entry.getValue() == null) {
+                    back.remove(id);
+                }
+            }
+            if (entry.getValue() == null) {
+                edges.clear();
+            }
+        }
+
+        /*
+         * Place every touched vertex that still has edges. It keeps its index if it was in the
+         * graph and has not moved; otherwise it is appended, or, if its position is unknown,
+         * left out.
+         */
+        int n = csr.size();
+        Map<Long, Integer> slots = new HashMap<>();
+        long[] addedIds = new long[16];
+        double[] addedLats = new double[16];
+        double[] addedLons = new double[16];
+        int added = 0;
+        for (Map.Entry<Long, Map<Long, Integer>> entry : adjacency.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            long id = entry.getKey();
+            int slot = csr.slotOf(id);
+            OsmChange.NodeChange node = change.nodes.get(id);
+            double lon;
+            double lat;
+            if (node != null) {
+                lon = node.lon;
+                lat = node.lat;
+            } else if (slot >= 0) {
+                lon = csr.lons[slot];
+                lat = csr.lats[slot];
+            } else {
+                slots.put(id, -1);
+                continue;
+            }
+            if (slot >= 0 && csr.degree(slot) > 0 && lon == csr.lons[slot]
+                    && lat == csr.lats[slot]) {
+                slots.put(id, slot);
+                continue;
+            }
+            if (added == addedIds.length) {
+                addedIds = Arrays.copyOf(addedIds, added * 2);
+                addedLats = Arrays.copyOf(addedLats, added * 2);
+                addedLons = Arrays.copyOf(addedLons, added * 2);
+            }
+            addedIds[added] = id;
+            addedLats[added] = lat;
+            addedLons[added] = lon;
+            slots.put(id, n + added);
+            added += 1;
+        }
+
+        int size = n + added;
+        long[] ids = Arrays.copyOf(csr.ids, size);
+        double[] lats = Arrays.copyOf(csr.lats, size);
+        double[] lons = Arrays.copyOf(csr.lons, size);
+        System.arraycopy(addedIds, 0, ids, n, added);
+        System.arraycopy(addedLats, 0, lats, n, added);
+        System.arraycopy(addedLons, 0, lons, n, added);
+
+        /* Lay out the replaced runs, as (target, way) pairs packed into longs and sorted. */
+        Map<Integer, long[]> runs = new HashMap<>();
+        for (Map.Entry<Long, Map<Long, Integer>> entry : adjacency.entrySet()) {
+            long id = entry.getKey();
+            int oldSlot = csr.indexOf(id);
+            int slot = slots.getOrDefault(id, -1);
+            if (oldSlot >= 0 && oldSlot != slot) {
+                runs.put(oldSlot, new long[0]);
+            }
+            if (slot < 0) {
+                continue;
+            }
+            long[] run = new long[entry.getValue().size()];
+            int length = 0;
+            for (Map.Entry<Long, Integer> edge : entry.getValue().entrySet()) {
+                Integer target = slots.get(edge.getKey());
+                int j = target != null ? target : csr.indexOf(edge.getKey());
+                if (j >= 0) {
+                    run[length] = (long) j << 32 | (edge.getValue() & 0xFFFFFFFFL);
+                    length += 1;
+                }
+            }
+            run = Arrays.copyOf(run, length);
+            Arrays.sort(run);
+            runs.put(slot, run);
+        }
+
+        int[] offsets = new int[size + 1];
+        for (int i = 0; i < size; i += 1) {
+            long[] run = runs.get(i);
+            int degree = run != null ? run.length : i < n ? csr.degree(i) : 0;
+            offsets[i + 1] = offsets[i] + degree;
+        }
+        int m = offsets[size];
+        int[] targets = new int[m];
+        double[] weights = new double[m];
+        int[] edgeWays = new int[m];
+        int[] replaced = new int[runs.size()];
+        int r = 0;
+        for (int i : runs.keySet()) {
+            replaced[r] = i;
+            r += 1;
+        }
+        Arrays.sort(replaced);
+        int copied = 0;
+        for (int k = 0; k <= replaced.length; k += 1) {
+            /* Copy the untouched runs before the next replaced one in one block. */
+            int end = Math.min(k < replaced.length ? replaced[k] : n, n);
+            if (copied < end) {
+                int from = csr.offsets[copied];
+                int length = csr.offsets[end] - from;
+                System.arraycopy(csr.targets, from, targets, offsets[copied], length);
+                System.arraycopy(csr.weights, from, weights, offsets[copied], length);
+                System.arraycopy(csr.ways, from, edgeWays, offsets[copied], length);
+            }
+            if (k == replaced.length) {
+                break;
+            }
+            int i = replaced[k];
+            long[] run = runs.get(i);
+            for (int e = 0; e < run.length; e += 1) {
+                int j = (int) (run[e] >>> 32);
+                targets[offsets[i] + e] = j;
+                weights[offsets[i] + e] = GraphDB.distance(lons[i], lats[i], lons[j], lats[j]);
+                edgeWays[offsets[i] + e] = (int) run[e];
+            }
+            copied = Math.max(copied, i + 1);
+        }
+
+        /* Point the OSM IDs of appended vertices at their new indices. */
+        TreeMap<Long, Integer> tail = new TreeMap<>();
+        for (int k = 0; k < csr.tailIds.length; k += 1) {
+            tail.put(csr.tailIds[k], csr.tailIndices[k]);
+        }
+        for (int k = 0; k < added; k += 1) {
+            tail.put(addedIds[k], n + k);
+        }
+        /* Deleted nodes are marked so that a later way cannot bring them back. */
+        for (Map.Entry<Long, OsmChange.NodeChange> entry : change.nodes.entrySet()) {
+            if (entry.getValue() == null && csr.slotOf(entry.getKey()) >= 0) {
+                tail.put(entry.getKey(), -1);
+            }
+        }
+        long[] tailIds = new long[tail.size()];
+        int[] tailIndices = new int[tail.size()];
+        int t = 0;
+        for (Map.Entry<Long, Integer> entry : tail.entrySet()) {
+            tailIds[t] = entry.getKey();
+            tailIndices[t] = entry.getValue();
+            t += 1;
+        }
+
+        /* Changed nodes bring their tags; appended vertices that did not change keep theirs. */
+        Map<Integer, Map<String, String>> tags = new HashMap<>();
+        for (OsmChange.NodeChange node : change.nodes.values()) {
+            if (node != null && slots.getOrDefault(node.id, -1) >= 0) {
+                tags.put(slots.get(node.id), node.tags);
+            }
+        }
+        for (int k = 0; k < added; k += 1) {
+            int old = csr.slotOf(addedIds[k]);
+            if (!change.nodes.containsKey(addedIds[k]) && old >= 0) {
+                tags.put(n + k, csr.tags.tags(old));
+            }
+        }
+
+        return new CSRGraph(ids, lats, lons, offsets, targets, weights, edgeWays, wayTable,
+                tags.isEmpty() ? csr.tags : csr.tags.with(tags),
+                wayRefs.isEmpty() ? csr.osmWays : csr.osmWays.with(wayRefs),
+                csr.sortedCount, tailIds, tailIndices);
+    }
+
+    /**
+     * Returns the adjacency of vertex <code>id</code> being rebuilt, starting it from the
+     * vertex's current edges the first time the vertex is touched.
+     */
+    private static Map<Long, Integer> touch(CSRGraph csr, Map<Long, Map<Long, Integer>> adjacency,
+                                            long id) {
+        Map<Long, Integer> edges = adjacency.get(id);
+        if (edges == null) {
+            edges = new HashMap<>();
+            int i = csr.indexOf(id);
+            if (i >= 0) {
+                for (int e = csr.offsets[i]; e < csr.offsets[i + 1]; e += 1) {
+                    edges.put(csr.ids[csr.targets[e]], csr.ways[e]);
+                }
+            }
+            adjacency.put(id, edges);
+        }
+        return edges;
+    }
+
+    /**
+     * Returns an equivalent graph in which every vertex has edges and vertex indices are again in
+     * increasing order of OSM ID, as if the graph had been loaded from scratch.
+     *
+     * @param csr The graph to compact; it is left unchanged.
+     * @return The compacted graph.
+     */
+    static CSRGraph compact(CSRGraph csr) {
+        int n = csr.size();
+        List<Long> live = new ArrayList<>();
+        for (long id : csr.vertexIds()) {
+            live.add(id);
+        }
+        long[] ids = new long[live.size()];
+        for (int k = 0; k < ids.length; k += 1) {
+            ids[k] = live.get(k);
+        }
+        Arrays.sort(ids);
+        int[] newIndex = new int[n];
+        int[] oldIndex = new int[ids.length];
+        Arrays.fill(newIndex, -1);
+        for (int i = 0; i < n; i += 1) {
+            if (csr.degree(i) > 0) {
+                newIndex[i] = Arrays.binarySearch(ids, csr.ids[i]);
+                oldIndex[newIndex[i]] = i;
+            }
+        }
+
+        double[] lats = new double[ids.length];
+        double[] lons = new double[ids.length];
+        int[] offsets = new int[ids.length + 1];
+        for (int k = 0; k < ids.length; k += 1) {
+            lats[k] = csr.lats[oldIndex[k]];
+            lons[k] = csr.lons[oldIndex[k]];
+            offsets[k + 1] = offsets[k] + csr.degree(oldIndex[k]);
+        }
+        /* Updates append ways without looking for them in the table; intern them again. */
+        WayTable.Builder table = new WayTable.Builder();
+        int[] wayRemap = new int[csr.wayTable.size()];
+        for (int w = 0; w < wayRemap.length; w += 1) {
+            wayRemap[w] = table.intern(csr.wayTable.names[w], csr.wayTable.highways[w],
+                    csr.wayTable.maxSpeeds[w]);
+        }
+        WayTable wayTable = table.build();
+
+        int[] targets = new int[offsets[ids.length]];
+        double[] weights = new double[targets.length];
+        int[] ways = new int[targets.length];
+        long[] run = new long[0];
+        for (int k = 0; k < ids.length; k += 1) {
+            int i = oldIndex[k];
+            int start = csr.offsets[i];
+            int degree = csr.degree(i);
+            if (run.length < degree) {
+                run = new long[degree];
+            }
+            for (int e = 0; e < degree; e += 1) {
+                run[e] = (long) newIndex[csr.targets[start + e]] << 32 | e;
+            }
+            Arrays.sort(run, 0, degree);
+            for (int e = 0; e < degree; e += 1) {
+                int from = start + (int) run[e];
+                targets[offsets[k] + e] = (int) (run[e] >>> 32);
+                weights[offsets[k] + e] = csr.weights[from];
+                ways[offsets[k] + e] = csr.ways[from] < 0 ? -1 : wayRemap[csr.ways[from]];
+            }
+        }
+        return new CSRGraph(ids, lats, lons, offsets, targets, weights, ways, wayTable,
+                csr.tags.remap(newIndex, ids.length), csr.osmWays.compact());
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * A uniform grid over projected vertex positions, laid out like a CSR graph: the vertices are
+ * sorted by cell into one array, with their coordinates copied alongside, and the vertices of
+ * cell <code>c</code> are those at positions <code>[starts[c], starts[c + 1])</code>. Cells are
+ * square and sized to hold about <code>PER_CELL</code> vertices on average, numbered row by row.
+ *
+ * A search scans the three by three block of cells around the query point, each row of it one
+ * contiguous run of positions, then rings of cells around that, one cell wider each time, until
+ * the nearest edge of the scanned square is farther away than the worst vertex it still wants.
+ * Where vertices are spread evenly, as road junctions are across a city, the first block almost
+ * always settles the search whatever the size of the graph; where they are clustered, cells are
+ * crowded or empty, and a <code>KdTree</code> does better.
+ */
+class GridIndex implements SpatialIndex {
+    /** The average number of vertices per cell that the grid is sized for. */
+    static final int PER_CELL = 2;
+
+    /** The vertex indices, sorted by cell. */
+    final int[] vertices;
+    /**
+     * The projected x and y coordinates of <code>vertices[p]</code> at positions
+     * <code>2p</code> and <code>2p + 1</code>, side by side so that a cell is one run of memory.
+     */
+    private final double[] coordinates;
+    /** The first position of every cell, and the number of vertices at the end. */
+    private final int[] starts;
+    private final int columns;
+    private final int rows;
+    /** The projected coordinates of the lower left corner of the grid. */
+    private final double minX;
+    private final double minY;
+    /** The side of a cell, in projected units. */
+    private final double side;
+
+    private GridIndex(int[] vertices, double[] coordinates, int[] starts, int columns, int rows,
+                      double minX, double minY, double side) {
+        this.vertices = vertices;
+        this.coordinates = coordinates;
+        this.starts = starts;
+        this.columns = columns;
+        this.rows = rows;
+        this.minX = minX;
+        this.minY = minY;
+        this.side = side;
+    }
+
+    /**
+     * Builds the grid over the vertices <code>0</code> to <code>xs.length - 1</code>, in linear
+     * time with a counting sort by cell.
+     *
+     * @param xs The projected x coordinate of every vertex.
+     * @param ys The projected y coordinate of every vertex.
+     * @return The grid.
+     */
+    static GridIndex build(double[] xs, double[] ys) {
+        int n = xs.length;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i += 1) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        if (n == 0) {
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+        double width = maxX - minX;
+        double height = maxY - minY;
+        double cells = Math.max(1.0, (double) n / PER_CELL);
+        /* Cells of equal area; no narrower than the longer side split into cells strips, so
+         * that vertices along a line do not ask for a grid of cells squared. */
+        double side = Math.max(Math.sqrt(width * height / cells),
+                Math.max(width, height) / cells);
+        if (!(side > 0)) {
+            side = 1;
+        }
+        int columns = (int) Math.min(width / side, cells) + 1;
+        int rows = (int) Math.min(height / side, cells) + 1;
+
+        int[] cellOf = new int[n];
+        int[] starts = new int[columns * rows + 1];
+        for (int i = 0; i < n; i += 1) {
+            int column = Math.min(columns - 1, (int) ((xs[i] - minX) / side));
+            int row = Math.min(rows - 1, (int) ((ys[i] - minY) / side));
+            cellOf[i] = row * columns + column;
+            starts[cellOf[i] + 1] += 1;
+        }
+        for (int c = 1; c < starts.length; c += 1) {
+            starts[c] += starts[c - 1];
+        }
+        int[] vertices = new int[n];
+        double[] coordinates = new double[2 * n];
+        int[] next = starts.clone();
+        for (int i = 0; i < n; i += 1) {
+            int p = next[cellOf[i]]++;
+            vertices[p] = i;
+            coordinates[2 * p] = xs[i];
+            coordinates[2 * p + 1] = ys[i];
+        }
+        return new GridIndex(vertices, coordinates, starts, columns, rows, minX, minY, side);
+    }
+
+    @Override
+    public int size() {
+        return vertices.length;
+    }
+
+    /**
+     * Searches the grid for a vertex closer to <code>(x, y)</code> than <code>best</code>,
+     * skipping vertices left without edges in <code>csr</code> and, unless
+     * <code>component</code> is -1, vertices outside that component. Cells exactly as far as the
+     * best vertex so far are still scanned, as they may hold one with a lower index.
+     */
+    @Override
+    public void nearest(double x, double y, CSRGraph csr, Components components, int component,
+                        Nearest best) {
+        int[] offsets = csr.offsets;
+        int[] labels = components.labels;
+        int column = clamp((int) Math.floor((x - minX) / side), columns);
+        int row = clamp((int) Math.floor((y - minY) / side), rows);
+        for (int ring = 1; ; ring += 1) {
+            int left = column - ring;
+            int right = column + ring;
+            int bottom = row - ring;
+            int top = row + ring;
+            int first = Math.max(0, left);
+            int last = Math.min(columns - 1, right);
+            for (int r = Math.max(0, bottom); r <= Math.min(rows - 1, top); r += 1) {
+                int base = r * columns;
+                if (ring == 1 || r == bottom || r == top) {
+                    if (rowDistance(y, r) <= best.distance) {
+                        scan(starts[base + first], starts[base + last + 1], x, y, offsets,
+                                labels, component, best);
+                    }
+                    continue;
+                }
+                if (left >= 0 && cellDistance(x, y, left, r) <= best.distance) {
+                    scan(starts[base + left], starts[base + left + 1], x, y, offsets, labels,
+                            component, best);
+                }
+                if (right < columns && cellDistance(x, y, right, r) <= best.distance) {
+                    scan(starts[base + right], starts[base + right + 1], x, y, offsets, labels,
+                            component, best);
+                }
+            }
+            double reach = reach(x, y, left, right, bottom, top);
+            if (reach * reach > best.distance || Double.isInfinite(reach)) {
+                return;
+            }
+        }
+    }
+
+    private void scan(int from, int to, double x, double y, int[] offsets, int[] labels,
+                      int component, Nearest best) {
+        for (int p = from; p < to; p += 1) {
+            double dx = x - coordinates[2 * p];
+            double dy = y - coordinates[2 * p + 1];
+            double distance = dx * dx + dy * dy;
+            if (distance <= best.distance) {
+                int v = vertices[p];
+                if (best.beats(distance, v) && offsets[v + 1] != offsets[v]
+                        && (component < 0 || labels[v] == component)) {
+                    best.distance = distance;
+                    best.vertex = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to <code>into</code> every vertex that is closer to <code>(x, y)</code> than its
+     * current worst entry, subject to the same filters as <code>nearest</code>.
+     */
+    @Override
+    public void neighbors(double x, double y, CSRGraph csr, Components components,
+                          int component, Neighbors into) {
+        int[] offsets = csr.offsets;
+        int[] labels = components.labels;
+        int column = clamp((int) Math.floor((x - minX) / side), columns);
+        int row = clamp((int) Math.floor((y - minY) / side), rows);
+        for (int ring = 1; ; ring += 1) {
+            int left = column - ring;
+            int right = column + ring;
+            int bottom = row - ring;
+            int top = row + ring;
+            int first = Math.max(0, left);
+            int last = Math.min(columns - 1, right);
+            for (int r = Math.max(0, bottom); r <= Math.min(rows - 1, top); r += 1) {
+                int base = r * columns;
+                if (ring == 1 || r == bottom || r == top) {
+                    if (rowDistance(y, r) < into.worst()) {
+                        scan(starts[base + first], starts[base + last + 1], x, y, offsets,
+                                labels, component, into);
+                    }
+                    continue;
+                }
+                if (left >= 0 && cellDistance(x, y, left, r) < into.worst()) {
+                    scan(starts[base + left], starts[base + left + 1], x, y, offsets, labels,
+                            component, into);
+                }
+                if (right < columns && cellDistance(x, y, right, r) < into.worst()) {
+                    scan(starts[base + right], starts[base + right + 1], x, y, offsets, labels,
+                            component, into);
+                }
+            }
+            double reach = reach(x, y, left, right, bottom, top);
+            if (reach * reach >= into.worst() || Double.isInfinite(reach)) {
+                return;
+            }
+        }
+    }
+
+    private void scan(int from, int to, double x, double y, int[] offsets, int[] labels,
+                      int component, Neighbors into) {
+        for (int p = from; p < to; p += 1) {
+            double dx = x - coordinates[2 * p];
+            double dy = y - coordinates[2 * p + 1];
+            double distance = dx * dx + dy * dy;
+            if (distance < into.worst()) {
+                int v = vertices[p];
+                if (offsets[v + 1] != offsets[v] && (component < 0 || labels[v] == component)) {
+                    into.offer(v, distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to <code>into</code> every vertex in the box, scanning the cells that the box overlaps
+     * one row, and so one run of positions, at a time.
+     */
+    @Override
+    public void range(double minX, double minY, double maxX, double maxY, CSRGraph csr,
+                      Matches into) {
+        int[] offsets = csr.offsets;
+        int left = clamp((int) Math.floor((minX - this.minX) / side), columns);
+        int right = clamp((int) Math.floor((maxX - this.minX) / side), columns);
+        int bottom = clamp((int) Math.floor((minY - this.minY) / side), rows);
+        int top = clamp((int) Math.floor((maxY - this.minY) / side), rows);
+        for (int r = bottom; r <= top; r += 1) {
+            for (int p = starts[r * columns + left]; p < starts[r * columns + right + 1]; p += 1) {
+                double x = coordinates[2 * p];
+                double y = coordinates[2 * p + 1];
+                int v = vertices[p];
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY
+                        && offsets[v + 1] != offsets[v]) {
+                    into.add(v);
+                }
+            }
+        }
+    }
+
+    private static int clamp(int cell, int cells) {
+        return Math.max(0, Math.min(cells - 1, cell));
+    }
+
+    /** Returns the squared distance from <code>y</code> to the band of cells in row r. */
+    private double rowDistance(double y, int r) {
+        double cellY = minY + r * side;
+        double dy = Math.max(0, Math.max(cellY - y, y - (cellY + side)));
+        return dy * dy;
+    }
+
+    /** Returns the squared distance from <code>(x, y)</code> to the cell at column c, row r. */
+    private double cellDistance(double x, double y, int c, int r) {
+        double cellX = minX + c * side;
+        double cellY = minY + r * side;
+        double dx = Math.max(0, Math.max(cellX - x, x - (cellX + side)));
+        double dy = Math.max(0, Math.max(cellY - y, y - (cellY + side)));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns how far <code>(x, y)</code> can be moved before it leaves the square of cells
+     * scanned so far, ignoring sides that lie on the border of the grid, as nothing is beyond
+     * them; infinite once the square covers the whole grid.
+     */
+    private double reach(double x, double y, int left, int right, int bottom, int top) {
+        double reach = Double.POSITIVE_INFINITY;
+        if (left > 0) {
+            reach = Math.min(reach, x - (minX + left * side));
+        }
+        if (right < columns - 1) {
+            reach = Math.min(reach, minX + (right + 1) * side - x);
+        }
+        if (bottom > 0) {
+            reach = Math.min(reach, y - (minY + bottom * side));
+        }
+        if (top < rows - 1) {
+            reach = Math.min(reach, minY + (top + 1) * side - y);
+        }
+        return Math.max(0, reach);
+    }
+}
@@ -0,0 +1,371 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A KD-tree over projected vertex positions, laid out implicitly in flat arrays instead of linked
+ * nodes. The vertices are kept in one array, ordered so that every subtree covers a contiguous
+ * run of it, with their coordinates copied alongside; the split values of the inner nodes are
+ * kept in heap order, the children of node <code>k</code> being <code>2k + 1</code> and
+ * <code>2k + 2</code>. Every leaf is a bucket of at most <code>BUCKET</code> vertices at the same
+ * depth, so a search walks a handful of split values and then scans short runs of adjacent
+ * coordinates, rather than chasing one pointer per vertex.
+ *
+ * The node at depth <code>d</code> covering <code>[from, to)</code> splits on x for even
+ * <code>d</code> and on y for odd <code>d</code>, at position <code>from + (to - from) / 2</code>:
+ * no vertex before that position has a larger coordinate on the split axis than the split value
+ * and none after it has a smaller one. The vertex order therefore determines the whole tree.
+ */
+class KdTree implements SpatialIndex {
+    /** The most vertices in one leaf. */
+    static final int BUCKET = 8;
+    /** Runs of the vertex order longer than this are partitioned on the fork-join pool. */
+    private static final int PARALLEL_RUN = 1 << 13;
+
+    /** The vertex indices, in leaf order. */
+    final int[] vertices;
+    /** The projected x coordinate of <code>vertices[p]</code> at position <code>p</code>. */
+    final double[] xs;
+    /** The projected y coordinate of <code>vertices[p]</code> at position <code>p</code>. */
+    final double[] ys;
+    /** The split value of every inner node, in heap order. */
+    private final double[] splits;
+    /** The depth of the leaves; 0 if the whole tree is one leaf. */
+    private final int levels;
+
+    private KdTree(int[] vertices, double[] xs, double[] ys, int levels) {
+        this.vertices = vertices;
+        this.xs = xs;
+        this.ys = ys;
+        this.levels = levels;
+        this.splits = new double[(1 << levels) - 1];
+        fillSplits(0, 0, vertices.length, 0);
+    }
+
+    /**
+     * Builds the tree over the vertices <code>0</code> to <code>xs.length - 1</code>, partitioning
+     * large runs in parallel.
+     *
+     * @param xs The projected x coordinate of every vertex.
+     * @param ys The projected y coordinate of every vertex.
+     * @return The tree.
+     */
+    static KdTree build(double[] xs, double[] ys) {
+        int n = xs.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = i;
+        }
+        int levels = levelsFor(n);
+        ForkJoinPool.commonPool().invoke(new Partition(order, xs, ys, 0, n, 0, levels));
+        return restore(order, xs, ys);
+    }
+
+    /**
+     * Recreates the tree from its vertex order, as returned by <code>vertices</code>, without
+     * partitioning again.
+     *
+     * @param order The vertex order of a tree built by <code>build</code>.
+     * @param xs    The projected x coordinate of every vertex.
+     * @param ys    The projected y coordinate of every vertex.
+     * @return The tree.
+     */
+    static KdTree restore(int[] order, double[] xs, double[] ys) {
+        double[] orderedXs = new double[order.length];
+        double[] orderedYs = new double[order.length];
+        for (int p = 0; p < order.length; p += 1) {
+            orderedXs[p] = xs[order[p]];
+            orderedYs[p] = ys[order[p]];
+        }
+        return new KdTree(order, orderedXs, orderedYs, levelsFor(order.length));
+    }
+
+    /**
+     * Returns a tree that is a single leaf over the given vertices, searched by a linear scan.
+     *
+     * @param vertices The vertex indices.
+     * @param xs       The projected x coordinate of <code>vertices[p]</code> at <code>p</code>.
+     * @param ys       The projected y coordinate of <code>vertices[p]</code> at <code>p</code>.
+     * @return The tree.
+     */
+    static KdTree unsorted(int[] vertices, double[] xs, double[] ys) {
+        return new KdTree(vertices, xs, ys, 0);
+    }
+
+    @Override
+    public int size() {
+        return vertices.length;
+    }
+
+    /** Returns the fewest levels that leave no more than <code>BUCKET</code> vertices a leaf. */
+    private static int levelsFor(int n) {
+        int levels = 0;
+        while (((long) BUCKET << levels) < n) {
+            levels += 1;
+        }
+        return levels;
+    }
+
+    /**
+     * Fills in the split value of the subtree at <code>node</code> and below. The deeper levels
+     * reorder the second half of the run, so the split is taken as the smallest coordinate in it
+     * rather than whatever ended up at its first position.
+     */
+    private void fillSplits(int node, int from, int to, int depth) {
+        if (depth == levels) {
+            return;
+        }
+        int mid = from + (to - from) / 2;
+        double[] key = (depth & 1) == 0 ? xs : ys;
+        double split = Double.POSITIVE_INFINITY;
+        for (int p = mid; p < to; p += 1) {
+            split = Math.min(split, key[p]);
+        }
+        splits[node] = split;
+        fillSplits(2 * node + 1, from, mid, depth + 1);
+        fillSplits(2 * node + 2, mid, to, depth + 1);
+    }
+
+    /**
+     * Searches the tree for a vertex closer to <code>(x, y)</code> than <code>best</code>,
+     * skipping vertices left without edges in <code>csr</code> and, unless
+     * <code>component</code> is -1, vertices outside that component. The search only reads the
+     * tree, so any number of threads can search it at once.
+     *
+     * @param x          The projected x coordinate of the query point.
+     * @param y          The projected y coordinate of the query point.
+     * @param csr        The graph whose vertex indices the tree holds.
+     * @param components The component labels of <code>csr</code>.
+     * @param component  A component, or -1 for any component.
+     * @param best       The best vertex so far; updated in place.
+     */
+    @Override
+    public void nearest(double x, double y, CSRGraph csr, Components components, int component,
+                        Nearest best) {
+        nearest(0, 0, vertices.length, 0, x, y, csr.offsets, components.labels, component,
+                best);
+    }
+
+    /**
+     * Searches the subtree at <code>node</code>, nearer side of each split first. The far side is
+     * skipped when its split line is farther than the best vertex so far; at the same distance
+     * it may still hold a vertex with a lower index, which wins the tie.
+     */
+    private void nearest(int node, int from, int to, int depth, double x, double y,
+                         int[] offsets, int[] labels, int component, Nearest best) {
+        if (depth == levels) {
+            for (int p = from; p < to; p += 1) {
+                double dx = x - xs[p];
+                double dy = y - ys[p];
+                double distance = dx * dx + dy * dy;
+                if (distance <= best.distance) {
+                    int v = vertices[p];
+                    if (best.beats(distance, v) && offsets[v + 1] != offsets[v]
+                            && (component < 0 || labels[v] == component)) {
+                        best.distance = distance;
+                        best.vertex = v;
+                    }
+                }
+            }
+            return;
+        }
+        if (from >= to) {
+            return;
+        }
+        int mid = from + (to - from) / 2;
+        double split = ((depth & 1) == 0 ? x : y) - splits[node];
+        if (split < 0) {
+            nearest(2 * node + 1, from, mid, depth + 1, x, y, offsets, labels, component, best);
+            if (split * split <= best.distance) {
+                nearest(2 * node + 2, mid, to, depth + 1, x, y, offsets, labels, component,
+                        best);
+            }
+        } else {
+            nearest(2 * node + 2, mid, to, depth + 1, x, y, offsets, labels, component, best);
+            if (split * split <= best.distance) {
+                nearest(2 * node + 1, from, mid, depth + 1, x, y, offsets, labels, component,
+                        best);
+            }
+        }
+    }
+
+    /**
+     * Adds to <code>into</code> every vertex that is closer to <code>(x, y)</code> than its
+     * current worst entry, subject to the same filters as <code>nearest</code>. Subtrees whose
+     * split line is no closer than that worst entry are skipped, so the search visits few leaves
+     * beyond those that hold the result.
+     *
+     * @param x          The projected x coordinate of the query point.
+     * @param y          The projected y coordinate of the query point.
+     * @param csr        The graph whose vertex indices the tree holds.
+     * @param components The component labels of <code>csr</code>.
+     * @param component  A component, or -1 for any component.
+     * @param into       The neighbors found so far; updated in place.
+     */
+    @Override
+    public void neighbors(double x, double y, CSRGraph csr, Components components,
+                          int component, Neighbors into) {
+        neighbors(0, 0, vertices.length, 0, x, y, csr.offsets, components.labels, component,
+                into);
+    }
+
+    private void neighbors(int node, int from, int to, int depth, double x, double y,
+                           int[] offsets, int[] labels, int component, Neighbors into) {
+        if (depth == levels) {
+            for (int p = from; p < to; p += 1) {
+                double dx = x - xs[p];
+                double dy = y - ys[p];
+                double distance = dx * dx + dy * dy;
+                if (distance < into.worst()) {
+                    int v = vertices[p];
+                    if (offsets[v + 1] != offsets[v]
+                            && (component < 0 || labels[v] == component)) {
+                        into.offer(v, distance);
+                    }
+                }
+            }
+            return;
+        }
+        if (from >= to) {
+            return;
+        }
+        int mid = from + (to - from) / 2;
+        double split = ((depth & 1) == 0 ? x : y) - splits[node];
+        if (split < 0) {
+            neighbors(2 * node + 1, from, mid, depth + 1, x, y, offsets, labels, component,
+                    into);
+            if (split * split < into.worst()) {
+                neighbors(2 * node + 2, mid, to, depth + 1, x, y, offsets, labels, component,
+                        into);
+            }
+        } else {
+            neighbors(2 * node + 2, mid, to, depth + 1, x, y, offsets, labels, component,
+                    into);
+            if (split * split < into.worst()) {
+                neighbors(2 * node + 1, from, mid, depth + 1, x, y, offsets, labels, component,
+                        into);
+            }
+        }
+    }
+
+    /**
+     * Adds to <code>into</code> every vertex in the box, visiting only the subtrees whose side of
+     * each split the box reaches.
+     */
+    @Override
+    public void range(double minX, double minY, double maxX, double maxY, CSRGraph csr,
+                      Matches into) {
+        range(0, 0, vertices.length, 0, minX, minY, maxX, maxY, csr.offsets, into);
+    }
+
+    private void range(int node, int from, int to, int depth, double minX, double minY,
+                       double maxX, double maxY, int[] offsets, Matches into) {
+        if (depth == levels) {
+            for (int p = from; p < to; p += 1) {
+                int v = vertices[p];
+                if (xs[p] >= minX && xs[p] <= maxX && ys[p] >= minY && ys[p] <= maxY
+                        && offsets[v + 1] != offsets[v]) {
+                    into.add(v);
+                }
+            }
+            return;
+        }
+        if (from >= to) {
+            return;
+        }
+        int mid = from + (to - from) / 2;
+        boolean onX = (depth & 1) == 0;
+        if ((onX ? minX : minY) <= splits[node]) {
+            range(2 * node + 1, from, mid, depth + 1, minX, minY, maxX, maxY, offsets, into);
+        }
+        if ((onX ? maxX : maxY) >= splits[node]) {
+            range(2 * node + 2, mid, to, depth + 1, minX, minY, maxX, maxY, offsets, into);
+        }
+    }
+
+    /**
+     * Rearranges <code>order[from, to)</code> so that position <code>k</code> holds the vertex
+     * that would be there if the range were sorted by <code>key</code>, with no larger key before
+     * it and no smaller key after it.
+     */
+    static void select(int[] order, double[] key, int from, int to, int k) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            /* Partition Hoare style around the median of three; equal keys split evenly. */
+            int mid = (lo + hi) >>> 1;
+            double a = key[order[lo]];
+            double b = key[order[mid]];
+            double c = key[order[hi]];
+            double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key[order[i]] < pivot) {
+                    i += 1;
+                }
+                while (key[order[j]] > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Orders <code>order[from, to)</code> for the subtree at <code>depth</code>: the run is split
+     * at its middle position on the axis of that depth, and both halves are ordered in turn until
+     * they reach leaf depth.
+     */
+    private static class Partition extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] order;
+        private final double[] xs;
+        private final double[] ys;
+        private final int from;
+        private final int to;
+        private final int depth;
+        private final int levels;
+
+        Partition(int[] order, double[] xs, double[] ys, int from, int to, int depth,
+                  int levels) {
+            this.order = order;
+            this.xs = xs;
+            this.ys = ys;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+            this.levels = levels;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth == levels || to - from <= 1) {
+                return;
+            }
+            int mid = from + (to - from) / 2;
+            select(order, (depth & 1) == 0 ? xs : ys, from, to, mid);
+            Partition left = new Partition(order, xs, ys, from, mid, depth + 1, levels);
+            Partition right = new Partition(order, xs, ys, mid, to, depth + 1, levels);
+            if (to - from > PARALLEL_RUN) {
+                invokeAll(left, right);
+            } else {
+                left.compute();
+                right.compute();
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.Arrays;
+
+/**
+ * Landmarks for the ALT heuristic (A*, landmarks and the triangle inequality). For a landmark L,
+ * the distance from v to t is at least <code>|d(L, t) - d(L, v)|</code>, so the largest such
+ * difference over a few landmarks is a lower bound on it. A landmark behind t, as seen from v,
+ * gives a tight bound whatever bridges, hills or detours the roads take, which the great-circle
+ * distance cannot, so landmarks are picked around the edge of the map: each is the vertex of
+ * the largest component farthest by road from those already picked.
+ *
+ * The distance from every landmark to every vertex is kept as a float, in one row per vertex,
+ * so a bound reads one short run of memory for v and one for t. The distances are computed
+ * with every sum rounded down to a float, so that across every edge they differ by no more
+ * than its length: the bounds are then exactly consistent, and A* never reaches a vertex again
+ * after settling it. Vertices that a landmark cannot reach have an infinite distance from it,
+ * and that landmark gives them no bound.
+ */
+class Landmarks {
+    /** The landmarks kept unless asked otherwise: eight floats, half a cache line per vertex. */
+    static final int DEFAULT_COUNT = 8;
+
+    /** The dense index of every landmark. */
+    final int[] vertices;
+    /** The distance from landmark i to vertex v, in miles, at <code>v * count + i</code>. */
+    private final float[] distances;
+    private final int count;
+
+    private Landmarks(int[] vertices, float[] distances) {
+        this.vertices = vertices;
+        this.distances = distances;
+        this.count = vertices.length;
+    }
+
+    /**
+     * Picks <code>DEFAULT_COUNT</code> landmarks in the largest component of <code>csr</code>
+     * and computes their distances.
+     *
+     * @param csr        The graph.
+     * @param components Its connected components.
+     * @return The landmarks.
+     */
+    static Landmarks build(CSRGraph csr, Components components) {
+        return build(csr, components, DEFAULT_COUNT);
+    }
+
+    /**
+     * Picks up to <code>count</code> landmarks in the largest component of <code>csr</code> by
+     * farthest-point selection and computes their distances. The first is the vertex farthest
+     * from the component's first vertex, and each next one the vertex whose distance to the
+     * closest landmark so far is largest. The result is checked with <code>verify</code>.
+     *
+     * @param csr        The graph.
+     * @param components Its connected components.
+     * @param count      The number of landmarks wanted.
+     * @return The landmarks; fewer than <code>count</code> if the component is smaller.
+     */
+    static Landmarks build(CSRGraph csr, Components components, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative landmark count");
+        }
+        int n = csr.size();
+        int first = -1;
+        for (int v = 0; v < n && first < 0; v += 1) {
+            if (components.labels[v] == components.largest) {
+                first = v;
+            }
+        }
+        if (first < 0) {
+            return new Landmarks(new int[0], new float[0]);
+        }
+        count = Math.min(count, components.sizes[components.largest]);
+
+        int[] vertices = new int[count];
+        float[][] tables = new float[count][];
+        /* The distance from every vertex to its closest landmark; the first search is not one. */
+        float[] closest = distancesFrom(csr, first);
+        for (int i = 0; i < count; i += 1) {
+            int farthest = first;
+            for (int v = 0; v < n; v += 1) {
+                if (closest[v] != Float.POSITIVE_INFINITY && closest[v] > closest[farthest]) {
+                    farthest = v;
+                }
+            }
+            vertices[i] = farthest;
+            tables[i] = distancesFrom(csr, farthest);
+            if (i == 0) {
+                closest = tables[0].clone();
+            } else {
+                for (int v = 0; v < n; v += 1) {
+                    closest[v] = Math.min(closest[v], tables[i][v]);
+                }
+            }
+        }
+
+        float[] distances = new float[n * count];
+        for (int v = 0; v < n; v += 1) {
+            for (int i = 0; i < count; i += 1) {
+                distances[v * count + i] = tables[i][v];
+            }
+        }
+        Landmarks landmarks = new Landmarks(vertices, distances);
+        landmarks.verify(csr);
+        return landmarks;
+    }
+
+    /**
+     * Returns the distance from s to every vertex, by Dijkstra's algorithm with every sum rounded
+     * down to a float; infinity for vertices that cannot be reached.
+     */
+    private static float[] distancesFrom(CSRGraph csr, int s) {
+        int n = csr.size();
+        SearchState state = SearchState.take(n);
+        state.relax(s, 0.0, s, -1, 0.0);
+        while (!state.isEmpty()) {
+            int v = state.poll();
+            double sToV = state.distance(v);
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                double sToW = floorToFloat(sToV + csr.weights[e]);
+                state.relax(csr.targets[e], sToW, v, e, sToW);
+            }
+        }
+        float[] result = new float[n];
+        for (int v = 0; v < n; v += 1) {
+            result[v] = (float) state.distance(v);
+        }
+        return result;
+    }
+
+    /** Returns the largest float no greater than d. */
+    private static float floorToFloat(double d) {
+        float f = (float) d;
+        return f > d ? Math.nextDown(f) : f;
+    }
+
+    /** Returns the number of landmarks. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the distance from landmark i to vertex v, or infinity if it cannot reach v. */
+    float distance(int i, int v) {
+        return distances[v * count + i];
+    }
+
+    /**
+     * Returns a lower bound on the length of the shortest path between vertex indices v and t:
+     * the largest difference of their distances to a landmark that reaches both, or 0 if none
+     * does.
+     */
+    double lowerBound(int v, int t) {
+        int rowV = v * count;
+        int rowT = t * count;
+        double bound = 0;
+        for (int i = 0; i < count; i += 1) {
+            float dV = distances[rowV + i];
+            float dT = distances[rowT + i];
+            if (dV != Float.POSITIVE_INFINITY && dT != Float.POSITIVE_INFINITY) {
+                /* In double, where the difference of two floats is exact. */
+                bound = Math.max(bound, Math.abs((double) dT - dV));
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Checks that the bounds are admissible and consistent on <code>csr</code>: that the
+     * distances from each landmark differ across no edge by more than its length, and that each
+     * landmark is at distance 0 from itself. By the triangle inequality, the bound between any
+     * two vertices is then no more than the length of any path between them.
+     *
+     * @param csr The graph the landmarks were built for.
+     * @throws IllegalStateException If a check fails.
+     */
+    void verify(CSRGraph csr) {
+        if (distances.length != csr.size() * count) {
+            throw new IllegalStateException("landmark tables do not match the graph");
+        }
+        for (int i = 0; i < count; i += 1) {
+            if (distance(i, vertices[i]) != 0) {
+                throw new IllegalStateException("landmark " + i + " is not at distance 0");
+            }
+        }
+        for (int v = 0; v < csr.size(); v += 1) {
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                for (int i = 0; i < count; i += 1) {
+                    float dV = distance(i, v);
+                    float dW = distance(i, w);
+                    if (dV != dW && !((double) dW - dV <= csr.weights[e])) {
+                        throw new IllegalStateException(String.format(
+                                "landmark %d is %s from %d but %s from its neighbor %d,"
+                                        + " %s away", i, dV, v, dW, w, csr.weights[e]));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "landmarks " + Arrays.toString(vertices);
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+
+/**
+ * Holds the current version of the road graph and publishes updated versions. A request reads
+ * <code>current</code> once and works on that version to the end, so it is never affected by an
+ * update that lands while it runs; the next request sees the new version. Old versions are
+ * reclaimed by the garbage collector once the last request using them finishes.
+ *
+ * Updates are applied one at a time, each on top of the version published by the one before.
+ */
+class LiveGraph {
+    private volatile GraphDB current;
+
+    LiveGraph(GraphDB initial) {
+        this.current = initial;
+    }
+
+    /** Returns the most recently published version of the graph. */
+    GraphDB current() {
+        return current;
+    }
+
+    /**
+     * Applies an OSM change to the current version and publishes the result.
+     *
+     * @param change The edits to apply.
+     * @return The newly published version.
+     */
+    synchronized GraphDB apply(OsmChange change) {
+        GraphDB next = current.apply(change);
+        if (current.hasHierarchy()) {
+            /* The new version cannot use the old hierarchy; start on its own before it is asked. */
+            next.buildHierarchy();
+        }
+        current = next;
+        return next;
+    }
+
+    /**
+     * Applies the OSM change file at <code>path</code> to the current version and publishes the
+     * result.
+     *
+     * @param path Path to an OSM change (<code>.osc</code>) file.
+     * @return The newly published version.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    GraphDB apply(String path) throws IOException {
+        return apply(OsmChange.read(path));
+    }
+}
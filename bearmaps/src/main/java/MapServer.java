@@ -8,7 +8,7 @@ import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
 import java.util.Base64;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.List;
 
 import com.google.gson.FieldNamingPolicy;
@@ -44,15 +44,18 @@ public class MapServer {
     /** The difference between the upper-most and lower-most latitudes of the map. */
     public static final double ROOT_LAT_DELTA = Math.abs(ROOT_ULLAT - ROOT_LRLAT);
 
-    /** The <code>GraphDB</code>responsible for managing map data. */
-    private static GraphDB graph;
+    /**
+     * The <code>GraphDB</code> responsible for managing map data, in its latest version. Each
+     * request reads the version once and uses it throughout.
+     */
+    private static LiveGraph graph;
     /** The <code>Rasterer</code> responsible for computing the shortest path and directions. */
     private static Rasterer rasterer;
     /**
      * The most recently-requested shortest-paths route. The <code>renderImage</code> method redraws
      * this route every time a new rastering result is requested from the browser.
      */
-    private static List<Long> route;
+    private static volatile RouteLayer route;
     /** The configured Gson Java serializer. */
     private static Gson gson;
 
@@ -61,14 +64,27 @@ public class MapServer {
      * independently of the main method for the tests to function properly.
      */
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        graph = new LiveGraph(GraphDB.load(OSM_DB_PATH));
+        System.out.println("Road graph: " + graph.current().components());
         rasterer = new Rasterer();
-        route = Collections.emptyList();
+        route = null;
         gson = new GsonBuilder()
                 .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
                 .create();
     }
 
+    /**
+     * Applies the OSM change file at <code>path</code> to the road graph. Requests already in
+     * flight finish on the version they started with; later requests see the update.
+     *
+     * @param path Path to an OSM change (<code>.osc</code>) file.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    public static void applyOsmChange(String path) throws IOException {
+        GraphDB updated = graph.apply(path);
+        System.out.println("Road graph: " + updated.components());
+    }
+
     /**
      * Launch the <code>mapServer</code>, register server routes, and listen on the default port.
      * @param args Ignored
@@ -111,21 +127,46 @@ public class MapServer {
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             RouteRequestParams  params = null;
+            Router.Search search = null;
             try {
                 params = RouteRequestParams.from(req.queryMap().toMap());
+                /* An optional search parameter names the Router.Search to use. */
+                search = Router.Search.named(req.queryParams("search"));
             } catch (IllegalArgumentException e) {
                 halt(HALT_RESPONSE, e.getMessage());
             }
-            route = Router.shortestPath(graph,
-                    params.startLon, params.startLat, params.endLon, params.endLat);
-            String directions = getDirectionsText(Router.routeDirections(graph, route));
-            RouteResultParams routeParams = new RouteResultParams(!route.isEmpty(), directions);
+            GraphDB g = graph.current();
+            List<Long> path = Router.shortestPath(g, params.startLon, params.startLat,
+                    params.endLon, params.endLat, search, Router.Disconnected.REJECT);
+            route = new RouteLayer(g, path);
+            String directions = getDirectionsText(Router.routeDirections(g, path));
+            RouteResultParams routeParams = new RouteResultParams(!path.isEmpty(), directions);
             return gson.toJson(routeParams);
         });
 
+        /* Define the distance matrix endpoint for HTTP GET requests. */
+        get("/matrix", (req, res) -> {
+            double[][] sources = null;
+            double[][] targets = null;
+            try {
+                /* Points are given as lon,lat pairs separated by semicolons. */
+                sources = points(req.queryParams("sources"), "sources");
+                targets = points(req.queryParams("targets"), "targets");
+                if ((long) sources.length * targets.length > MAX_MATRIX_PAIRS) {
+                    throw new IllegalArgumentException(String.format(
+                            "Request failed: at most %d source and target pairs.",
+                            MAX_MATRIX_PAIRS));
+                }
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            double[] matrix = Router.distanceMatrix(graph.current(), sources, targets);
+            return gson.toJson(new MatrixResultParams(sources.length, targets.length, matrix));
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            route = Collections.emptyList();
+            route = null;
             return true;
         });
 
@@ -134,11 +175,11 @@ public class MapServer {
             String term = req.queryParams("term");
             /* Search for actual location data. */
             if (req.queryParams().contains("full")) {
-                List<LocationParams> data = graph.getLocations(term);
+                List<LocationParams> data = graph.current().getLocations(term);
                 return gson.toJson(data);
             } else {
                 /* Search for prefix matching strings. */
-                List<String> matches = graph.getLocationsByPrefix(term);
+                List<String> matches = graph.current().getLocationsByPrefix(term);
                 return gson.toJson(matches);
             }
         });
@@ -150,6 +191,40 @@ public class MapServer {
         });
     }
 
+    /**
+     * Parses the points of a matrix request, given as <code>lon,lat</code> pairs separated by
+     * semicolons, into <code>{lon, lat}</code> arrays.
+     * @param value The value of the query parameter, or null if it is missing.
+     * @param param The name of the query parameter, for error messages.
+     * @return The points, in order.
+     */
+    private static double[][] points(String value, String param) {
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(
+                    String.format("Request failed: %s not found.", param));
+        }
+        String[] pairs = value.split(";");
+        if (pairs.length > MAX_MATRIX_POINTS) {
+            throw new IllegalArgumentException(String.format(
+                    "Request failed: at most %d %s.", MAX_MATRIX_POINTS, param));
+        }
+        double[][] points = new double[pairs.length][];
+        for (int k = 0; k < pairs.length; k += 1) {
+            String[] parts = pairs[k].split(",");
+            try {
+                if (parts.length != 2) {
+                    throw new NumberFormatException(pairs[k]);
+                }
+                points[k] = new double[]{Double.parseDouble(parts[0].trim()),
+                        Double.parseDouble(parts[1].trim())};
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        String.format("Incorrect parameters: unable to parse %s.", param));
+            }
+        }
+        return points;
+    }
+
     /**
      * Return the image defined by the <code>resultParams</code>.
      * @param resultParams <code>RasterResultParams</code> from <code>Rasterer.getMapRaster</code>
@@ -175,7 +250,8 @@ public class MapServer {
             }
         }
         /* If there is a route, draw it. */
-        if (route != null && !route.isEmpty()) {
+        RouteLayer layer = route;
+        if (layer != null && !layer.vertices.isEmpty()) {
             double ullon = resultParams.rasterUlLon;
             double ullat = resultParams.rasterUlLat;
             double lrlon = resultParams.rasterLrLon;
@@ -186,13 +262,32 @@ public class MapServer {
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                        (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            GraphDB g = layer.graph;
+            if (layer.segments == null) {
+                layer.vertices.stream().reduce((v, w) -> {
+                    g2d.drawLine((int) ((g.lon(v) - ullon) * (1 / wdpp)),
+                            (int) ((ullat - g.lat(v)) * (1 / hdpp)),
+                            (int) ((g.lon(w) - ullon) * (1 / wdpp)),
+                            (int) ((ullat - g.lat(w)) * (1 / hdpp)));
+                    return w;
+                });
+            } else {
+                /* Only the route's segments among those in view are drawn. */
+                CSRGraph csr = g.csr();
+                SpatialIndex.Matches visible = new SpatialIndex.Matches();
+                g.segmentsIn(ullon, ullat, lrlon, lrlat, visible);
+                for (int k = 0; k < visible.size; k += 1) {
+                    int e = visible.items[k];
+                    if (layer.segments.get(e)) {
+                        int v = csr.source(e);
+                        int w = csr.targets[e];
+                        g2d.drawLine((int) ((csr.lons[v] - ullon) * (1 / wdpp)),
+                                (int) ((ullat - csr.lats[v]) * (1 / hdpp)),
+                                (int) ((csr.lons[w] - ullon) * (1 / wdpp)),
+                                (int) ((ullat - csr.lats[w]) * (1 / hdpp)));
+                    }
+                }
+            }
         }
         return img;
     }
@@ -228,8 +323,17 @@ public class MapServer {
         return sb.toString();
     }
 
+    /** Routes with at least this many vertices are drawn from the segments in view. */
+    private static final int MIN_ROUTE_TO_CLIP = 1024;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /**
+     * The most sources, and the most targets, in one matrix request. Each source runs a search
+     * over the graph, so a request is capped to what a dispatch batch needs.
+     */
+    private static final int MAX_MATRIX_POINTS = 1000;
+    /** The most distances in one matrix request. */
+    private static final int MAX_MATRIX_PAIRS = 100000;
     /** Route stroke information: typically roads are not more than 5px wide. */
     private static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: semi-transparent cyan. */
@@ -242,6 +346,39 @@ public class MapServer {
      */
     private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
 
+    /**
+     * A route to draw, with the version of the graph it was found on. A long route also marks
+     * the segments it runs along, by the adjacency entry from the lower vertex index to the
+     * higher as <code>GraphDB.segmentsIn</code> reports them, so that drawing it costs what is
+     * in view rather than the length of the route.
+     */
+    private static class RouteLayer {
+        private final GraphDB graph;
+        private final List<Long> vertices;
+        /** The route's segments, or null if the route is short enough to walk. */
+        private final BitSet segments;
+
+        private RouteLayer(GraphDB graph, List<Long> vertices) {
+            this.graph = graph;
+            this.vertices = vertices;
+            if (vertices.size() < MIN_ROUTE_TO_CLIP) {
+                this.segments = null;
+                return;
+            }
+            CSRGraph csr = graph.csr();
+            this.segments = new BitSet(csr.targets.length);
+            int previous = csr.indexOf(vertices.get(0));
+            for (int k = 1; k < vertices.size(); k += 1) {
+                int next = csr.indexOf(vertices.get(k));
+                int e = csr.edgeIndex(Math.min(previous, next), Math.max(previous, next));
+                if (e >= 0) {
+                    segments.set(e);
+                }
+                previous = next;
+            }
+        }
+    }
+
     /** An adapter class for extending RasterResultParams with the final image. */
     private static class RenderedRasterResultParams {
         private final String[][] renderGrid;
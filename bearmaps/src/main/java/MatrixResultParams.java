@@ -0,0 +1,31 @@
+/**
+ * The MatrixResultParams contains the distances computed by Router.distanceMatrix for
+ * serialization by Gson, row by row: the distance from source i to target j is at
+ * <code>i * columns + j</code>. Pairs with no route between them have a null distance, as JSON
+ * has no infinity.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class MatrixResultParams {
+    /** The number of sources. */
+    private final int rows;
+    /** The number of targets. */
+    private final int columns;
+    /** The distance in miles between every source and every target, or null if unreachable. */
+    private final Double[] distances;
+
+    /**
+     * Constructs a MatrixResultParams instance from the result of Router.distanceMatrix.
+     * @param rows The number of sources.
+     * @param columns The number of targets.
+     * @param matrix The distances, infinite where there is no route.
+     */
+    MatrixResultParams(int rows, int columns, double[] matrix) {
+        this.rows = rows;
+        this.columns = columns;
+        this.distances = new Double[matrix.length];
+        for (int k = 0; k < matrix.length; k += 1) {
+            distances[k] = Double.isInfinite(matrix[k]) ? null : matrix[k];
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The node and way edits of an OSM change file (<code>.osc</code>), as published by OSM's
+ * minutely, hourly and daily diffs. A change file lists elements inside
+ * <code>&lt;create&gt;</code>, <code>&lt;modify&gt;</code> and <code>&lt;delete&gt;</code>
+ * blocks; created and modified elements carry their complete new state, so both are kept here
+ * as upserts. If an element appears several times, the last occurrence wins. Relations are
+ * ignored, since the road graph does not use them.
+ *
+ * See <a href="https://wiki.openstreetmap.org/wiki/OsmChange">the OsmChange format</a>.
+ */
+class OsmChange {
+    /** New state of every created or modified node, or null for a deleted node, by OSM ID. */
+    final Map<Long, NodeChange> nodes;
+    /** New state of every created or modified way, or null for a deleted way, by OSM ID. */
+    final Map<Long, WayChange> ways;
+
+    OsmChange(Map<Long, NodeChange> nodes, Map<Long, WayChange> ways) {
+        this.nodes = nodes;
+        this.ways = ways;
+    }
+
+    /** Returns the number of node and way edits. */
+    int size() {
+        return nodes.size() + ways.size();
+    }
+
+    /**
+     * Reads the change file at <code>path</code>.
+     *
+     * @param path Path to an OSM change file.
+     * @return The parsed change.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    static OsmChange read(String path) throws IOException {
+        try (InputStream in = new FileInputStream(path)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Parses an OSM change document.
+     *
+     * @param in The document.
+     * @return The parsed change.
+     * @throws IOException If the stream cannot be read or is malformed.
+     */
+    static OsmChange parse(InputStream in) throws IOException {
+        Handler handler = new Handler();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(in, handler);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Malformed OSM change", e);
+        }
+        return new OsmChange(handler.nodes, handler.ways);
+    }
+
+    /**
+     * The new state of a created or modified node.
+     */
+    static class NodeChange {
+        final long id;
+        final double lon;
+        final double lat;
+        /** Every tag of the node. */
+        final Map<String, String> tags;
+
+        NodeChange(long id, double lon, double lat, Map<String, String> tags) {
+            this.id = id;
+            this.lon = lon;
+            this.lat = lat;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * The new state of a created or modified way.
+     */
+    static class WayChange {
+        final long id;
+        /** The OSM IDs of the nodes along the way. */
+        final long[] refs;
+        final String name;
+        final String highway;
+        final String maxSpeed;
+
+        WayChange(long id, long[] refs, String name, String highway, String maxSpeed) {
+            this.id = id;
+            this.refs = refs;
+            this.name = name;
+            this.highway = highway;
+            this.maxSpeed = maxSpeed;
+        }
+
+        /** Returns true if the road graph routes over this way. */
+        boolean routable() {
+            return highway != null && GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway);
+        }
+    }
+
+    /**
+     * Collects the edits of a change document, tracking which action block each element is in.
+     */
+    private static class Handler extends DefaultHandler {
+        private final Map<Long, NodeChange> nodes = new LinkedHashMap<>();
+        private final Map<Long, WayChange> ways = new LinkedHashMap<>();
+        private boolean deleting;
+
+        private long id;
+        private double lon;
+        private double lat;
+        private boolean inNode;
+        private boolean inWay;
+        private Map<String, String> tags;
+        private long[] refs = new long[64];
+        private int refCount;
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) {
+            if (qName.equals("create") || qName.equals("modify")) {
+                deleting = false;
+            } else if (qName.equals("delete")) {
+                deleting = true;
+            } else if (qName.equals("node")) {
+                inNode = true;
+                id = Long.parseLong(attributes.getValue("id"));
+                if (!deleting) {
+                    lon = Double.parseDouble(attributes.getValue("lon"));
+                    lat = Double.parseDouble(attributes.getValue("lat"));
+                }
+                tags = new LinkedHashMap<>();
+            } else if (qName.equals("way")) {
+                inWay = true;
+                id = Long.parseLong(attributes.getValue("id"));
+                refCount = 0;
+                tags = new LinkedHashMap<>();
+            } else if (inWay && qName.equals("nd")) {
+                if (refCount == refs.length) {
+                    refs = Arrays.copyOf(refs, refCount * 2);
+                }
+                refs[refCount] = Long.parseLong(attributes.getValue("ref"));
+                refCount += 1;
+            } else if ((inNode || inWay) && qName.equals("tag")) {
+                tags.put(attributes.getValue("k"), attributes.getValue("v"));
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (qName.equals("node")) {
+                inNode = false;
+                nodes.remove(id);
+                nodes.put(id, deleting ? null
+                        : new NodeChange(id, lon, lat, Collections.unmodifiableMap(tags)));
+            } else if (qName.equals("way")) {
+                inWay = false;
+                ways.remove(id);
+                ways.put(id, deleting ? null : new WayChange(id, Arrays.copyOf(refs, refCount),
+                        tags.get("name"), tags.get("highway"), tags.get("maxspeed")));
+            } else if (qName.equals("delete")) {
+                deleting = false;
+            }
+        }
+    }
+}
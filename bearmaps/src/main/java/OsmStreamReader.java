@@ -0,0 +1,635 @@
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A streaming, allocation-light alternative to <code>GraphBuildingHandler</code>. Rather than
+ * going through a general SAX parser, it scans the raw bytes of an OSM XML file one tag at a time
+ * from a reusable buffer, recognizes the handful of elements the graph needs by comparing bytes,
+ * and parses IDs and coordinates straight out of the buffer. Way references accumulate in a
+ * reusable <code>long[]</code>. The only objects allocated per element are the keys and values of
+ * node tags and the name and maxspeed tags of ways.
+ *
+ * Only the subset of XML that OSM exports use is understood: elements, attributes in single or
+ * double quotes, the predefined and numeric character entities, comments, processing
+ * instructions and declarations. The same nodes, edges and node tags are collected as by
+ * <code>GraphBuildingHandler</code>.
+ */
+class OsmStreamReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Exact powers of ten for the fast decimal path; 10^22 is the largest exact double. */
+    private static final double[] POW10 = new double[23];
+
+    private static final byte[] NODE = ascii("node");
+    private static final byte[] WAY = ascii("way");
+    private static final byte[] ND = ascii("nd");
+    private static final byte[] TAG = ascii("tag");
+    private static final byte[] END_NODE = ascii("/node");
+    private static final byte[] END_WAY = ascii("/way");
+    private static final byte[] ID = ascii("id");
+    private static final byte[] LAT = ascii("lat");
+    private static final byte[] LON = ascii("lon");
+    private static final byte[] REF = ascii("ref");
+    private static final byte[] K = ascii("k");
+    private static final byte[] V = ascii("v");
+    private static final byte[] NAME = ascii("name");
+    private static final byte[] HIGHWAY = ascii("highway");
+    private static final byte[] MAXSPEED = ascii("maxspeed");
+    private static final String[] ALLOWED_HIGHWAY_NAMES;
+    private static final byte[][] ALLOWED_HIGHWAY_TYPES;
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i += 1) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+        ALLOWED_HIGHWAY_NAMES = GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES
+                .toArray(new String[0]);
+        ALLOWED_HIGHWAY_TYPES = Arrays.stream(ALLOWED_HIGHWAY_NAMES)
+                .map(OsmStreamReader::ascii).toArray(byte[][]::new);
+    }
+
+    private final InputStream in;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    /** Next unread byte in <code>buf</code>. */
+    private int pos;
+    /** End of the valid bytes in <code>buf</code>. */
+    private int limit;
+
+    /** Bounds of the current tag: <code>buf[tagStart]</code> is '&lt;', buf[tagEnd] is '&gt;'. */
+    private int tagStart;
+    private int tagEnd;
+    /** Bounds of the current tag's name and attributes, reused from tag to tag. */
+    private int nameStart;
+    private int nameEnd;
+    private boolean selfClosing;
+    private int attrCount;
+    private int[] attrNameStart = new int[8];
+    private int[] attrNameEnd = new int[8];
+    private int[] attrValueStart = new int[8];
+    private int[] attrValueEnd = new int[8];
+
+    /** Node references of the current way. */
+    private long[] refs = new long[64];
+    private int refCount;
+    /** Scratch space for decoding attribute values that contain entities. */
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param in The stream to read the OSM XML document from.
+     */
+    OsmStreamReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the OSM XML file at <code>dbPath</code> and freezes it into CSR form.
+     *
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The frozen graph.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    static CSRGraph load(String dbPath) throws IOException {
+        GraphBuilder builder = new GraphBuilder();
+        try (InputStream in = new FileInputStream(dbPath)) {
+            new OsmStreamReader(in).read(builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the OSM XML file at <code>dbPath</code> in two passes. The first pass only collects
+     * the IDs of nodes referenced by highway ways; the second materializes just those nodes. Nodes
+     * that no highway references would be removed by cleaning anyway, so the builder never holds
+     * more nodes than the final graph, which caps peak memory during the load.
+     *
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The frozen graph, identical to the one returned by <code>load</code>.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    static CSRGraph loadRoutable(String dbPath) throws IOException {
+        long[] routable;
+        try (InputStream in = new FileInputStream(dbPath)) {
+            routable = new OsmStreamReader(in).readRoutableRefs();
+        }
+        GraphBuilder builder = new GraphBuilder();
+        try (InputStream in = new FileInputStream(dbPath)) {
+            new OsmStreamReader(in).read(builder, routable);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the whole document, adding its nodes, node tags and highway edges to
+     * <code>builder</code>.
+     *
+     * @param builder The builder to fill.
+     * @throws IOException If the stream cannot be read or is malformed.
+     */
+    void read(GraphBuilder builder) throws IOException {
+        read(builder, null);
+    }
+
+    /**
+     * Reads the whole document, adding its highway edges and the nodes in <code>keep</code>, with
+     * their tags, to <code>builder</code>.
+     *
+     * @param builder The builder to fill.
+     * @param keep    Sorted IDs of the nodes to add, or null to add every node.
+     * @throws IOException If the stream cannot be read or is malformed.
+     */
+    void read(GraphBuilder builder, long[] keep) throws IOException {
+        boolean inNode = false;
+        boolean inWay = false;
+        String wayName = null;
+        String wayHighway = null;
+        String wayMaxSpeed = null;
+        long wayId = 0;
+        while (nextTag()) {
+            if (!parseTag()) {
+                continue;
+            }
+            if (nameIs(NODE)) {
+                long id = parseLong(attr(ID));
+                boolean kept = keep == null || Arrays.binarySearch(keep, id) >= 0;
+                if (kept) {
+                    builder.addNode(id, parseDouble(attr(LON)), parseDouble(attr(LAT)));
+                }
+                inNode = kept && !selfClosing;
+            } else if (nameIs(WAY)) {
+                inWay = !selfClosing;
+                wayId = parseLong(attr(ID));
+                refCount = 0;
+                wayName = null;
+                wayHighway = null;
+                wayMaxSpeed = null;
+            } else if (inWay && nameIs(ND)) {
+                if (refCount == refs.length) {
+                    refs = Arrays.copyOf(refs, refCount * 2);
+                }
+                refs[refCount] = parseLong(attr(REF));
+                refCount += 1;
+            } else if (inWay && nameIs(TAG)) {
+                int k = attr(K);
+                if (valueIs(k, HIGHWAY)) {
+                    int type = valueIndex(attr(V), ALLOWED_HIGHWAY_TYPES);
+                    if (type >= 0) {
+                        wayHighway = ALLOWED_HIGHWAY_NAMES[type];
+                    }
+                } else if (valueIs(k, NAME)) {
+                    wayName = decode(attr(V));
+                } else if (valueIs(k, MAXSPEED)) {
+                    wayMaxSpeed = decode(attr(V));
+                }
+            } else if (inNode && nameIs(TAG)) {
+                builder.tagLastNode(decode(attr(K)), decode(attr(V)));
+            } else if (nameIs(END_NODE)) {
+                inNode = false;
+            } else if (nameIs(END_WAY)) {
+                if (wayHighway != null) {
+                    builder.addWay(wayId, refs, refCount,
+                            builder.internWay(wayName, wayHighway, wayMaxSpeed));
+                }
+                inWay = false;
+            }
+        }
+    }
+
+    /**
+     * Reads the whole document and returns the IDs of every node referenced by a highway way.
+     *
+     * @return The referenced IDs, sorted and without duplicates.
+     * @throws IOException If the stream cannot be read or is malformed.
+     */
+    long[] readRoutableRefs() throws IOException {
+        long[] routable = new long[1024];
+        int count = 0;
+        boolean inWay = false;
+        boolean isHighway = false;
+        while (nextTag()) {
+            if (!parseTag()) {
+                continue;
+            }
+            if (nameIs(WAY)) {
+                inWay = !selfClosing;
+                refCount = 0;
+                isHighway = false;
+            } else if (inWay && nameIs(ND)) {
+                if (refCount == refs.length) {
+                    refs = Arrays.copyOf(refs, refCount * 2);
+                }
+                refs[refCount] = parseLong(attr(REF));
+                refCount += 1;
+            } else if (inWay && nameIs(TAG)) {
+                if (valueIs(attr(K), HIGHWAY) && valueIsAny(attr(V), ALLOWED_HIGHWAY_TYPES)) {
+                    isHighway = true;
+                }
+            } else if (nameIs(END_WAY)) {
+                if (isHighway && refCount > 1) {
+                    if (count + refCount > routable.length) {
+                        routable = Arrays.copyOf(routable, Math.max(count + refCount,
+                                routable.length * 2));
+                    }
+                    System.arraycopy(refs, 0, routable, count, refCount);
+                    count += refCount;
+                }
+                inWay = false;
+            }
+        }
+        Arrays.sort(routable, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i += 1) {
+            if (i == 0 || routable[i] != routable[i - 1]) {
+                routable[unique] = routable[i];
+                unique += 1;
+            }
+        }
+        return Arrays.copyOf(routable, unique);
+    }
+
+    /**
+     * Advances to the next markup construct and records its bounds in <code>tagStart</code> and
+     * <code>tagEnd</code>. Comments are skipped entirely.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean nextTag() throws IOException {
+        while (true) {
+            while (pos < limit && buf[pos] != '<') {
+                pos += 1;
+            }
+            if (pos == limit) {
+                pos = 0;
+                limit = 0;
+                if (!fill()) {
+                    return false;
+                }
+                continue;
+            }
+            if (!startsWithAt(pos, "<!--")) {
+                break;
+            }
+            pos = find(pos + 4, "-->") + 3;
+        }
+        int i = pos + 1;
+        byte quote = 0;
+        while (true) {
+            if (i >= limit) {
+                i -= compact();
+                if (!fill()) {
+                    throw new EOFException("Unterminated tag");
+                }
+                continue;
+            }
+            byte b = buf[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                break;
+            }
+            i += 1;
+        }
+        tagStart = pos;
+        tagEnd = i;
+        pos = i + 1;
+        return true;
+    }
+
+    /** Returns true if the buffered bytes at i begin with s, reading more input if needed. */
+    private boolean startsWithAt(int i, String s) throws IOException {
+        while (i + s.length() > limit) {
+            i -= compact();
+            if (!fill()) {
+                return false;
+            }
+        }
+        for (int k = 0; k < s.length(); k += 1) {
+            if (buf[i + k] != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the position of the next occurrence of s at or after i, reading more input. */
+    private int find(int i, String s) throws IOException {
+        while (true) {
+            for (; i + s.length() <= limit; i += 1) {
+                boolean match = true;
+                for (int k = 0; k < s.length() && match; k += 1) {
+                    match = buf[i + k] == s.charAt(k);
+                }
+                if (match) {
+                    return i;
+                }
+            }
+            i -= compact();
+            if (!fill()) {
+                throw new EOFException("Expected " + s);
+            }
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer, growing it if it is already full.
+     *
+     * @return How far the bytes moved; positions into the buffer must be reduced by this much.
+     */
+    private int compact() {
+        int shift = pos;
+        if (shift == 0 && limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+            return 0;
+        }
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        return shift;
+    }
+
+    /**
+     * Reads more input after <code>limit</code>. Callers make room with <code>compact</code>
+     * first, so the buffer is never full here.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * Splits the current tag into its name and attributes.
+     *
+     * @return False for declarations and processing instructions, which carry no data.
+     */
+    private boolean parseTag() throws IOException {
+        int p = tagStart + 1;
+        if (buf[p] == '?' || buf[p] == '!') {
+            return false;
+        }
+        nameStart = p;
+        while (p < tagEnd && !isSpace(buf[p]) && buf[p] != '/') {
+            p += 1;
+        }
+        if (p == nameStart && buf[p] == '/') {
+            /* A closing tag: keep the slash as part of the name. */
+            p += 1;
+            while (p < tagEnd && !isSpace(buf[p])) {
+                p += 1;
+            }
+        }
+        nameEnd = p;
+        selfClosing = buf[tagEnd - 1] == '/' && tagEnd - 1 >= nameEnd;
+
+        attrCount = 0;
+        while (true) {
+            while (p < tagEnd && (isSpace(buf[p]) || buf[p] == '/')) {
+                p += 1;
+            }
+            if (p >= tagEnd) {
+                return true;
+            }
+            int start = p;
+            while (p < tagEnd && buf[p] != '=' && !isSpace(buf[p])) {
+                p += 1;
+            }
+            int end = p;
+            while (p < tagEnd && buf[p] != '"' && buf[p] != '\'') {
+                p += 1;
+            }
+            if (p >= tagEnd) {
+                throw new IOException("Malformed attribute in tag at byte " + tagStart);
+            }
+            byte quote = buf[p];
+            p += 1;
+            int valueStart = p;
+            while (buf[p] != quote) {
+                p += 1;
+            }
+            if (attrCount == attrNameStart.length) {
+                int capacity = attrCount * 2;
+                attrNameStart = Arrays.copyOf(attrNameStart, capacity);
+                attrNameEnd = Arrays.copyOf(attrNameEnd, capacity);
+                attrValueStart = Arrays.copyOf(attrValueStart, capacity);
+                attrValueEnd = Arrays.copyOf(attrValueEnd, capacity);
+            }
+            attrNameStart[attrCount] = start;
+            attrNameEnd[attrCount] = end;
+            attrValueStart[attrCount] = valueStart;
+            attrValueEnd[attrCount] = p;
+            attrCount += 1;
+            p += 1;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private boolean nameIs(byte[] name) {
+        return Arrays.equals(buf, nameStart, nameEnd, name, 0, name.length);
+    }
+
+    /**
+     * Returns the index of the attribute called <code>name</code> in the current tag.
+     *
+     * @throws IOException If the tag has no such attribute.
+     */
+    private int attr(byte[] name) throws IOException {
+        for (int a = 0; a < attrCount; a += 1) {
+            if (Arrays.equals(buf, attrNameStart[a], attrNameEnd[a], name, 0, name.length)) {
+                return a;
+            }
+        }
+        throw new IOException("Missing attribute " + new String(name, StandardCharsets.US_ASCII)
+                + " in tag at byte " + tagStart);
+    }
+
+    private boolean valueIs(int a, byte[] value) {
+        return Arrays.equals(buf, attrValueStart[a], attrValueEnd[a], value, 0, value.length);
+    }
+
+    private boolean valueIsAny(int a, byte[][] values) {
+        return valueIndex(a, values) >= 0;
+    }
+
+    /** Returns the position of attribute a's value in values, or -1. */
+    private int valueIndex(int a, byte[][] values) {
+        for (int i = 0; i < values.length; i += 1) {
+            if (valueIs(a, values[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Parses attribute a as a decimal long, without allocating. */
+    private long parseLong(int a) throws IOException {
+        int p = attrValueStart[a];
+        int end = attrValueEnd[a];
+        boolean negative = p < end && buf[p] == '-';
+        if (negative) {
+            p += 1;
+        }
+        if (p == end || end - p > 18) {
+            try {
+                return Long.parseLong(decode(a));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in tag at byte " + tagStart, e);
+            }
+        }
+        long value = 0;
+        for (; p < end; p += 1) {
+            int digit = buf[p] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed number in tag at byte " + tagStart);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses attribute a as a double. Plain decimals with at most 15 significant digits, which
+     * covers every OSM coordinate, are computed as one exact integer divided by an exact power of
+     * ten, giving the same correctly rounded result as <code>Double.parseDouble</code> without
+     * allocating. Anything else falls back to <code>Double.parseDouble</code>.
+     */
+    private double parseDouble(int a) throws IOException {
+        int p = attrValueStart[a];
+        int end = attrValueEnd[a];
+        boolean negative = p < end && buf[p] == '-';
+        if (negative) {
+            p += 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        boolean simple = p < end;
+        for (; p < end && simple; p += 1) {
+            byte b = buf[p];
+            if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    digits += 1;
+                }
+                if (seenPoint) {
+                    fractionDigits += 1;
+                }
+            } else {
+                simple = false;
+            }
+        }
+        if (!simple || digits > 15 || fractionDigits >= POW10.length) {
+            try {
+                return Double.parseDouble(decode(a));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in tag at byte " + tagStart, e);
+            }
+        }
+        double value = mantissa / POW10[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Returns attribute a as a string, resolving character entities.
+     *
+     * @throws IOException If a character reference is malformed.
+     */
+    private String decode(int a) throws IOException {
+        int p = attrValueStart[a];
+        int end = attrValueEnd[a];
+        int amp = p;
+        while (amp < end && buf[amp] != '&') {
+            amp += 1;
+        }
+        if (amp == end) {
+            return new String(buf, p, end - p, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < end - p) {
+            scratch = new byte[Math.max(end - p, scratch.length * 2)];
+        }
+        int n = 0;
+        while (p < end) {
+            if (buf[p] != '&') {
+                scratch[n++] = buf[p++];
+                continue;
+            }
+            int semi = p;
+            while (semi < end && buf[semi] != ';') {
+                semi += 1;
+            }
+            String entity = new String(buf, p + 1, semi - p - 1, StandardCharsets.US_ASCII);
+            int codePoint;
+            switch (entity) {
+                case "amp":
+                    codePoint = '&';
+                    break;
+                case "lt":
+                    codePoint = '<';
+                    break;
+                case "gt":
+                    codePoint = '>';
+                    break;
+                case "quot":
+                    codePoint = '"';
+                    break;
+                case "apos":
+                    codePoint = '\'';
+                    break;
+                default:
+                    codePoint = entity.startsWith("#") ? codePoint(entity) : '?';
+            }
+            byte[] utf8 = new String(Character.toChars(codePoint))
+                    .getBytes(StandardCharsets.UTF_8);
+            if (n + utf8.length + (end - semi) > scratch.length) {
+                scratch = Arrays.copyOf(scratch, (n + utf8.length + end - semi) * 2);
+            }
+            System.arraycopy(utf8, 0, scratch, n, utf8.length);
+            n += utf8.length;
+            p = semi + 1;
+        }
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the code point of a character reference such as <code>#233</code> or
+     * <code>#xE9</code>.
+     *
+     * @throws IOException If the reference is not a number or not a code point.
+     */
+    private int codePoint(String entity) throws IOException {
+        String message = "Malformed character reference &" + entity + "; in tag at byte "
+                + tagStart;
+        int codePoint;
+        try {
+            codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+                    : Integer.parseInt(entity.substring(1));
+        } catch (NumberFormatException e) {
+            throw new IOException(message, e);
+        }
+        if (!Character.isValidCodePoint(codePoint)) {
+            throw new IOException(message);
+        }
+        return codePoint;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,260 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Builds the road graph from an OSM XML file using several threads. The file is read into memory
+ * and cut into chunks at the start of top-level <code>&lt;node&gt;</code>, <code>&lt;way&gt;</code>
+ * or <code>&lt;relation&gt;</code> elements, so that each chunk is a run of complete elements.
+ * Every chunk is wrapped in its own <code>&lt;osm&gt;</code> root and parsed by a separate SAX
+ * parser on a fork-join pool into its own <code>GraphBuilder</code>; the builders are then merged
+ * in file order and frozen into CSR form.
+ *
+ * Ways are always contained in a single chunk, but may refer to nodes from any chunk; those
+ * references are resolved after the merge.
+ */
+class ParallelGraphLoader {
+    /** Chunks per thread; more chunks than threads evens out the load across the pool. */
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final byte[] OPEN_ROOT = "<osm>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE_ROOT = "</osm>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] TOP_LEVEL = {
+        "<node".getBytes(StandardCharsets.US_ASCII),
+        "<way".getBytes(StandardCharsets.US_ASCII),
+        "<relation".getBytes(StandardCharsets.US_ASCII)
+    };
+
+    private ParallelGraphLoader() {
+    }
+
+    /**
+     * Parses the OSM XML file at <code>dbPath</code> on <code>threads</code> threads.
+     *
+     * @param dbPath  Path to the XML file to be parsed.
+     * @param threads The number of parser threads.
+     * @return The frozen graph.
+     * @throws IOException If the file cannot be read or parsed.
+     */
+    static CSRGraph load(String dbPath, int threads) throws IOException {
+        byte[] data = Files.readAllBytes(Paths.get(dbPath));
+        int[] bounds = chunkBoundaries(data, threads * CHUNKS_PER_THREAD);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<GraphBuilder>> tasks = new ArrayList<>();
+            for (int c = 0; c + 1 < bounds.length; c += 1) {
+                int from = bounds[c];
+                int to = bounds[c + 1];
+                tasks.add(pool.submit(() -> parseChunk(data, from, to)));
+            }
+            GraphBuilder builder = new GraphBuilder();
+            for (ForkJoinTask<GraphBuilder> task : tasks) {
+                builder.addAll(task.join());
+            }
+            return builder.build();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits the elements of an OSM XML document into about <code>chunks</code> byte ranges.
+     *
+     * @param data   The whole document.
+     * @param chunks The desired number of chunks.
+     * @return Increasing chunk boundaries; chunk <code>c</code> spans
+     * <code>[bounds[c], bounds[c + 1])</code>.
+     */
+    static int[] chunkBoundaries(byte[] data, int chunks) {
+        int start = firstElementStart(data);
+        int end = lastIndexOf(data, CLOSE_ROOT);
+        if (end < start) {
+            return new int[]{start, start};
+        }
+
+        int[] bounds = new int[chunks + 1];
+        int count = 0;
+        bounds[count++] = start;
+        for (int c = 1; c < chunks; c += 1) {
+            int pos = Math.max(start + (int) ((long) (end - start) * c / chunks),
+                    bounds[count - 1] + 1);
+            pos = nextElementStart(data, pos, end);
+            if (pos < end && pos > bounds[count - 1]) {
+                bounds[count++] = pos;
+            }
+        }
+        bounds[count++] = end;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /** Returns the first top-level element start at or after the line following pos. */
+    private static int nextElementStart(byte[] data, int pos, int end) {
+        while (pos < end) {
+            while (pos < end && data[pos] != '\n') {
+                pos += 1;
+            }
+            pos += 1;
+            int tag = pos;
+            while (tag < end && (data[tag] == ' ' || data[tag] == '\t' || data[tag] == '\r')) {
+                tag += 1;
+            }
+            for (byte[] element : TOP_LEVEL) {
+                if (startsWith(data, tag, end, element)) {
+                    return tag;
+                }
+            }
+        }
+        return end;
+    }
+
+    /** Returns true if data[pos, end) begins with element followed by a delimiter. */
+    private static boolean startsWith(byte[] data, int pos, int end, byte[] element) {
+        if (pos + element.length >= end) {
+            return false;
+        }
+        for (int k = 0; k < element.length; k += 1) {
+            if (data[pos + k] != element[k]) {
+                return false;
+            }
+        }
+        byte next = data[pos + element.length];
+        return next == ' ' || next == '\t' || next == '>' || next == '/' || next == '\n';
+    }
+
+    private static int firstElementStart(byte[] data) {
+        for (int i = 0; i < data.length; i += 1) {
+            if (data[i] != '<') {
+                continue;
+            }
+            for (byte[] element : TOP_LEVEL) {
+                if (startsWith(data, i, data.length, element)) {
+                    return i;
+                }
+            }
+        }
+        return data.length;
+    }
+
+    private static int lastIndexOf(byte[] data, byte[] pattern) {
+        for (int i = data.length - pattern.length; i >= 0; i -= 1) {
+            if (Arrays.equals(data, i, i + pattern.length, pattern, 0, pattern.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the complete elements in <code>data[from, to)</code> into a new builder.
+     */
+    private static GraphBuilder parseChunk(byte[] data, int from, int to) {
+        GraphBuilder builder = new GraphBuilder();
+        InputStream in = new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream(OPEN_ROOT),
+                new ByteArrayInputStream(data, from, to - from),
+                new ByteArrayInputStream(CLOSE_ROOT))));
+        try {
+            SAXParser saxParser = SAXParserFactory.newInstance().newSAXParser();
+            saxParser.parse(in, new ChunkHandler(builder));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new UncheckedIOException(new IOException(e));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return builder;
+    }
+
+    /**
+     * Collects the nodes, node tags, highway edges and way metadata of one chunk. Follows the
+     * same rules as <code>GraphBuildingHandler</code>.
+     */
+    private static class ChunkHandler extends DefaultHandler {
+        private final GraphBuilder builder;
+        private long[] refs = new long[64];
+        private int refCount;
+        private boolean inNode;
+        private boolean inWay;
+        private boolean isHighway;
+        private String wayName;
+        private String wayHighway;
+        private String wayMaxSpeed;
+        private long wayId;
+
+        ChunkHandler(GraphBuilder builder) {
+            this.builder = builder;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) {
+            if (qName.equals("node")) {
+                inNode = true;
+                builder.addNode(Long.parseLong(attributes.getValue("id")),
+                        Double.parseDouble(attributes.getValue("lon")),
+                        Double.parseDouble(attributes.getValue("lat")));
+            } else if (qName.equals("way")) {
+                inWay = true;
+                wayId = Long.parseLong(attributes.getValue("id"));
+                refCount = 0;
+                isHighway = false;
+                wayName = null;
+                wayHighway = null;
+                wayMaxSpeed = null;
+            } else if (inWay && qName.equals("nd")) {
+                if (refCount == refs.length) {
+                    refs = Arrays.copyOf(refs, refCount * 2);
+                }
+                refs[refCount] = Long.parseLong(attributes.getValue("ref"));
+                refCount += 1;
+            } else if (inWay && qName.equals("tag")) {
+                String k = attributes.getValue("k");
+                String v = attributes.getValue("v");
+                if (k.equals("highway")) {
+                    wayHighway = v;
+                    if (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(v)) {
+                        isHighway = true;
+                    }
+                } else if (k.equals("name")) {
+                    wayName = v;
+                } else if (k.equals("maxspeed")) {
+                    wayMaxSpeed = v;
+                }
+            } else if (inNode && qName.equals("tag")) {
+                builder.tagLastNode(attributes.getValue("k"), attributes.getValue("v"));
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (qName.equals("node")) {
+                inNode = false;
+            } else if (qName.equals("way")) {
+                if (isHighway) {
+                    builder.addWay(wayId, refs, refCount,
+                            builder.internWay(wayName, wayHighway, wayMaxSpeed));
+                }
+                inWay = false;
+            }
+        }
+    }
+}
@@ -1,12 +1,10 @@
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.List;
-import java.util.HashMap;
-import java.util.PriorityQueue;
-import java.util.HashSet;
 import java.util.Objects;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class provides a <code>shortestPath</code> method and <code>routeDirections</code> for
@@ -27,63 +25,319 @@ public class Router {
     public static List<Long> shortestPath(GraphDB g,
                                           double stlon, double stlat,
                                           double destlon, double destlat) {
-        HashMap<Long, Double> priorities = new HashMap<>();
-        HashMap<Long, Double> distance = new HashMap<>();
-        HashMap<Long, Long> nodeParent = new HashMap<>();
-        PriorityQueue<Long> fringe = new PriorityQueue<>((a, b) -> Double.compare(priorities.get(a),
-                priorities.get(b)));
-        HashSet<Long> visited = new HashSet<>();
+        return shortestPath(g, stlon, stlat, destlon, destlat, Search.FORWARD,
+                Disconnected.REJECT);
+    }
+
+    /**
+     * What <code>shortestPath</code> does when the start and destination snap to vertices in
+     * different connected components, between which no path exists.
+     */
+    enum Disconnected {
+        /** Return an empty route straight away, without searching. */
+        REJECT,
+        /** Snap whichever endpoints lie outside the largest component to its nearest vertex. */
+        SNAP_TO_LARGEST
+    }
+
+    /**
+     * How <code>shortestPath</code> searches between the vertices that the points snap to. Every
+     * search returns a shortest path, but where several paths tie in length, or come within
+     * rounding of it, they may return different ones; <code>FORWARD</code> is the default so that
+     * routes stay the ones it has always returned.
+     */
+    enum Search {
+        /** A* forward from the start, over every vertex. */
+        FORWARD,
+        /**
+         * A* forward from the start over the junctions of <code>g.contracted()</code>, in which
+         * chains of degree-two vertices are single edges.
+         */
+        CONTRACTED,
+        /**
+         * A* from the start and from the destination at once, over every vertex, each side
+         * guided by the average of its own heuristic and the negated heuristic of the other.
+         */
+        BIDIRECTIONAL,
+        /**
+         * Dijkstra's algorithm from the start and from the destination at once, over the
+         * upward edges of <code>g.hierarchy()</code>, with the shortcuts on the path unpacked.
+         * Until the hierarchy is ready, searches as <code>CONTRACTED</code> while it is built in
+         * the background.
+         */
+        HIERARCHY,
+        /**
+         * A* forward from the start, over every vertex, guided by the larger of the
+         * great-circle distance and the bound from <code>g.landmarks()</code>.
+         */
+        LANDMARKS;
+
+        /**
+         * Returns the search with the given case-insensitive name, or <code>FORWARD</code>, the
+         * default, if the name is null.
+         *
+         * @throws IllegalArgumentException If no search has that name.
+         */
+        static Search named(String name) {
+            if (name == null) {
+                return FORWARD;
+            }
+            for (Search search : values()) {
+                if (search.name().equalsIgnoreCase(name)) {
+                    return search;
+                }
+            }
+            throw new IllegalArgumentException(String.format("Unknown search: %s.", name));
+        }
+    }
 
-        long s = g.closest(stlon, stlat);
-        long t = g.closest(destlon, destlat);
+    /**
+     * Like <code>shortestPath</code>, but chooses whether to search the contracted view of the
+     * graph, in which chains of degree-two vertices are single edges, or every vertex. Both
+     * searches return a shortest path of the same length, though not always the same one.
+     *
+     * @param contracted True to search <code>g.contracted()</code>.
+     */
+    static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat, boolean contracted) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, contracted, Disconnected.REJECT);
+    }
 
-        distance.put(s, 0.0);
-        nodeParent.put(s, s);
-        double priority = g.distance(s, t);
-        priorities.put(s, priority);
+    /**
+     * Like <code>shortestPath</code>, but also chooses how to handle endpoints in different
+     * connected components. Component labels are computed when the graph is built, so such
+     * pairs are detected before any search starts instead of after draining the fringe.
+     *
+     * @param contracted   True to search <code>g.contracted()</code>.
+     * @param disconnected What to do about endpoints in different components.
+     * @return The route, or an empty list if it was rejected.
+     */
+    static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat, boolean contracted,
+                                   Disconnected disconnected) {
+        return shortestPath(g, stlon, stlat, destlon, destlat,
+                contracted ? Search.CONTRACTED : Search.FORWARD, disconnected);
+    }
 
-        fringe.add(s);
-        shortPathHelp(priorities, distance, nodeParent, visited, fringe, g, t);
+    /**
+     * Like <code>shortestPath</code>, but chooses the search and how to handle endpoints in
+     * different connected components. Every search returns a path of the same length.
+     *
+     * @param search       How to search between the snapped endpoints.
+     * @param disconnected What to do about endpoints in different components.
+     * @return The route, or an empty list if it was rejected.
+     */
+    static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat, Search search, Disconnected disconnected) {
+        int s = g.closestIndex(stlon, stlat);
+        int t = g.closestIndex(destlon, destlat);
+        Components components = g.components();
+        if (!components.connected(s, t)) {
+            if (disconnected == Disconnected.REJECT) {
+                return new ArrayList<>();
+            }
+            if (!components.inLargest(s)) {
+                s = g.closestIndex(stlon, stlat, components.largest);
+            }
+            if (!components.inLargest(t)) {
+                t = g.closestIndex(destlon, destlat, components.largest);
+            }
+        }
+        if (search == Search.HIERARCHY) {
+            ContractionHierarchy ch = g.hierarchy();
+            if (ch != null) {
+                return hierarchyPath(ch, g.csr(), s, t);
+            }
+            /* Still being built in the background; meanwhile a path of the same length. */
+            search = Search.CONTRACTED;
+        }
+        if (search == Search.CONTRACTED) {
+            return contractedPath(g.contracted(), s, t);
+        }
+        CSRGraph csr = g.csr();
+        if (search == Search.BIDIRECTIONAL) {
+            return bidirectionalPath(csr, s, t);
+        }
+        /* Before the state is taken: building the landmarks runs searches on this thread, which
+         * take the same state. */
+        Landmarks landmarks = search == Search.LANDMARKS ? g.landmarks() : null;
+        SearchState state = SearchState.take(csr.size());
+        shortPathHelp(csr, s, t, state, landmarks);
 
+        /* OSM IDs only reappear here, at the boundary; the search itself runs on indices. */
         List<Long> shortPath = new ArrayList<>();
-        long temp = t;
+        int temp = t;
         while (temp != s) {
-            if (nodeParent.get(temp) == null) {
+            if (state.parent(temp) < 0) {
                 break;
             }
-            shortPath.add(0, temp);
-            temp = nodeParent.get(temp);
+            shortPath.add(csr.ids[temp]);
+            temp = state.parent(temp);
         }
-        shortPath.add(0, temp);
+        shortPath.add(csr.ids[temp]);
+        Collections.reverse(shortPath);
         return shortPath;
     }
 
-    private static void shortPathHelp(HashMap<Long, Double> priorities, HashMap<Long, Double>
-            distance, HashMap<Long, Long> nodeParent, HashSet<Long> visited,
-                                      PriorityQueue<Long> fringe, GraphDB g, Long t) {
+    /**
+     * Returns the road distance from every source to every target, snapping each point to its
+     * closest vertex once and running one search per source, stopped as soon as it has reached
+     * every target, across the common fork-join pool.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param sources The longitude and latitude of every source, as <code>{lon, lat}</code>.
+     * @param targets The longitude and latitude of every target, as <code>{lon, lat}</code>.
+     * @return The length in miles of the shortest path from source i to target j, or infinity
+     * if there is none, at <code>i * targets.length + j</code>.
+     */
+    public static double[] distanceMatrix(GraphDB g, double[][] sources, double[][] targets) {
+        return DistanceMatrix.compute(g, sources, targets, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * A route between two points that were snapped to the closest road segment rather than the
+     * closest vertex, so that it may start and end part way along an edge.
+     */
+    static class EdgeRoute {
+        /** Where the start point was snapped. */
+        final SegmentIndex.Hit start;
+        /** Where the destination point was snapped. */
+        final SegmentIndex.Hit end;
+        /**
+         * The OSM IDs of the vertices passed between the two snapped points, in order. Empty if
+         * the route runs straight along the one segment holding both.
+         */
+        final List<Long> vertices;
+        /** The length of the route in miles, or infinity if there is none. */
+        final double length;
+
+        EdgeRoute(SegmentIndex.Hit start, SegmentIndex.Hit end, List<Long> vertices,
+                  double length) {
+            this.start = start;
+            this.end = end;
+            this.vertices = vertices;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Finds the shortest route between two points, each snapped to the closest point on the
+     * closest road segment with <code>GraphDB.nearestEdge</code>. The search is seeded from both
+     * ends of the start segment, at their distance along it from the snapped start, and finishes
+     * through whichever end of the destination segment gives the shorter route. It stops once no
+     * vertex left on the fringe can lead to a shorter route.
+     *
+     * @param g            <code>GraphDB</code> data source.
+     * @param stlon        The longitude of the starting coordinate.
+     * @param stlat        The latitude of the starting coordinate.
+     * @param destlon      The longitude of the destination coordinate.
+     * @param destlat      The latitude of the destination coordinate.
+     * @param disconnected What to do about endpoints in different components.
+     * @return The route; its length is infinite if there is none.
+     */
+    static EdgeRoute shortestPathBetweenEdges(GraphDB g, double stlon, double stlat,
+                                              double destlon, double destlat,
+                                              Disconnected disconnected) {
+        SegmentIndex.Hit start = g.nearestEdge(stlon, stlat);
+        SegmentIndex.Hit end = g.nearestEdge(destlon, destlat);
+        if (start == null || end == null) {
+            return new EdgeRoute(start, end, new ArrayList<>(), Double.POSITIVE_INFINITY);
+        }
+        Components components = g.components();
+        if (!components.connected(start.from, end.from)) {
+            if (disconnected == Disconnected.REJECT) {
+                return new EdgeRoute(start, end, new ArrayList<>(), Double.POSITIVE_INFINITY);
+            }
+            if (!components.inLargest(start.from)) {
+                start = g.nearestEdge(stlon, stlat, components.largest);
+            }
+            if (!components.inLargest(end.from)) {
+                end = g.nearestEdge(destlon, destlat, components.largest);
+            }
+        }
+
+        CSRGraph csr = g.csr();
+        SearchState state = SearchState.take(csr.size());
+        double startLength = csr.weights[start.entry];
+        double endLength = csr.weights[end.entry];
+        double toEndFrom = end.fraction * endLength;
+        double toEndTo = (1 - end.fraction) * endLength;
+
+        seed(csr, state, start.from, start.fraction * startLength, end);
+        seed(csr, state, start.to, (1 - start.fraction) * startLength, end);
+        /* The best route ends at vertex bestEnd, or at -1 if it runs along the one segment. */
+        double best = Double.POSITIVE_INFINITY;
+        int bestEnd = -1;
+        if (start.entry == end.entry) {
+            best = Math.abs(start.fraction - end.fraction) * startLength;
+        }
+        while (!state.isEmpty() && state.peekPriority() < best) {
+            int v = state.poll();
+            double sToV = state.distance(v);
+            if (v == end.from && sToV + toEndFrom < best) {
+                best = sToV + toEndFrom;
+                bestEnd = v;
+            }
+            if (v == end.to && sToV + toEndTo < best) {
+                best = sToV + toEndTo;
+                bestEnd = v;
+            }
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                double sToW = sToV + csr.weights[e];
+                if (state.distance(w) > sToW) {
+                    state.relax(w, sToW, v, e, sToW + GraphDB.distance(csr.lons[w], csr.lats[w],
+                            end.lon, end.lat));
+                }
+            }
+        }
 
-        while (!fringe.isEmpty()) {
-            long vId = fringe.poll();
-            if (vId == t) {
-                return;
+        List<Long> vertices = new ArrayList<>();
+        if (bestEnd >= 0) {
+            for (int v = bestEnd; v >= 0; v = state.parent(v)) {
+                vertices.add(csr.ids[v]);
             }
-            if (!visited.contains(vId)) {
-                visited.add(vId);
-                for (long w : g.adjacent(vId)) {
-                    if (w != nodeParent.get(vId)) {
-                        double vToW = g.distance(vId, w); //ed(v, w)
-                        double sToW = distance.get(vId) + vToW; //d(s, v) + ed(v, w)
-                        if (!distance.containsKey(w) || distance.get(w) > sToW) {
-                            distance.put(w, sToW);
-                            nodeParent.put(w, vId);
+            Collections.reverse(vertices);
+        }
+        return new EdgeRoute(start, end, vertices, best);
+    }
 
-                            double priority = (sToW + g.distance(w, t));
+    /** Offers vertex v to the fringe at distance d from the start, if that is an improvement. */
+    private static void seed(CSRGraph csr, SearchState state, int v, double d,
+                             SegmentIndex.Hit end) {
+        state.relax(v, d, -1, -1, d + GraphDB.distance(csr.lons[v], csr.lats[v], end.lon,
+                end.lat));
+    }
 
-                            priorities.put(w, priority);
-                            fringe.add(w);
-                        }
+    /**
+     * Runs A* from vertex index <code>s</code> until vertex index <code>t</code> is settled,
+     * leaving in <code>state</code> the parent index of every vertex reached; <code>s</code> is
+     * its own parent. The heuristic is the great-circle distance to <code>t</code>, or the
+     * larger of it and the landmark bound if <code>landmarks</code> is not null; both are
+     * consistent, and so is their maximum.
+     */
+    private static void shortPathHelp(CSRGraph csr, int s, int t, SearchState state,
+                                      Landmarks landmarks) {
+        double lonT = csr.lons[t];
+        double latT = csr.lats[t];
 
-                    }
+        state.relax(s, 0.0, s, -1, heuristic(csr, landmarks, s, t, lonT, latT));
+        while (!state.isEmpty()) {
+            int v = state.poll();
+            if (v == t) {
+                break;
+            }
+            double sToV = state.distance(v);
+            int parent = state.parent(v);
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                if (w == parent) {
+                    continue;
+                }
+                double sToW = sToV + csr.weights[e]; //d(s, v) + ed(v, w), precomputed
+                if (state.distance(w) > sToW) {
+                    state.relax(w, sToW, v, e, sToW + heuristic(csr, landmarks, w, t, lonT,
+                            latT));
                 }
             }
 //            d(s, v): best known distance from s to v
@@ -96,6 +350,317 @@ public class Router {
         }
     }
 
+    /** Returns the heuristic of <code>shortPathHelp</code> from v to t, at lonT and latT. */
+    private static double heuristic(CSRGraph csr, Landmarks landmarks, int v, int t,
+                                    double lonT, double latT) {
+        double h = GraphDB.distance(csr.lons[v], csr.lats[v], lonT, latT);
+        return landmarks == null ? h : Math.max(h, landmarks.lowerBound(v, t));
+    }
+
+    /**
+     * Runs A* from vertex index <code>s</code> and from vertex index <code>t</code> at once, and
+     * returns the OSM IDs along the shortest path between them; just <code>t</code> if it cannot
+     * be reached.
+     *
+     * With h_s and h_t the great-circle distances to s and t, the forward search is guided by
+     * p(v) = (h_t(v) - h_s(v)) / 2 and the backward search by -p(v). Both are consistent, and
+     * the reduced length of an edge is the same in either direction, so the two searches are a
+     * bidirectional Dijkstra search over one graph of reduced lengths: once the smallest
+     * priorities on the two fringes add up to no less than the shortest path seen through a
+     * vertex reached from both sides, no shorter path remains. Each side expands whichever
+     * fringe has the smaller priority, so they meet about half way and settle two small balls
+     * instead of one large one.
+     */
+    private static List<Long> bidirectionalPath(CSRGraph csr, int s, int t) {
+        SearchState forward = SearchState.take(csr.size());
+        SearchState backward = SearchState.takeBackward(csr.size());
+        double lonS = csr.lons[s];
+        double latS = csr.lats[s];
+        double lonT = csr.lons[t];
+        double latT = csr.lats[t];
+
+        /* The best path found so far runs from s to meet, then on to t. */
+        double best = s == t ? 0.0 : Double.POSITIVE_INFINITY;
+        int meet = s == t ? s : -1;
+        double p = GraphDB.distance(lonS, latS, lonT, latT) / 2;
+        forward.relax(s, 0.0, s, -1, p);
+        backward.relax(t, 0.0, t, -1, p);
+        while (!forward.isEmpty() && !backward.isEmpty()
+                && forward.peekPriority() + backward.peekPriority() < best) {
+            boolean ahead = forward.peekPriority() <= backward.peekPriority();
+            SearchState from = ahead ? forward : backward;
+            SearchState other = ahead ? backward : forward;
+            int v = from.poll();
+            double sToV = from.distance(v);
+            int parent = from.parent(v);
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                if (w == parent) {
+                    continue;
+                }
+                double sToW = sToV + csr.weights[e];
+                if (from.distance(w) > sToW) {
+                    double toT = GraphDB.distance(csr.lons[w], csr.lats[w], lonT, latT);
+                    double toS = GraphDB.distance(csr.lons[w], csr.lats[w], lonS, latS);
+                    double priority = sToW + (ahead ? toT - toS : toS - toT) / 2;
+                    if (from.relax(w, sToW, v, e, priority) && sToW + other.distance(w) < best) {
+                        best = sToW + other.distance(w);
+                        meet = w;
+                    }
+                }
+            }
+        }
+
+        List<Long> path = new ArrayList<>();
+        if (meet < 0) {
+            path.add(csr.ids[t]);
+            return path;
+        }
+        for (int v = meet; v != s; v = forward.parent(v)) {
+            path.add(csr.ids[v]);
+        }
+        path.add(csr.ids[s]);
+        Collections.reverse(path);
+        for (int v = meet; v != t; v = backward.parent(v)) {
+            path.add(csr.ids[backward.parent(v)]);
+        }
+        return path;
+    }
+
+    /**
+     * Searches upward in <code>ch</code> from vertex index <code>s</code> and from vertex index
+     * <code>t</code> at once, and returns the OSM IDs along the shortest path between them; just
+     * <code>t</code> if it cannot be reached. Each side settles vertices in order of distance
+     * until its fringe holds nothing closer than the shortest path seen through a vertex that
+     * both have reached; the shortcuts on that path are then unpacked into the vertices they
+     * bypass.
+     */
+    private static List<Long> hierarchyPath(ContractionHierarchy ch, CSRGraph csr, int s,
+                                            int t) {
+        SearchState forward = SearchState.take(ch.size());
+        SearchState backward = SearchState.takeBackward(ch.size());
+        double best = s == t ? 0.0 : Double.POSITIVE_INFINITY;
+        int meet = s == t ? s : -1;
+        forward.relax(s, 0.0, s, -1, 0.0);
+        backward.relax(t, 0.0, t, -1, 0.0);
+        while (true) {
+            boolean forwardOpen = !forward.isEmpty() && forward.peekPriority() < best;
+            boolean backwardOpen = !backward.isEmpty() && backward.peekPriority() < best;
+            if (!forwardOpen && !backwardOpen) {
+                break;
+            }
+            boolean ahead = forwardOpen
+                    && (!backwardOpen || forward.peekPriority() <= backward.peekPriority());
+            SearchState from = ahead ? forward : backward;
+            SearchState other = ahead ? backward : forward;
+            int v = from.poll();
+            double sToV = from.distance(v);
+            if (stalled(ch, from, v, sToV)) {
+                continue;
+            }
+            for (int e = ch.offsets[v]; e < ch.offsets[v + 1]; e += 1) {
+                int w = ch.targets[e];
+                double sToW = sToV + ch.weights[e];
+                if (from.relax(w, sToW, v, e, sToW) && sToW + other.distance(w) < best) {
+                    best = sToW + other.distance(w);
+                    meet = w;
+                }
+            }
+        }
+
+        List<Long> path = new ArrayList<>();
+        if (meet < 0) {
+            path.add(csr.ids[t]);
+            return path;
+        }
+        /* Both halves are walked down from the meeting vertex: to s, flipped, then to t. */
+        path.add(csr.ids[meet]);
+        for (int v = meet; v != s; v = forward.parent(v)) {
+            appendShortcut(path, ch, csr.ids, forward.parent(v), forward.entry(v), true);
+        }
+        Collections.reverse(path);
+        for (int v = meet; v != t; v = backward.parent(v)) {
+            appendShortcut(path, ch, csr.ids, backward.parent(v), backward.entry(v), true);
+        }
+        return path;
+    }
+
+    /**
+     * Returns whether a search that settled v at distance <code>sToV</code> has reached a
+     * higher-ranked neighbor of v from which v is closer. Such a v is not on a shortest path
+     * up from the search's origin, so its edges need not be relaxed. The edges of the graph
+     * run both ways, so the edges down into v are its upward edges.
+     */
+    private static boolean stalled(ContractionHierarchy ch, SearchState state, int v,
+                                   double sToV) {
+        for (int e = ch.offsets[v]; e < ch.offsets[v + 1]; e += 1) {
+            if (state.distance(ch.targets[e]) + ch.weights[e] < sToV) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends to <code>path</code> the OSM IDs of the vertices along upward edge e of vertex u
+     * of <code>ch</code>, unpacking shortcuts, but not the vertex it is walked from: the edge is
+     * walked from u unless <code>reversed</code>, in which case it is walked towards u.
+     */
+    private static void appendShortcut(List<Long> path, ContractionHierarchy ch, long[] ids,
+                                       int u, int e, boolean reversed) {
+        int w = ch.targets[e];
+        int m = ch.middles[e];
+        if (m < 0) {
+            path.add(ids[reversed ? u : w]);
+        } else if (reversed) {
+            appendShortcut(path, ch, ids, m, ch.edge(m, w), true);
+            appendShortcut(path, ch, ids, m, ch.edge(m, u), false);
+        } else {
+            appendShortcut(path, ch, ids, m, ch.edge(m, u), true);
+            appendShortcut(path, ch, ids, m, ch.edge(m, w), false);
+        }
+    }
+
+    /** Parent markers for junctions seeded directly from the start vertex. */
+    private static final int FROM_SOURCE = -1;
+    private static final int FROM_CHAIN_FIRST = -2;
+    private static final int FROM_CHAIN_LAST = -3;
+    /** Marks a best path that runs straight along the chain holding both endpoints. */
+    private static final int ALONG_CHAIN = -2;
+
+    /**
+     * Runs A* over the junctions of <code>cg</code> from base vertex index <code>s</code> to base
+     * vertex index <code>t</code>, and expands the path back into base vertices. A start or end
+     * vertex inside a chain is attached to both ends of its chain: the search is seeded from both
+     * ends of the start chain, and finishes through whichever end of the end chain is cheaper.
+     * The search stops once no vertex left on the fringe can lead to a shorter path.
+     *
+     * @return The OSM IDs along the path; just <code>t</code> if it cannot be reached.
+     */
+    private static List<Long> contractedPath(ContractedGraph cg, int s, int t) {
+        CSRGraph csr = cg.base;
+        List<Long> path = new ArrayList<>();
+        int cs = cg.chainOf[s];
+        int ct = cg.chainOf[t];
+        if (s == t) {
+            path.add(csr.ids[s]);
+            return path;
+        }
+
+        SearchState state = SearchState.take(cg.size());
+        double lonT = csr.lons[t];
+        double latT = csr.lats[t];
+
+        if (cs < 0) {
+            seed(cg, state, cg.junctionOf[s], 0.0, FROM_SOURCE, lonT, latT);
+        } else {
+            int first = cg.chainOffsets[cs];
+            int last = cg.chainOffsets[cs + 1] - 1;
+            int p = cg.chainPosition[s];
+            seed(cg, state, cg.junctionOf[cg.chainVertices[first]], cg.chainDistances[p],
+                    FROM_CHAIN_FIRST, lonT, latT);
+            seed(cg, state, cg.junctionOf[cg.chainVertices[last]],
+                    cg.chainDistances[last] - cg.chainDistances[p], FROM_CHAIN_LAST, lonT, latT);
+        }
+
+        /*
+         * The best path found so far ends at junction bestEnd, then walks to t along ct. If s
+         * and t share a chain, walking straight along it is the first candidate.
+         */
+        int firstT = ct < 0 ? -1 : cg.chainOffsets[ct];
+        int lastT = ct < 0 ? -1 : cg.chainOffsets[ct + 1] - 1;
+        int q = ct < 0 ? -1 : cg.chainPosition[t];
+        double best = Double.POSITIVE_INFINITY;
+        int bestEnd = -1;
+        int bestEndPosition = -1;
+        if (cs >= 0 && cs == ct) {
+            best = Math.abs(cg.chainDistances[cg.chainPosition[s]] - cg.chainDistances[q]);
+            bestEnd = ALONG_CHAIN;
+        }
+        while (!state.isEmpty() && state.peekPriority() < best) {
+            int v = state.poll();
+            double sToV = state.distance(v);
+            int vertex = cg.junctions[v];
+            if (ct < 0) {
+                if (vertex == t) {
+                    best = sToV;
+                    bestEnd = v;
+                }
+            } else {
+                if (vertex == cg.chainVertices[firstT] && sToV + cg.chainDistances[q] < best) {
+                    best = sToV + cg.chainDistances[q];
+                    bestEnd = v;
+                    bestEndPosition = firstT;
+                }
+                double fromLast = cg.chainDistances[lastT] - cg.chainDistances[q];
+                if (vertex == cg.chainVertices[lastT] && sToV + fromLast < best) {
+                    best = sToV + fromLast;
+                    bestEnd = v;
+                    bestEndPosition = lastT;
+                }
+            }
+            for (int e = cg.offsets[v]; e < cg.offsets[v + 1]; e += 1) {
+                int w = cg.targets[e];
+                double sToW = sToV + cg.weights[e];
+                if (state.distance(w) > sToW) {
+                    int b = cg.junctions[w];
+                    state.relax(w, sToW, v, e, sToW + GraphDB.distance(csr.lons[b], csr.lats[b],
+                            lonT, latT));
+                }
+            }
+        }
+        if (bestEnd == ALONG_CHAIN) {
+            appendChain(path, cg, cg.chainPosition[s], q);
+            return path;
+        } else if (bestEnd < 0) {
+            path.add(csr.ids[t]);
+            return path;
+        }
+
+        /* Expand the path backwards, from t to s, then flip it. */
+        if (ct < 0) {
+            path.add(csr.ids[t]);
+        } else {
+            appendChain(path, cg, q, bestEndPosition);
+        }
+        int j = bestEnd;
+        while (state.entry(j) >= 0) {
+            int c = cg.chains[state.entry(j)];
+            if (c >= 0) {
+                appendChain(path, cg, cg.chainOffsets[c + 1] - 2, cg.chainOffsets[c]);
+            } else {
+                appendChain(path, cg, cg.chainOffsets[~c] + 1, cg.chainOffsets[~c + 1] - 1);
+            }
+            j = state.parent(j);
+        }
+        if (state.entry(j) == FROM_CHAIN_FIRST) {
+            appendChain(path, cg, cg.chainOffsets[cs] + 1, cg.chainPosition[s]);
+        } else if (state.entry(j) == FROM_CHAIN_LAST) {
+            appendChain(path, cg, cg.chainOffsets[cs + 1] - 2, cg.chainPosition[s]);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /** Offers junction j to the fringe at distance d from the start, if that is an improvement. */
+    private static void seed(ContractedGraph cg, SearchState state, int j, double d, int from,
+                             double lonT, double latT) {
+        int b = cg.junctions[j];
+        state.relax(j, d, -1, from, d + GraphDB.distance(cg.base.lons[b], cg.base.lats[b], lonT,
+                latT));
+    }
+
+    /**
+     * Appends the OSM IDs of the chain vertices at positions <code>from</code> through
+     * <code>to</code>, inclusive and in that order, to <code>path</code>.
+     */
+    private static void appendChain(List<Long> path, ContractedGraph cg, int from, int to) {
+        int step = from <= to ? 1 : -1;
+        for (int k = from; k != to + step; k += step) {
+            path.add(cg.base.ids[cg.chainVertices[k]]);
+        }
+    }
+
     /**
      * Given a <code>route</code> of vertex IDs, return a <code>List</code> of
      * <code>NavigationDirection</code> objects representing the travel directions in order.
@@ -0,0 +1,48 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a body over a range of indices on a fork-join pool, halving the range until each piece is
+ * at most one chunk long. The chunk trades the cost of a task against how evenly the work
+ * spreads: a few hundred cheap items, or a single item that is already a large task.
+ */
+class Runs extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final int chunk;
+    private final Body body;
+
+    /** Work on the items in <code>[from, to)</code>. */
+    interface Body {
+        void run(int from, int to);
+    }
+
+    /**
+     * Creates a task over the items in <code>[from, to)</code>.
+     *
+     * @param from  The first item.
+     * @param to    One past the last item.
+     * @param chunk The most items in a piece that is not split further, at least 1.
+     * @param body  The work on each piece.
+     */
+    Runs(int from, int to, int chunk, Body body) {
+        if (chunk < 1) {
+            throw new IllegalArgumentException("chunk must be positive");
+        }
+        this.from = from;
+        this.to = to;
+        this.chunk = chunk;
+        this.body = body;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= chunk) {
+            body.run(from, to);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new Runs(from, mid, chunk, body), new Runs(mid, to, chunk, body));
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+/**
+ * The working state of one shortest-path search over vertices numbered <code>0</code> to
+ * <code>n - 1</code>: the best known distance, parent and parent entry of every vertex reached,
+ * and the fringe, an indexed 4-ary min-heap that moves a vertex up when its priority improves
+ * instead of adding it again.
+ *
+ * Every thread keeps two states, the second for the backward half of a bidirectional search,
+ * and reuses them for each search it runs, so a search allocates nothing in proportion to the
+ * graph. Rather than clearing the arrays between searches, each search takes a new generation
+ * number and a vertex's entries count only if its stamp matches it; a vertex with an older stamp
+ * has not been reached yet. A state belongs to the search that took it until that search has
+ * read its results, and must not be taken again meanwhile.
+ */
+class SearchState {
+    /** The heap position of a vertex that has been settled and left the heap. */
+    private static final int SETTLED = -1;
+    private static final ThreadLocal<SearchState[]> STATES =
+            ThreadLocal.withInitial(() -> new SearchState[]{new SearchState(), new SearchState()});
+
+    private int[] stamps = new int[0];
+    private double[] distances = new double[0];
+    private int[] parents = new int[0];
+    private int[] entries = new int[0];
+    /** The position of every vertex on the heap, or <code>SETTLED</code>. */
+    private int[] positions = new int[0];
+    private int generation;
+    /** The number of vertices polled since the last reset. */
+    private int settled;
+
+    private int[] heap = new int[64];
+    private double[] priorities = new double[64];
+    private int size;
+
+    /**
+     * Returns this thread's state, ready for a new search over <code>n</code> vertices: no
+     * vertex reached and the fringe empty.
+     *
+     * @param n The number of vertices searched.
+     * @return The state.
+     */
+    static SearchState take(int n) {
+        SearchState[] states = STATES.get();
+        states[0].reset(n);
+        states[1].settled = 0;
+        return states[0];
+    }
+
+    /**
+     * Returns this thread's second state, ready for the backward half of a bidirectional search
+     * whose forward half has just taken the first.
+     *
+     * @param n The number of vertices searched.
+     * @return The state.
+     */
+    static SearchState takeBackward(int n) {
+        SearchState state = STATES.get()[1];
+        state.reset(n);
+        return state;
+    }
+
+    /** Returns the number of vertices settled by this thread's last search, both ways. */
+    static int settledByLastSearch() {
+        SearchState[] states = STATES.get();
+        return states[0].settled + states[1].settled;
+    }
+
+    private void reset(int n) {
+        if (stamps.length < n) {
+            int capacity = Math.max(n, stamps.length + (stamps.length >> 1));
+            stamps = new int[capacity];
+            distances = new double[capacity];
+            parents = new int[capacity];
+            entries = new int[capacity];
+            positions = new int[capacity];
+            generation = 0;
+        }
+        generation += 1;
+        if (generation == 0) {
+            /* Wrapped around: stamps from four billion searches ago would look current. */
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        size = 0;
+        settled = 0;
+    }
+
+    /** Returns the best known distance to v, or infinity if v has not been reached. */
+    double distance(int v) {
+        return stamps[v] == generation ? distances[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Returns the parent that v was last reached from, or -1 if v has not been reached. */
+    int parent(int v) {
+        return stamps[v] == generation ? parents[v] : -1;
+    }
+
+    /**
+     * Returns the entry that v was last reached along, as passed to <code>relax</code>, or -1 if
+     * v has not been reached.
+     */
+    int entry(int v) {
+        return stamps[v] == generation ? entries[v] : -1;
+    }
+
+    /** Returns whether v has been polled from the fringe. */
+    boolean settled(int v) {
+        return stamps[v] == generation && positions[v] == SETTLED;
+    }
+
+    /**
+     * Records that v can be reached at distance <code>d</code> from <code>parent</code> along
+     * <code>entry</code>, and puts it on the fringe at <code>priority</code> or moves it up to
+     * there, unless v is settled or already reached at no more than <code>d</code>. The
+     * priority must not exceed the one that v is on the fringe at, as holds for A* with a fixed
+     * heuristic.
+     *
+     * @return Whether v was updated.
+     */
+    boolean relax(int v, double d, int parent, int entry, double priority) {
+        int k;
+        if (stamps[v] != generation) {
+            stamps[v] = generation;
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+                priorities = Arrays.copyOf(priorities, size * 2);
+            }
+            k = size;
+            size += 1;
+        } else if (positions[v] == SETTLED || distances[v] <= d) {
+            return false;
+        } else {
+            k = positions[v];
+        }
+        distances[v] = d;
+        parents[v] = parent;
+        entries[v] = entry;
+        while (k > 0) {
+            int up = (k - 1) >>> 2;
+            if (priorities[up] <= priority) {
+                break;
+            }
+            heap[k] = heap[up];
+            priorities[k] = priorities[up];
+            positions[heap[k]] = k;
+            k = up;
+        }
+        heap[k] = v;
+        priorities[k] = priority;
+        positions[v] = k;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the smallest priority on the fringe, which must not be empty. */
+    double peekPriority() {
+        return priorities[0];
+    }
+
+    /** Removes the vertex with the smallest priority from the fringe, settles it and returns it. */
+    int poll() {
+        int top = heap[0];
+        positions[top] = SETTLED;
+        settled += 1;
+        size -= 1;
+        if (size == 0) {
+            return top;
+        }
+        int v = heap[size];
+        double priority = priorities[size];
+        int k = 0;
+        while (true) {
+            int first = 4 * k + 1;
+            if (first >= size) {
+                break;
+            }
+            int child = first;
+            int last = Math.min(first + 4, size);
+            for (int c = first + 1; c < last; c += 1) {
+                if (priorities[c] < priorities[child]) {
+                    child = c;
+                }
+            }
+            if (priority <= priorities[child]) {
+                break;
+            }
+            heap[k] = heap[child];
+            priorities[k] = priorities[child];
+            positions[heap[k]] = k;
+            k = child;
+        }
+        heap[k] = v;
+        priorities[k] = priority;
+        positions[v] = k;
+        return top;
+    }
+}
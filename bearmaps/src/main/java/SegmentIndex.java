@@ -0,0 +1,404 @@
+import java.util.Arrays;
+
+/**
+ * A packed R-tree over the edges of a <code>CSRGraph</code>, for finding the road segment
+ * closest to a point. Each undirected edge is one segment between its endpoints' projected
+ * positions. The tree is bulk-loaded with Sort-Tile-Recursive packing, applied top down: the
+ * segments of a node are sorted into vertical slices by the x of their midpoints, each slice into
+ * runs by y, and every run becomes a child packed the same way. Every node but the last on a
+ * level is full, so the node <code>k</code> of level <code>L</code> (leaves being level 0) covers
+ * the segments <code>[k * B^(L+1), (k + 1) * B^(L+1))</code> and its children are the nodes
+ * <code>[k * B, (k + 1) * B)</code> of level <code>L - 1</code>, with <code>B = FANOUT</code>.
+ * The tree is thus held in flat arrays: two ints per segment and four doubles per node, which
+ * with a fanout of 16 comes to about ten bytes per edge on top of the projected vertex positions.
+ */
+class SegmentIndex {
+    /** The most children of a node, and the most segments of a leaf. */
+    static final int FANOUT = 16;
+
+    /** The projected x coordinate of every vertex. */
+    private final double[] xs;
+    /** The projected y coordinate of every vertex. */
+    private final double[] ys;
+    /** The first endpoint of every segment, in packed order. */
+    private final int[] from;
+    /** The adjacency entry of <code>csr</code> from <code>from</code> to the other endpoint. */
+    private final int[] entries;
+    /** The graph whose edges are indexed. */
+    private final CSRGraph csr;
+    /** The bounds <code>minX, minY, maxX, maxY</code> of every node, level by level. */
+    private final double[] boxes;
+    /** The index in <code>boxes</code> of the first node of each level, then the node count. */
+    private final int[] levelStarts;
+
+    private SegmentIndex(CSRGraph csr, double[] xs, double[] ys, int[] from, int[] entries) {
+        this.xs = xs;
+        this.ys = ys;
+        this.from = from;
+        this.entries = entries;
+        this.csr = csr;
+        int m = from.length;
+        int levels = 0;
+        for (long count = m; count > 1 || levels == 0 && count > 0; count = ceil(count, FANOUT)) {
+            levels += 1;
+        }
+        levelStarts = new int[levels + 1];
+        long count = m;
+        for (int level = 0; level < levels; level += 1) {
+            count = ceil(count, FANOUT);
+            levelStarts[level + 1] = levelStarts[level] + (int) count;
+        }
+        boxes = new double[4 * levelStarts[levels]];
+        fillBoxes();
+    }
+
+    /**
+     * Packs every edge of <code>csr</code> into a new index.
+     *
+     * @param csr The graph to index.
+     * @return The index.
+     */
+    static SegmentIndex build(CSRGraph csr) {
+        int n = csr.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int m = 0;
+        for (int v = 0; v < n; v += 1) {
+            xs[v] = GraphDB.projectToX(csr.lons[v], csr.lats[v]);
+            ys[v] = GraphDB.projectToY(csr.lons[v], csr.lats[v]);
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                if (v < csr.targets[e]) {
+                    m += 1;
+                }
+            }
+        }
+        int[] order = new int[m];
+        int[] owners = new int[m];
+        int[] edgeOf = new int[m];
+        double[] midXs = new double[m];
+        double[] midYs = new double[m];
+        int s = 0;
+        for (int v = 0; v < n; v += 1) {
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                if (v < w) {
+                    order[s] = s;
+                    owners[s] = v;
+                    edgeOf[s] = e;
+                    midXs[s] = (xs[v] + xs[w]) / 2;
+                    midYs[s] = (ys[v] + ys[w]) / 2;
+                    s += 1;
+                }
+            }
+        }
+        long capacity = 1;
+        while (capacity < m) {
+            capacity *= FANOUT;
+        }
+        pack(order, midXs, midYs, 0, m, capacity / FANOUT);
+
+        int[] from = new int[m];
+        int[] entries = new int[m];
+        for (int k = 0; k < m; k += 1) {
+            from[k] = owners[order[k]];
+            entries[k] = edgeOf[order[k]];
+        }
+        return new SegmentIndex(csr, xs, ys, from, entries);
+    }
+
+    /**
+     * Orders the segments in <code>order[lo, hi)</code>, which belong to one node whose children
+     * hold up to <code>childCapacity</code> segments each, by Sort-Tile-Recursive.
+     */
+    private static void pack(int[] order, double[] midXs, double[] midYs, int lo, int hi,
+                             long childCapacity) {
+        if (childCapacity <= 1) {
+            /* The order of the segments within a leaf does not matter. */
+            return;
+        }
+        long children = ceil(hi - lo, childCapacity);
+        long slice = (long) Math.ceil(Math.sqrt(children)) * childCapacity;
+        split(order, midXs, lo, hi, slice);
+        for (long sliceLo = lo; sliceLo < hi; sliceLo += slice) {
+            int sliceHi = (int) Math.min(hi, sliceLo + slice);
+            split(order, midYs, (int) sliceLo, sliceHi, childCapacity);
+            for (long childLo = sliceLo; childLo < sliceHi; childLo += childCapacity) {
+                pack(order, midXs, midYs, (int) childLo,
+                        (int) Math.min(sliceHi, childLo + childCapacity), childCapacity / FANOUT);
+            }
+        }
+    }
+
+    /**
+     * Rearranges <code>order[lo, hi)</code> so that each run of <code>step</code> segments
+     * starting at <code>lo</code> holds no key larger than any key of a later run.
+     */
+    private static void split(int[] order, double[] key, int lo, int hi, long step) {
+        long runs = ceil(hi - lo, step);
+        if (runs <= 1) {
+            return;
+        }
+        int mid = (int) (lo + runs / 2 * step);
+        KdTree.select(order, key, lo, hi, mid);
+        split(order, key, lo, mid, step);
+        split(order, key, mid, hi, step);
+    }
+
+    private static long ceil(long a, long b) {
+        return (a + b - 1) / b;
+    }
+
+    /** Computes the bounds of every node from the leaves up. */
+    private void fillBoxes() {
+        if (levelStarts.length == 1) {
+            /* No segments, so no nodes. */
+            return;
+        }
+        for (int k = 0; k < levelCount(0); k += 1) {
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            int end = Math.min(from.length, (k + 1) * FANOUT);
+            for (int s = k * FANOUT; s < end; s += 1) {
+                int v = from[s];
+                int w = csr.targets[entries[s]];
+                minX = Math.min(minX, Math.min(xs[v], xs[w]));
+                minY = Math.min(minY, Math.min(ys[v], ys[w]));
+                maxX = Math.max(maxX, Math.max(xs[v], xs[w]));
+                maxY = Math.max(maxY, Math.max(ys[v], ys[w]));
+            }
+            setBox(levelStarts[0] + k, minX, minY, maxX, maxY);
+        }
+        for (int level = 1; level + 1 < levelStarts.length; level += 1) {
+            for (int k = 0; k < levelCount(level); k += 1) {
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                int end = Math.min(levelCount(level - 1), (k + 1) * FANOUT);
+                for (int c = k * FANOUT; c < end; c += 1) {
+                    int b = 4 * (levelStarts[level - 1] + c);
+                    minX = Math.min(minX, boxes[b]);
+                    minY = Math.min(minY, boxes[b + 1]);
+                    maxX = Math.max(maxX, boxes[b + 2]);
+                    maxY = Math.max(maxY, boxes[b + 3]);
+                }
+                setBox(levelStarts[level] + k, minX, minY, maxX, maxY);
+            }
+        }
+    }
+
+    private void setBox(int node, double minX, double minY, double maxX, double maxY) {
+        boxes[4 * node] = minX;
+        boxes[4 * node + 1] = minY;
+        boxes[4 * node + 2] = maxX;
+        boxes[4 * node + 3] = maxY;
+    }
+
+    private int levelCount(int level) {
+        return levelStarts[level + 1] - levelStarts[level];
+    }
+
+    /** Returns the number of segments, one per undirected edge. */
+    int size() {
+        return from.length;
+    }
+
+    /**
+     * Returns the segment closest to <code>(x, y)</code>, visiting nodes in order of their
+     * distance from the point and stopping once none left can hold a closer segment. The search
+     * only reads the index, so any number of threads can search it at once.
+     *
+     * @param x          The projected x coordinate of the query point.
+     * @param y          The projected y coordinate of the query point.
+     * @param components The component labels of the indexed graph.
+     * @param component  A component, or -1 for any component.
+     * @return The closest segment, or null if there is none.
+     */
+    Hit nearest(double x, double y, Components components, int component) {
+        int levels = levelStarts.length - 1;
+        if (levels == 0) {
+            return null;
+        }
+        Hit best = new Hit();
+        NodeQueue queue = new NodeQueue();
+        queue.add(levelStarts[levels - 1], 0.0);
+        while (queue.size > 0 && queue.peekDistance() < best.distance) {
+            int node = queue.poll();
+            int level = 0;
+            while (node >= levelStarts[level + 1]) {
+                level += 1;
+            }
+            int k = node - levelStarts[level];
+            if (level == 0) {
+                int end = Math.min(from.length, (k + 1) * FANOUT);
+                for (int s = k * FANOUT; s < end; s += 1) {
+                    offer(s, x, y, components.labels, component, best);
+                }
+                continue;
+            }
+            int end = Math.min(levelCount(level - 1), (k + 1) * FANOUT);
+            for (int c = k * FANOUT; c < end; c += 1) {
+                int child = levelStarts[level - 1] + c;
+                double dx = Math.max(0, Math.max(boxes[4 * child] - x, x - boxes[4 * child + 2]));
+                double dy = Math.max(0, Math.max(boxes[4 * child + 1] - y,
+                        y - boxes[4 * child + 3]));
+                double distance = dx * dx + dy * dy;
+                if (distance < best.distance) {
+                    queue.add(child, distance);
+                }
+            }
+        }
+        if (best.from < 0) {
+            return null;
+        }
+        best.lon = csr.lons[best.from] + best.fraction * (csr.lons[best.to] - csr.lons[best.from]);
+        best.lat = csr.lats[best.from] + best.fraction * (csr.lats[best.to] - csr.lats[best.from]);
+        return best;
+    }
+
+    /**
+     * Adds to <code>into</code> the adjacency entry of every segment whose bounding box overlaps
+     * the box from <code>(minX, minY)</code> to <code>(maxX, maxY)</code>, one entry per
+     * undirected edge, from its lower vertex index to its higher. The caller tests the segments
+     * themselves against the box if it needs an exact answer.
+     *
+     * @param minX The smallest projected x coordinate of the box.
+     * @param minY The smallest projected y coordinate of the box.
+     * @param maxX The largest projected x coordinate of the box.
+     * @param maxY The largest projected y coordinate of the box.
+     * @param into The entries found so far; appended to.
+     */
+    void range(double minX, double minY, double maxX, double maxY, SpatialIndex.Matches into) {
+        int levels = levelStarts.length - 1;
+        if (levels > 0) {
+            range(levels - 1, 0, minX, minY, maxX, maxY, into);
+        }
+    }
+
+    /** Adds the overlapping segments under node <code>k</code> of <code>level</code>. */
+    private void range(int level, int k, double minX, double minY, double maxX, double maxY,
+                       SpatialIndex.Matches into) {
+        int b = 4 * (levelStarts[level] + k);
+        if (boxes[b] > maxX || boxes[b + 1] > maxY || boxes[b + 2] < minX
+                || boxes[b + 3] < minY) {
+            return;
+        }
+        if (level == 0) {
+            int end = Math.min(from.length, (k + 1) * FANOUT);
+            for (int s = k * FANOUT; s < end; s += 1) {
+                int v = from[s];
+                int w = csr.targets[entries[s]];
+                if (Math.min(xs[v], xs[w]) <= maxX && Math.max(xs[v], xs[w]) >= minX
+                        && Math.min(ys[v], ys[w]) <= maxY && Math.max(ys[v], ys[w]) >= minY) {
+                    into.add(entries[s]);
+                }
+            }
+            return;
+        }
+        int end = Math.min(levelCount(level - 1), (k + 1) * FANOUT);
+        for (int c = k * FANOUT; c < end; c += 1) {
+            range(level - 1, c, minX, minY, maxX, maxY, into);
+        }
+    }
+
+    /** Makes segment <code>s</code> the best if it qualifies and is closer than the best. */
+    private void offer(int s, double x, double y, int[] labels, int component, Hit best) {
+        int v = from[s];
+        if (component >= 0 && labels[v] != component) {
+            return;
+        }
+        int e = entries[s];
+        int w = csr.targets[e];
+        double ax = xs[v];
+        double ay = ys[v];
+        double bx = xs[w] - ax;
+        double by = ys[w] - ay;
+        double length = bx * bx + by * by;
+        double t = length == 0 ? 0 : ((x - ax) * bx + (y - ay) * by) / length;
+        t = Math.max(0, Math.min(1, t));
+        double dx = x - (ax + t * bx);
+        double dy = y - (ay + t * by);
+        double distance = dx * dx + dy * dy;
+        if (distance < best.distance) {
+            best.distance = distance;
+            best.from = v;
+            best.to = w;
+            best.entry = e;
+            best.fraction = t;
+        }
+    }
+
+    /** The segment closest to a point, and where along it the point projects. */
+    static class Hit {
+        /** The vertex index at the start of the segment. */
+        int from = -1;
+        /** The vertex index at the end of the segment. */
+        int to = -1;
+        /** The adjacency entry of the edge from <code>from</code> to <code>to</code>. */
+        int entry = -1;
+        /** How far along the segment, from 0 at <code>from</code> to 1 at <code>to</code>. */
+        double fraction;
+        /** The squared projected distance from the point to the segment. */
+        double distance = Double.POSITIVE_INFINITY;
+        /** The longitude of the point on the segment closest to the query point. */
+        double lon;
+        /** The latitude of the point on the segment closest to the query point. */
+        double lat;
+    }
+
+    /** A binary min-heap of node indices keyed by their distance from the query point. */
+    private static class NodeQueue {
+        private double[] distances = new double[32];
+        private int[] nodes = new int[32];
+        private int size;
+
+        double peekDistance() {
+            return distances[0];
+        }
+
+        void add(int node, double distance) {
+            if (size == nodes.length) {
+                distances = Arrays.copyOf(distances, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            int k = size;
+            size += 1;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                distances[k] = distances[parent];
+                nodes[k] = nodes[parent];
+                k = parent;
+            }
+            distances[k] = distance;
+            nodes[k] = node;
+        }
+
+        int poll() {
+            int top = nodes[0];
+            size -= 1;
+            double distance = distances[size];
+            int node = nodes[size];
+            int k = 0;
+            while (2 * k + 1 < size) {
+                int child = 2 * k + 1;
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child += 1;
+                }
+                if (distance <= distances[child]) {
+                    break;
+                }
+                distances[k] = distances[child];
+                nodes[k] = nodes[child];
+                k = child;
+            }
+            distances[k] = distance;
+            nodes[k] = node;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache in front of <code>GraphDB.closest</code>, for the start and end points of
+ * routes, which repeat heavily. Points are quantized to cells of a grid over longitude and
+ * latitude, and each cell caches every vertex that can be the closest to some point inside it:
+ * if the vertex closest to the cell's center is <code>d</code> away and no point of the cell is
+ * more than <code>h</code> from its center, the vertex closest to any point of the cell is within
+ * <code>d + 2h</code> of the center. A hit scans those few candidates for the given point, so
+ * it returns exactly what the spatial index would, down to the lowest index winning a tie
+ * between vertices at the same distance. Cells with too many candidates, where the
+ * grid is coarse for the road density, are remembered as such and sent to the index.
+ *
+ * The cells are split across stripes, each a least-recently-used map behind its own lock. The
+ * cache belongs to one version of the graph, so it is dropped with it when the graph is reloaded
+ * or updated. The grid resolution and capacity are set with the system properties
+ * <code>bearmaps.snapCache.resolution</code>, in degrees, and
+ * <code>bearmaps.snapCache.cells</code>; a capacity of 0 turns the cache off.
+ */
+class SnapCache {
+    /** The system property that sets the side of a cell, in degrees. */
+    static final String RESOLUTION_PROPERTY = "bearmaps.snapCache.resolution";
+    /** The system property that sets the most cells kept. */
+    static final String CAPACITY_PROPERTY = "bearmaps.snapCache.cells";
+    /** About ten meters near Berkeley, a fraction of the distance between junctions. */
+    static final double DEFAULT_RESOLUTION = 1e-4;
+    static final int DEFAULT_CAPACITY = 1 << 14;
+    /** Cells with more candidates than this are not worth scanning on every hit. */
+    private static final int MAX_CANDIDATES = 32;
+    private static final int STRIPES = 16;
+    /** Marks a cell whose candidates are too many to cache. */
+    private static final Cell CROWDED = new Cell(new int[0], new double[0], new double[0]);
+
+    private final double resolution;
+    private final int capacity;
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param resolution The side of a cell, in degrees of longitude and latitude.
+     * @param capacity   The most cells kept, or 0 to pass every query through.
+     */
+    SnapCache(double resolution, int capacity) {
+        if (!(resolution > 0) || capacity < 0) {
+            throw new IllegalArgumentException("bad snap cache resolution or capacity");
+        }
+        this.resolution = resolution;
+        this.capacity = capacity;
+        this.stripes = new Stripe[STRIPES];
+        for (int k = 0; k < STRIPES; k += 1) {
+            stripes[k] = new Stripe((capacity + STRIPES - 1) / STRIPES);
+        }
+    }
+
+    /** Returns an empty cache configured by the system properties. */
+    static SnapCache configured() {
+        double resolution = Double.parseDouble(System.getProperty(RESOLUTION_PROPERTY,
+                Double.toString(DEFAULT_RESOLUTION)));
+        int capacity = Integer.parseInt(System.getProperty(CAPACITY_PROPERTY,
+                Integer.toString(DEFAULT_CAPACITY)));
+        return new SnapCache(resolution, capacity);
+    }
+
+    /**
+     * Returns the dense index of the vertex of <code>g</code> closest to the given point, from
+     * the cache if its cell is there.
+     *
+     * @param g   The graph this cache belongs to.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return The index into <code>g.csr()</code> of the closest vertex.
+     */
+    int closest(GraphDB g, double lon, double lat) {
+        double x = GraphDB.projectToX(lon, lat);
+        double y = GraphDB.projectToY(lon, lat);
+        if (capacity == 0) {
+            return g.closestProjected(x, y, -1);
+        }
+        long column = (long) Math.floor(lon / resolution);
+        long row = (long) Math.floor(lat / resolution);
+        long key = column << 32 ^ row & 0xFFFFFFFFL;
+        Stripe stripe = stripes[(int) ((key ^ key >>> 29) * 0x9E3779B97F4A7C15L >>> 60)];
+        Cell cell;
+        synchronized (stripe) {
+            cell = stripe.get(key);
+        }
+        if (cell == null) {
+            misses.increment();
+            cell = load(g, column, row);
+            synchronized (stripe) {
+                stripe.put(key, cell);
+            }
+        } else {
+            hits.increment();
+        }
+        if (cell == CROWDED) {
+            return g.closestProjected(x, y, -1);
+        }
+        SpatialIndex.Nearest best = new SpatialIndex.Nearest();
+        for (int k = 0; k < cell.vertices.length; k += 1) {
+            double dx = x - cell.xs[k];
+            double dy = y - cell.ys[k];
+            double distance = dx * dx + dy * dy;
+            if (best.beats(distance, cell.vertices[k])) {
+                best.distance = distance;
+                best.vertex = cell.vertices[k];
+            }
+        }
+        return best.vertex;
+    }
+
+    /** Finds the candidates of the cell at the given column and row of the grid. */
+    private Cell load(GraphDB g, long column, long row) {
+        double centerLon = (column + 0.5) * resolution;
+        double centerLat = (row + 0.5) * resolution;
+        double cx = GraphDB.projectToX(centerLon, centerLat);
+        double cy = GraphDB.projectToY(centerLon, centerLat);
+        /* The projection is nearly affine across a cell, so its corners are the farthest. */
+        double h = 0;
+        for (int corner = 0; corner < 4; corner += 1) {
+            double lon = (column + (corner & 1)) * resolution;
+            double lat = (row + (corner >> 1)) * resolution;
+            h = Math.max(h, GraphDB.euclideanDistance(cx, cy, GraphDB.projectToX(lon, lat),
+                    GraphDB.projectToY(lon, lat)));
+        }
+        h = h * (1 + 1e-6) + 1e-15;
+
+        int nearest = g.closestProjected(cx, cy, -1);
+        if (nearest < 0) {
+            return new Cell(new int[0], new double[0], new double[0]);
+        }
+        CSRGraph csr = g.csr();
+        double reach = GraphDB.euclideanDistance(cx, cy,
+                GraphDB.projectToX(csr.lons[nearest], csr.lats[nearest]),
+                GraphDB.projectToY(csr.lons[nearest], csr.lats[nearest])) + 2 * h;
+        SpatialIndex.Neighbors found = new SpatialIndex.Neighbors(MAX_CANDIDATES + 1);
+        found.reset(MAX_CANDIDATES + 1, Math.nextUp(reach * reach));
+        g.neighborsProjected(cx, cy, -1, found);
+        if (found.size > MAX_CANDIDATES) {
+            return CROWDED;
+        }
+        int[] vertices = new int[found.size];
+        double[] xs = new double[found.size];
+        double[] ys = new double[found.size];
+        for (int k = 0; k < found.size; k += 1) {
+            int v = found.vertices[k];
+            vertices[k] = v;
+            xs[k] = GraphDB.projectToX(csr.lons[v], csr.lats[v]);
+            ys[k] = GraphDB.projectToY(csr.lons[v], csr.lats[v]);
+        }
+        return new Cell(vertices, xs, ys);
+    }
+
+    /** Returns the number of queries answered from a cached cell. */
+    long hits() {
+        return hits.sum();
+    }
+
+    /** Returns the number of queries whose cell had to be loaded. */
+    long misses() {
+        return misses.sum();
+    }
+
+    /** Returns the number of cells cached. */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("snap cache: %d hits, %d misses, %d of %d cells", hits(), misses(),
+                size(), capacity);
+    }
+
+    /** The candidate vertices of one cell, with their projected positions. */
+    private static class Cell {
+        private final int[] vertices;
+        private final double[] xs;
+        private final double[] ys;
+
+        Cell(int[] vertices, double[] xs, double[] ys) {
+            this.vertices = vertices;
+            this.xs = xs;
+            this.ys = ys;
+        }
+    }
+
+    /** One stripe of cells, evicting the least recently used beyond its share of capacity. */
+    private static class Stripe extends LinkedHashMap<Long, Cell> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Cell> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A static index over projected vertex positions that answers nearest-vertex and k-nearest
+ * queries. Implementations are built once over every vertex of a graph, by dense vertex index,
+ * and only read afterwards, so any number of threads can search one at once. Vertices left
+ * without edges, and vertices outside the requested component, are skipped by every search.
+ *
+ * Which implementation <code>GraphDB</code> builds is chosen with the system property
+ * <code>bearmaps.spatialIndex</code>; see <code>Kind</code>.
+ */
+interface SpatialIndex {
+    /** The system property that selects the implementation. */
+    String PROPERTY = "bearmaps.spatialIndex";
+
+    /**
+     * Searches the index for a vertex closer to <code>(x, y)</code> than <code>best</code>.
+     *
+     * @param x          The projected x coordinate of the query point.
+     * @param y          The projected y coordinate of the query point.
+     * @param csr        The graph whose vertex indices the index holds.
+     * @param components The component labels of <code>csr</code>.
+     * @param component  A component, or -1 for any component.
+     * @param best       The best vertex so far; updated in place.
+     */
+    void nearest(double x, double y, CSRGraph csr, Components components, int component,
+                 Nearest best);
+
+    /**
+     * Adds to <code>into</code> every vertex that is closer to <code>(x, y)</code> than its
+     * current worst entry.
+     *
+     * @param x          The projected x coordinate of the query point.
+     * @param y          The projected y coordinate of the query point.
+     * @param csr        The graph whose vertex indices the index holds.
+     * @param components The component labels of <code>csr</code>.
+     * @param component  A component, or -1 for any component.
+     * @param into       The neighbors found so far; updated in place.
+     */
+    void neighbors(double x, double y, CSRGraph csr, Components components, int component,
+                   Neighbors into);
+
+    /**
+     * Adds to <code>into</code> every vertex with edges in <code>csr</code> whose position lies
+     * in the box from <code>(minX, minY)</code> to <code>(maxX, maxY)</code>, bounds included,
+     * in no particular order.
+     *
+     * @param minX The smallest projected x coordinate of the box.
+     * @param minY The smallest projected y coordinate of the box.
+     * @param maxX The largest projected x coordinate of the box.
+     * @param maxY The largest projected y coordinate of the box.
+     * @param csr  The graph whose vertex indices the index holds.
+     * @param into The vertices found so far; appended to.
+     */
+    void range(double minX, double minY, double maxX, double maxY, CSRGraph csr, Matches into);
+
+    /** Returns the number of vertices in the index. */
+    int size();
+
+    /** The implementations to choose from. */
+    enum Kind {
+        /** <code>KdTree</code>, which adapts to any distribution of vertices. */
+        KD_TREE,
+        /** <code>GridIndex</code>, which answers in near-constant time when vertices are even. */
+        GRID;
+
+        /**
+         * Builds an index of this kind over the vertices <code>0</code> to
+         * <code>xs.length - 1</code>.
+         *
+         * @param xs The projected x coordinate of every vertex.
+         * @param ys The projected y coordinate of every vertex.
+         * @return The index.
+         */
+        SpatialIndex build(double[] xs, double[] ys) {
+            return this == GRID ? GridIndex.build(xs, ys) : KdTree.build(xs, ys);
+        }
+
+        /**
+         * Returns the kind named by the <code>bearmaps.spatialIndex</code> system property,
+         * <code>kd_tree</code> or <code>grid</code> in any case, or <code>KD_TREE</code> if it
+         * is not set.
+         *
+         * @throws IllegalArgumentException If the property names no kind.
+         */
+        static Kind configured() {
+            String name = System.getProperty(PROPERTY);
+            return name == null ? KD_TREE : valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * The state of one nearest-vertex search. Of vertices at the same distance, the one with the
+     * lowest index wins, so that every way of searching settles on the same vertex.
+     */
+    class Nearest {
+        /** The closest vertex so far, or -1. */
+        int vertex = -1;
+        /** The squared projected distance to <code>vertex</code>. */
+        double distance = Double.POSITIVE_INFINITY;
+
+        /** Returns whether vertex <code>v</code> at <code>distance</code> beats the best. */
+        boolean beats(double distance, int v) {
+            return distance < this.distance || distance == this.distance && v < vertex;
+        }
+    }
+
+    /**
+     * The result of a range query: a growable list of vertex indices, or of adjacency entries for
+     * a query over segments. Reusing one instance across queries, calling <code>clear</code>
+     * before each, allocates nothing once the array has grown to the largest result.
+     */
+    class Matches {
+        /** The number of items found. */
+        int size;
+        /** The items found, in the first <code>size</code> positions. */
+        int[] items;
+
+        Matches() {
+            this(16);
+        }
+
+        Matches(int capacity) {
+            items = new int[Math.max(1, capacity)];
+        }
+
+        /** Empties the list for a new query. */
+        void clear() {
+            size = 0;
+        }
+
+        /** Appends <code>item</code>, growing the array if it is full. */
+        void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size] = item;
+            size += 1;
+        }
+    }
+
+    /**
+     * The state of a search for several vertices: the closest <code>limit</code> vertices found
+     * so far that are closer than <code>bound</code>, kept as a max-heap on primitive arrays so
+     * that the farthest is replaced first. A caller that reuses one instance across searches,
+     * calling <code>reset</code> before each, allocates nothing once the arrays have grown to the
+     * largest result.
+     */
+    class Neighbors {
+        /** The number of vertices found. */
+        int size;
+        /** The vertices found, in heap order until <code>sort</code> is called. */
+        int[] vertices;
+        /** The squared projected distance to each of <code>vertices</code>. */
+        double[] distances;
+        private int limit;
+        private double bound;
+
+        Neighbors() {
+            this(16);
+        }
+
+        Neighbors(int capacity) {
+            vertices = new int[Math.max(1, capacity)];
+            distances = new double[vertices.length];
+        }
+
+        /**
+         * Empties the heap for a new search.
+         *
+         * @param limit The most vertices to keep.
+         * @param bound The squared projected distance that every vertex kept must be below.
+         */
+        void reset(int limit, double bound) {
+            this.size = 0;
+            this.limit = limit;
+            this.bound = bound;
+        }
+
+        /** Returns the squared distance that a vertex must be below to be kept. */
+        double worst() {
+            return size < limit ? bound : distances[0];
+        }
+
+        /**
+         * Keeps vertex <code>v</code>, dropping the farthest vertex if the heap is full. The
+         * caller checks that <code>distance</code> is below <code>worst()</code>.
+         */
+        void offer(int v, double distance) {
+            int i;
+            if (size < limit) {
+                if (size == vertices.length) {
+                    vertices = Arrays.copyOf(vertices, size * 2);
+                    distances = Arrays.copyOf(distances, size * 2);
+                }
+                i = size;
+                size += 1;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (distances[parent] >= distance) {
+                        break;
+                    }
+                    vertices[i] = vertices[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+            } else {
+                i = siftDown(0, distance, size);
+            }
+            vertices[i] = v;
+            distances[i] = distance;
+        }
+
+        /**
+         * Sorts the vertices found by increasing distance, in place. The heap order is lost, so
+         * nothing may be offered afterwards until the next <code>reset</code>.
+         */
+        void sort() {
+            for (int end = size - 1; end > 0; end -= 1) {
+                int v = vertices[end];
+                double distance = distances[end];
+                vertices[end] = vertices[0];
+                distances[end] = distances[0];
+                int i = siftDown(0, distance, end);
+                vertices[i] = v;
+                distances[i] = distance;
+            }
+        }
+
+        /**
+         * Moves the hole at <code>i</code> down the heap of the first <code>end</code> entries
+         * until an entry at <code>distance</code> fits there, and returns where it stopped.
+         */
+        private int siftDown(int i, double distance, int end) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= end) {
+                    return i;
+                }
+                if (child + 1 < end && distances[child + 1] > distances[child]) {
+                    child += 1;
+                }
+                if (distances[child] <= distance) {
+                    return i;
+                }
+                vertices[i] = vertices[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Columnar storage for the OSM tags of the graph's vertices. Each distinct key and each distinct
+ * value is stored once, in <code>keys</code> and <code>values</code>, and the tags themselves
+ * are pairs of indices into those dictionaries. Only tagged vertices appear in the table:
+ * <code>vertices</code> lists their dense indices in ascending order, and the tags of
+ * <code>vertices[t]</code> are entries <code>offsets[t]</code> through
+ * <code>offsets[t + 1] - 1</code> of <code>tagKeys</code> and <code>tagValues</code>, sorted by
+ * key. An untagged vertex therefore costs nothing, and a tagged one costs a few ints.
+ *
+ * Vertices whose tags were replaced since the arrays were built are kept in a small override map,
+ * as in <code>WayIndex</code>, so deriving an updated store costs time in proportion to the
+ * changes, not the map. The arrays describe the store only once <code>compact</code> has folded
+ * the overrides in.
+ */
+class TagStore {
+    /** Once this many vertices are overridden, <code>with</code> folds the overrides in. */
+    private static final int MIN_COMPACT_OVERRIDES = 1024;
+
+    /** Every distinct tag key, sorted. */
+    final String[] keys;
+    /** Every distinct tag value. */
+    final String[] values;
+    /** Dense indices of the tagged vertices, sorted ascending. */
+    final int[] vertices;
+    /** Start of each tagged vertex's run of tags; has one extra entry. */
+    final int[] offsets;
+    /** Index into <code>keys</code> of every tag. */
+    final int[] tagKeys;
+    /** Index into <code>values</code> of every tag. */
+    final int[] tagValues;
+    /** The tags of vertices changed since the arrays were built, in key order; may be empty. */
+    private final Map<Integer, Map<String, String>> overrides;
+
+    TagStore(String[] keys, String[] values, int[] vertices, int[] offsets, int[] tagKeys,
+             int[] tagValues) {
+        this(keys, values, vertices, offsets, tagKeys, tagValues, new HashMap<>());
+    }
+
+    private TagStore(String[] keys, String[] values, int[] vertices, int[] offsets,
+                     int[] tagKeys, int[] tagValues,
+                     Map<Integer, Map<String, String>> overrides) {
+        this.keys = keys;
+        this.values = values;
+        this.vertices = vertices;
+        this.offsets = offsets;
+        this.tagKeys = tagKeys;
+        this.tagValues = tagValues;
+        this.overrides = overrides;
+    }
+
+    /** Returns the number of tagged vertices. */
+    int taggedCount() {
+        int count = vertices.length;
+        for (Map.Entry<Integer, Map<String, String>> entry : overrides.entrySet()) {
+            boolean inArrays = Arrays.binarySearch(vertices, entry.getKey()) >= 0;
+            if (inArrays && entry.getValue().isEmpty()) {
+                count -= 1;
+            } else if (!inArrays && !entry.getValue().isEmpty()) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of <code>key</code> in <code>keys</code>.
+     *
+     * @return The key index, or a negative number if no vertex in the arrays has this key.
+     */
+    int keyIndex(String key) {
+        return Arrays.binarySearch(keys, key);
+    }
+
+    /**
+     * Returns the value of tag <code>key</code> on vertex index <code>i</code>.
+     *
+     * @param i   A dense vertex index.
+     * @param key The tag key.
+     * @return The tag value, or null if the vertex has no such tag.
+     */
+    String get(int i, String key) {
+        Map<String, String> changed = overrides.get(i);
+        if (changed != null) {
+            return changed.get(key);
+        }
+        int k = keyIndex(key);
+        return k < 0 ? null : get(i, k);
+    }
+
+    /**
+     * Returns the value of the tag with key index <code>k</code> on vertex index <code>i</code>.
+     * Resolving the key once with <code>keyIndex</code> saves a string search per lookup.
+     *
+     * @return The tag value, or null if the vertex has no such tag.
+     */
+    String get(int i, int k) {
+        Map<String, String> changed = overrides.get(i);
+        if (changed != null) {
+            return changed.get(keys[k]);
+        }
+        int t = Arrays.binarySearch(vertices, i);
+        if (t < 0) {
+            return null;
+        }
+        int e = Arrays.binarySearch(tagKeys, offsets[t], offsets[t + 1], k);
+        return e < 0 ? null : values[tagValues[e]];
+    }
+
+    /**
+     * Returns every tag of vertex index <code>i</code>.
+     *
+     * @return An unmodifiable map from key to value, in key order; empty if the vertex has no
+     * tags.
+     */
+    Map<String, String> tags(int i) {
+        Map<String, String> changed = overrides.get(i);
+        if (changed != null) {
+            return changed;
+        }
+        int t = Arrays.binarySearch(vertices, i);
+        if (t < 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (int e = offsets[t]; e < offsets[t + 1]; e += 1) {
+            tags.put(keys[tagKeys[e]], values[tagValues[e]]);
+        }
+        return Collections.unmodifiableMap(tags);
+    }
+
+    /**
+     * Returns a store in which the tags of some vertices are replaced; this store is unchanged.
+     *
+     * @param replaced The new tags of each changed vertex index; an empty map removes them.
+     * @return The updated store.
+     */
+    TagStore with(Map<Integer, Map<String, String>> replaced) {
+        Map<Integer, Map<String, String>> merged = new HashMap<>(overrides);
+        for (Map.Entry<Integer, Map<String, String>> entry : replaced.entrySet()) {
+            merged.put(entry.getKey(), Collections.unmodifiableMap(
+                    new LinkedHashMap<>(new TreeMap<>(entry.getValue()))));
+        }
+        TagStore updated = new TagStore(keys, values, vertices, offsets, tagKeys, tagValues,
+                merged);
+        if (merged.size() >= Math.max(MIN_COMPACT_OVERRIDES, vertices.length / 8)) {
+            return updated.compact();
+        }
+        return updated;
+    }
+
+    /** Returns an equivalent store with every override folded into the arrays. */
+    TagStore compact() {
+        if (overrides.isEmpty()) {
+            return this;
+        }
+        int size = vertices.length > 0 ? vertices[vertices.length - 1] + 1 : 0;
+        for (int i : overrides.keySet()) {
+            size = Math.max(size, i + 1);
+        }
+        int[] newIndex = new int[size];
+        for (int i = 0; i < size; i += 1) {
+            newIndex[i] = i;
+        }
+        return remap(newIndex, size);
+    }
+
+    /**
+     * Returns this store with its vertices renumbered.
+     *
+     * @param newIndex The new index of every vertex index, or -1 to drop its tags.
+     * @param size     The number of vertex indices after renumbering.
+     * @return The renumbered store.
+     */
+    TagStore remap(int[] newIndex, int size) {
+        Builder builder = new Builder();
+        for (int t = 0; t < vertices.length; t += 1) {
+            if (newIndex[vertices[t]] >= 0 && !overrides.containsKey(vertices[t])) {
+                addRun(builder, t, newIndex[vertices[t]]);
+            }
+        }
+        for (Map.Entry<Integer, Map<String, String>> entry : overrides.entrySet()) {
+            if (newIndex[entry.getKey()] >= 0) {
+                for (Map.Entry<String, String> tag : entry.getValue().entrySet()) {
+                    builder.add(newIndex[entry.getKey()], tag.getKey(), tag.getValue());
+                }
+            }
+        }
+        return builder.build(identity(size));
+    }
+
+    /** Adds the tags of tagged vertex <code>t</code> to <code>builder</code> under a new owner. */
+    private void addRun(Builder builder, int t, long owner) {
+        for (int e = offsets[t]; e < offsets[t + 1]; e += 1) {
+            builder.add(owner, keys[tagKeys[e]], values[tagValues[e]]);
+        }
+    }
+
+    /** Returns 0 through size - 1, for building a store whose owners are vertex indices. */
+    private static long[] identity(int size) {
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i += 1) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    /**
+     * Collects tags while a graph is built. Tags are recorded against OSM IDs, since dense
+     * vertex indices are only known once the graph is frozen.
+     */
+    static class Builder {
+        private final HashMap<String, Integer> keyIndices = new HashMap<>();
+        private final HashMap<String, Integer> valueIndices = new HashMap<>();
+        private String[] keys = new String[16];
+        private String[] values = new String[16];
+        private int keyCount;
+        private int valueCount;
+
+        private long[] owners = new long[16];
+        private int[] entryKeys = new int[16];
+        private int[] entryValues = new int[16];
+        private int count;
+
+        /**
+         * Records tag <code>key</code>=<code>value</code> on the node with OSM ID
+         * <code>owner</code>. If the node already has this key, the last value added wins.
+         */
+        void add(long owner, String key, String value) {
+            if (count == owners.length) {
+                owners = Arrays.copyOf(owners, count * 2);
+                entryKeys = Arrays.copyOf(entryKeys, count * 2);
+                entryValues = Arrays.copyOf(entryValues, count * 2);
+            }
+            owners[count] = owner;
+            entryKeys[count] = internKey(key);
+            entryValues[count] = internValue(value);
+            count += 1;
+        }
+
+        /**
+         * Appends every tag of <code>other</code> to this builder.
+         *
+         * @param other The builder to merge in; it is left unchanged.
+         */
+        void addAll(Builder other) {
+            int[] keyRemap = new int[other.keyCount];
+            for (int k = 0; k < other.keyCount; k += 1) {
+                keyRemap[k] = internKey(other.keys[k]);
+            }
+            int[] valueRemap = new int[other.valueCount];
+            for (int v = 0; v < other.valueCount; v += 1) {
+                valueRemap[v] = internValue(other.values[v]);
+            }
+            int total = count + other.count;
+            if (total > owners.length) {
+                owners = Arrays.copyOf(owners, total);
+                entryKeys = Arrays.copyOf(entryKeys, total);
+                entryValues = Arrays.copyOf(entryValues, total);
+            }
+            System.arraycopy(other.owners, 0, owners, count, other.count);
+            for (int e = 0; e < other.count; e += 1) {
+                entryKeys[count + e] = keyRemap[other.entryKeys[e]];
+                entryValues[count + e] = valueRemap[other.entryValues[e]];
+            }
+            count = total;
+        }
+
+        /**
+         * Freezes the tags of the nodes that made it into the graph. Tags of nodes not in
+         * <code>ids</code> are dropped, along with any key or value only they used.
+         *
+         * @param ids The OSM IDs of the graph's vertices, sorted ascending.
+         * @return A new <code>TagStore</code> indexed by dense vertex index.
+         */
+        TagStore build(long[] ids) {
+            /* Rank the keys alphabetically so that each vertex's run can be searched by key. */
+            String[] sortedKeys = Arrays.copyOf(keys, keyCount);
+            Arrays.sort(sortedKeys);
+            int[] keyRank = new int[keyCount];
+            for (int k = 0; k < keyCount; k += 1) {
+                keyRank[k] = Arrays.binarySearch(sortedKeys, keys[k]);
+            }
+
+            /* Order the entries of nodes in the graph by vertex, then by insertion order. */
+            long[] order = new long[count];
+            int kept = 0;
+            for (int e = 0; e < count; e += 1) {
+                long i = Arrays.binarySearch(ids, owners[e]);
+                if (i >= 0) {
+                    order[kept] = i << 32 | e;
+                    kept += 1;
+                }
+            }
+            Arrays.sort(order, 0, kept);
+
+            /*
+             * Sort each vertex's run by key rank and keep the last value added for each key.
+             * Values are renumbered in order of first use, which drops the unused ones.
+             */
+            int[] vertices = new int[kept];
+            int[] offsets = new int[kept + 1];
+            int[] tagKeys = new int[kept];
+            int[] tagValues = new int[kept];
+            boolean[] keyUsed = new boolean[keyCount];
+            int[] valueRemap = new int[valueCount];
+            Arrays.fill(valueRemap, -1);
+            String[] usedValues = new String[valueCount];
+            int valuesUsed = 0;
+            long[] run = new long[0];
+            int tagged = 0;
+            int m = 0;
+            int start = 0;
+            while (start < kept) {
+                int i = (int) (order[start] >>> 32);
+                int end = start;
+                while (end < kept && (int) (order[end] >>> 32) == i) {
+                    end += 1;
+                }
+                int length = end - start;
+                if (run.length < length) {
+                    run = new long[length];
+                }
+                for (int r = 0; r < length; r += 1) {
+                    int e = (int) order[start + r];
+                    run[r] = (long) keyRank[entryKeys[e]] << 32 | e;
+                }
+                Arrays.sort(run, 0, length);
+                vertices[tagged] = i;
+                offsets[tagged] = m;
+                for (int r = 0; r < length; r += 1) {
+                    int k = (int) (run[r] >>> 32);
+                    if (r + 1 < length && (int) (run[r + 1] >>> 32) == k) {
+                        continue;
+                    }
+                    int v = entryValues[(int) run[r]];
+                    if (valueRemap[v] < 0) {
+                        valueRemap[v] = valuesUsed;
+                        usedValues[valuesUsed] = values[v];
+                        valuesUsed += 1;
+                    }
+                    keyUsed[k] = true;
+                    tagKeys[m] = k;
+                    tagValues[m] = valueRemap[v];
+                    m += 1;
+                }
+                tagged += 1;
+                start = end;
+            }
+            offsets[tagged] = m;
+
+            /* Renumber the keys that are still used; this keeps them sorted. */
+            int[] keyRemap = new int[keyCount];
+            int keysUsed = 0;
+            for (int k = 0; k < keyCount; k += 1) {
+                keyRemap[k] = keysUsed;
+                if (keyUsed[k]) {
+                    sortedKeys[keysUsed] = sortedKeys[k];
+                    keysUsed += 1;
+                }
+            }
+            for (int e = 0; e < m; e += 1) {
+                tagKeys[e] = keyRemap[tagKeys[e]];
+            }
+            return new TagStore(Arrays.copyOf(sortedKeys, keysUsed),
+                    Arrays.copyOf(usedValues, valuesUsed), Arrays.copyOf(vertices, tagged),
+                    Arrays.copyOf(offsets, tagged + 1), Arrays.copyOf(tagKeys, m),
+                    Arrays.copyOf(tagValues, m));
+        }
+
+        private int internKey(String key) {
+            Integer index = keyIndices.get(key);
+            if (index != null) {
+                return index;
+            }
+            if (keyCount == keys.length) {
+                keys = Arrays.copyOf(keys, keyCount * 2);
+            }
+            keys[keyCount] = key;
+            keyIndices.put(key, keyCount);
+            keyCount += 1;
+            return keyCount - 1;
+        }
+
+        private int internValue(String value) {
+            Integer index = valueIndices.get(value);
+            if (index != null) {
+                return index;
+            }
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            values[valueCount] = value;
+            valueIndices.put(value, valueCount);
+            valueCount += 1;
+            return valueCount - 1;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The node references of every highway way in the graph, keyed by OSM way ID. The graph itself
+ * only keeps edges, so this is what tells an OSM change which edges a modified or deleted way
+ * used to contribute.
+ *
+ * The bulk of the table is three flat arrays: sorted way IDs, and the references of way
+ * <code>ids[k]</code> in <code>refs[offsets[k]]</code> through
+ * <code>refs[offsets[k + 1] - 1]</code>. Ways changed since then are kept in a small override
+ * map, so deriving an updated table costs time in proportion to the changes, not the map.
+ */
+class WayIndex {
+    /** Once this many ways are overridden, <code>with</code> folds the overrides into arrays. */
+    private static final int MIN_COMPACT_OVERRIDES = 1024;
+
+    /** Sorted OSM IDs of the ways in the flat arrays. */
+    private final long[] ids;
+    /** Start of each way's run in <code>refs</code>; has one extra entry. */
+    private final int[] offsets;
+    /** The node references of every way, run after run. */
+    private final long[] refs;
+    /** Ways changed since the flat arrays were built; a null value marks a deleted way. */
+    private final Map<Long, long[]> overrides;
+
+    private WayIndex(long[] ids, int[] offsets, long[] refs, Map<Long, long[]> overrides) {
+        this.ids = ids;
+        this.offsets = offsets;
+        this.refs = refs;
+        this.overrides = overrides;
+    }
+
+    /**
+     * Returns the node references of way <code>id</code>.
+     *
+     * @return A fresh array of node IDs, or null if the way is unknown or was deleted.
+     */
+    long[] refs(long id) {
+        if (overrides.containsKey(id)) {
+            long[] changed = overrides.get(id);
+            return changed == null ? null : changed.clone();
+        }
+        int k = Arrays.binarySearch(ids, id);
+        return k < 0 ? null : Arrays.copyOfRange(refs, offsets[k], offsets[k + 1]);
+    }
+
+    /** Returns the number of ways in the table. */
+    int size() {
+        int size = ids.length;
+        for (Map.Entry<Long, long[]> entry : overrides.entrySet()) {
+            boolean inArrays = Arrays.binarySearch(ids, entry.getKey()) >= 0;
+            if (inArrays && entry.getValue() == null) {
+                size -= 1;
+            } else if (!inArrays && entry.getValue() != null) {
+                size += 1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a table with some ways replaced, added or deleted; this table is unchanged.
+     *
+     * @param changes New references by way ID; a null value deletes the way.
+     * @return The updated table.
+     */
+    WayIndex with(Map<Long, long[]> changes) {
+        Map<Long, long[]> merged = new HashMap<>(overrides);
+        for (Map.Entry<Long, long[]> change : changes.entrySet()) {
+            long[] value = change.getValue();
+            merged.put(change.getKey(), value == null ? null : value.clone());
+        }
+        WayIndex updated = new WayIndex(ids, offsets, refs, merged);
+        if (merged.size() >= Math.max(MIN_COMPACT_OVERRIDES, ids.length / 8)) {
+            return updated.compact();
+        }
+        return updated;
+    }
+
+    /** Returns an equivalent table with every override folded into the flat arrays. */
+    WayIndex compact() {
+        if (overrides.isEmpty()) {
+            return this;
+        }
+        Builder builder = new Builder();
+        for (int k = 0; k < ids.length; k += 1) {
+            if (!overrides.containsKey(ids[k])) {
+                builder.add(ids[k], refs, offsets[k], offsets[k + 1] - offsets[k]);
+            }
+        }
+        for (Map.Entry<Long, long[]> entry : overrides.entrySet()) {
+            long[] value = entry.getValue();
+            if (value != null) {
+                builder.add(entry.getKey(), value, 0, value.length);
+            }
+        }
+        return builder.build();
+    }
+
+    /** Returns the sorted way IDs, folding in any overrides first. */
+    long[] ids() {
+        return compact().ids;
+    }
+
+    /** Returns the run offsets, folding in any overrides first. */
+    int[] offsets() {
+        return compact().offsets;
+    }
+
+    /** Returns the node references, folding in any overrides first. */
+    long[] refs() {
+        return compact().refs;
+    }
+
+    /**
+     * Creates a table straight from its flat arrays, as written by <code>ids</code>,
+     * <code>offsets</code> and <code>refs</code>.
+     */
+    static WayIndex of(long[] ids, int[] offsets, long[] refs) {
+        return new WayIndex(ids, offsets, refs, new HashMap<>());
+    }
+
+    /**
+     * Collects way references while a graph is built.
+     */
+    static class Builder {
+        private long[] wayIds = new long[16];
+        private int[] starts = new int[17];
+        private long[] allRefs = new long[64];
+        private int count;
+
+        /**
+         * Records way <code>id</code> with references <code>refs[from, from + length)</code>. If
+         * the same way is added twice, the last one wins.
+         */
+        void add(long id, long[] refs, int from, int length) {
+            if (count + 1 == starts.length) {
+                wayIds = Arrays.copyOf(wayIds, count * 2);
+                starts = Arrays.copyOf(starts, count * 2 + 1);
+            }
+            int start = starts[count];
+            if (start + length > allRefs.length) {
+                allRefs = Arrays.copyOf(allRefs, Math.max(start + length, allRefs.length * 2));
+            }
+            System.arraycopy(refs, from, allRefs, start, length);
+            wayIds[count] = id;
+            count += 1;
+            starts[count] = start + length;
+        }
+
+        /**
+         * Appends every way of <code>other</code> to this builder.
+         *
+         * @param other The builder to merge in; it is left unchanged.
+         */
+        void addAll(Builder other) {
+            for (int k = 0; k < other.count; k += 1) {
+                add(other.wayIds[k], other.allRefs, other.starts[k],
+                        other.starts[k + 1] - other.starts[k]);
+            }
+        }
+
+        /** Returns the finished table. */
+        WayIndex build() {
+            int[] sorted = sortedPositions();
+            int unique = 0;
+            long[] ids = new long[count];
+            int[] offsets = new int[count + 1];
+            int total = 0;
+            for (int r = 0; r < count; r += 1) {
+                int k = sorted[r];
+                if (r + 1 < count && wayIds[sorted[r + 1]] == wayIds[k]) {
+                    continue;
+                }
+                ids[unique] = wayIds[k];
+                total += starts[k + 1] - starts[k];
+                unique += 1;
+                offsets[unique] = total;
+            }
+            long[] refs = new long[total];
+            unique = 0;
+            for (int r = 0; r < count; r += 1) {
+                int k = sorted[r];
+                if (r + 1 < count && wayIds[sorted[r + 1]] == wayIds[k]) {
+                    continue;
+                }
+                System.arraycopy(allRefs, starts[k], refs, offsets[unique],
+                        starts[k + 1] - starts[k]);
+                unique += 1;
+            }
+            return of(Arrays.copyOf(ids, unique), Arrays.copyOf(offsets, unique + 1), refs);
+        }
+
+        /**
+         * Returns the positions of the recorded ways ordered by way ID, and by insertion order
+         * among equal IDs, so the last of any duplicates comes last in its group.
+         */
+        private int[] sortedPositions() {
+            Integer[] boxed = new Integer[count];
+            for (int k = 0; k < count; k += 1) {
+                boxed[k] = k;
+            }
+            Arrays.sort(boxed, (a, b) -> wayIds[a] != wayIds[b]
+                    ? Long.compare(wayIds[a], wayIds[b]) : Integer.compare(a, b));
+            int[] sorted = new int[count];
+            for (int k = 0; k < count; k += 1) {
+                sorted[k] = boxed[k];
+            }
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An interned table of way metadata. Every distinct combination of name, highway type and
+ * maxspeed is stored once, and each edge of the graph refers to its way by index into this table.
+ * Any of the three values may be null if the way did not carry that tag. An updated graph
+ * appends the ways of a change without looking for them among the old ones, so its table may
+ * hold a few duplicates until the graph is compacted.
+ */
+class WayTable {
+    /** The name tag of each way. */
+    final String[] names;
+    /** The highway tag of each way. */
+    final String[] highways;
+    /** The maxspeed tag of each way. */
+    final String[] maxSpeeds;
+
+    WayTable(String[] names, String[] highways, String[] maxSpeeds) {
+        this.names = names;
+        this.highways = highways;
+        this.maxSpeeds = maxSpeeds;
+    }
+
+    /** Returns the number of distinct ways in the table. */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Collects way metadata while a graph is built, handing out one index per distinct way.
+     */
+    static class Builder {
+        private final HashMap<List<String>, Integer> indices = new HashMap<>();
+        private final HashMap<String, String> strings = new HashMap<>();
+        private String[] names = new String[16];
+        private String[] highways = new String[16];
+        private String[] maxSpeeds = new String[16];
+        private int size;
+
+        Builder() {
+        }
+
+        /**
+         * Creates a builder that already holds every way of <code>table</code>, at the same
+         * indices, so that an updated table stays valid for edges that refer to the old one.
+         * The old ways are copied, not interned, so a change costs time in proportion to its
+         * own ways; a way added after them is only matched against the other added ways.
+         */
+        Builder(WayTable table) {
+            size = table.size();
+            names = Arrays.copyOf(table.names, size + 16);
+            highways = Arrays.copyOf(table.highways, size + 16);
+            maxSpeeds = Arrays.copyOf(table.maxSpeeds, size + 16);
+        }
+
+        /**
+         * Returns the index of the way with the given tags, adding it if it is new.
+         *
+         * @param name     The name tag, or null.
+         * @param highway  The highway tag, or null.
+         * @param maxSpeed The maxspeed tag, or null.
+         * @return The index of the way in the table.
+         */
+        int intern(String name, String highway, String maxSpeed) {
+            List<String> key = Arrays.asList(name, highway, maxSpeed);
+            Integer index = indices.get(key);
+            if (index != null) {
+                return index;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                highways = Arrays.copyOf(highways, size * 2);
+                maxSpeeds = Arrays.copyOf(maxSpeeds, size * 2);
+            }
+            names[size] = pool(name);
+            highways[size] = pool(highway);
+            maxSpeeds[size] = pool(maxSpeed);
+            indices.put(key, size);
+            size += 1;
+            return size - 1;
+        }
+
+        /**
+         * Interns every way of <code>other</code> into this builder.
+         *
+         * @param other The builder to merge in; it is left unchanged.
+         * @return The new index of each of <code>other</code>'s ways.
+         */
+        int[] internAll(Builder other) {
+            int[] remap = new int[other.size];
+            for (int i = 0; i < other.size; i += 1) {
+                remap[i] = intern(other.names[i], other.highways[i], other.maxSpeeds[i]);
+            }
+            return remap;
+        }
+
+        /** Returns the finished table. */
+        WayTable build() {
+            return new WayTable(Arrays.copyOf(names, size), Arrays.copyOf(highways, size),
+                    Arrays.copyOf(maxSpeeds, size));
+        }
+
+        /** Returns a canonical copy of s, so that repeated tag values share one string. */
+        private String pool(String s) {
+            if (s == null) {
+                return null;
+            }
+            String pooled = strings.putIfAbsent(s, s);
+            return pooled == null ? s : pooled;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Measures how graph build time scales with the number of parser threads. Not a unit test; run
+ * the main method directly, optionally passing the path of the OSM XML file to load.
+ *
+ * <pre>java IngestBenchmark [path] [rounds]</pre>
+ */
+public class IngestBenchmark {
+    private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        /* Warm up both code paths before timing anything. */
+        new GraphDB(path);
+        GraphDB.parseParallel(path, cores);
+
+        System.out.println(String.format("%-12s %8s %12s %8s", "mode", "threads", "ms (best)",
+                "speedup"));
+        double baseline = best(rounds, () -> new GraphDB(path));
+        System.out.println(String.format("%-12s %8d %12.1f %8.2f", "sax", 1, baseline, 1.0));
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            int t = threads;
+            double ms = best(rounds, () -> GraphDB.parseParallel(path, t));
+            System.out.println(String.format("%-12s %8d %12.1f %8.2f", "parallel", threads, ms,
+                    baseline / ms));
+        }
+    }
+
+    /** Returns the fastest of several timed runs of build, in milliseconds. */
+    static double best(int rounds, Runnable build) {
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; r += 1) {
+            long start = System.nanoTime();
+            build.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares nearest-vertex queries on the array-laid-out <code>KdTree</code> with the linked tree
+ * of one node object per vertex that it replaced, over the same random vertices and queries. Not
+ * a unit test; run the main method directly. Memory stalls dominate both searches, so running it
+ * under <code>perf stat -e cache-misses</code> shows the difference in misses as well as time.
+ *
+ * <pre>java KdTreeBenchmark [vertices] [queries] [rounds]</pre>
+ */
+public class KdTreeBenchmark {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(1);
+        GraphBuilder builder = new GraphBuilder();
+        int way = builder.internWay(null, "residential", null);
+        for (int id = 0; id < n; id += 1) {
+            builder.addNode(id, MapServer.ROOT_ULLON
+                    + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON),
+                    MapServer.ROOT_LRLAT
+                    + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT));
+        }
+        for (int id = 0; id + 1 < n; id += 2) {
+            builder.addWay(id, new long[]{id, id + 1}, 2, way);
+        }
+        CSRGraph csr = builder.build();
+        Components components = Components.label(csr);
+        double[] xs = new double[csr.size()];
+        double[] ys = new double[csr.size()];
+        for (int i = 0; i < csr.size(); i += 1) {
+            xs[i] = GraphDB.projectToX(csr.lons[i], csr.lats[i]);
+            ys[i] = GraphDB.projectToY(csr.lons[i], csr.lats[i]);
+        }
+        double[] qx = new double[queries];
+        double[] qy = new double[queries];
+        for (int q = 0; q < queries; q += 1) {
+            int v = random.nextInt(csr.size());
+            qx[q] = xs[v] + (random.nextDouble() - 0.5) * 1e-4;
+            qy[q] = ys[v] + (random.nextDouble() - 0.5) * 1e-4;
+        }
+
+        KdTree implicit = KdTree.build(xs, ys);
+        PointerTree pointer = new PointerTree(xs, ys);
+        System.out.println(String.format("%-10s %12s %12s", "tree", "ns/query", "checksum"));
+        /* Run each tree twice; the first pass warms up the JIT. */
+        for (int pass = 0; pass < 2; pass += 1) {
+            double ns = best(rounds, queries, () -> {
+                long sum = 0;
+                for (int q = 0; q < queries; q += 1) {
+                    SpatialIndex.Nearest best = new SpatialIndex.Nearest();
+                    implicit.nearest(qx[q], qy[q], csr, components, -1, best);
+                    sum += best.vertex;
+                }
+                return sum;
+            }, pass == 1 ? "implicit" : null);
+            double baseline = best(rounds, queries, () -> {
+                long sum = 0;
+                for (int q = 0; q < queries; q += 1) {
+                    sum += pointer.nearest(qx[q], qy[q]);
+                }
+                return sum;
+            }, pass == 1 ? "pointer" : null);
+            if (pass == 1) {
+                System.out.println(String.format("speedup %.2fx", baseline / ns));
+            }
+        }
+    }
+
+    /** A batch of queries that returns a checksum of its answers. */
+    private interface Batch {
+        long run();
+    }
+
+    /** Returns the fastest of several timed runs of batch, in nanoseconds per query. */
+    private static double best(int rounds, int queries, Batch batch, String name) {
+        double best = Double.MAX_VALUE;
+        long checksum = 0;
+        for (int r = 0; r < rounds; r += 1) {
+            long start = System.nanoTime();
+            checksum = batch.run();
+            best = Math.min(best, (double) (System.nanoTime() - start) / queries);
+        }
+        if (name != null) {
+            System.out.println(String.format("%-10s %12.1f %12d", name, best, checksum));
+        }
+        return best;
+    }
+
+    /**
+     * The linked KD-tree: one node per vertex, holding its coordinates and children, built by
+     * splitting at the median on alternating axes.
+     */
+    private static class PointerTree {
+        private final double[] xs;
+        private final double[] ys;
+        private final Node root;
+
+        PointerTree(double[] xs, double[] ys) {
+            this.xs = xs;
+            this.ys = ys;
+            Integer[] order = new Integer[xs.length];
+            for (int i = 0; i < order.length; i += 1) {
+                order[i] = i;
+            }
+            root = build(order, 0, order.length, 0);
+        }
+
+        private Node build(Integer[] order, int from, int to, int depth) {
+            if (from >= to) {
+                return null;
+            }
+            double[] key = depth % 2 == 0 ? xs : ys;
+            Arrays.sort(order, from, to, (a, b) -> Double.compare(key[a], key[b]));
+            int mid = from + (to - from) / 2;
+            Node node = new Node(order[mid], depth % 2, xs[order[mid]], ys[order[mid]]);
+            node.left = build(order, from, mid, depth + 1);
+            node.right = build(order, mid + 1, to, depth + 1);
+            return node;
+        }
+
+        int nearest(double x, double y) {
+            double[] best = {Double.POSITIVE_INFINITY, -1};
+            nearest(root, x, y, best);
+            return (int) best[1];
+        }
+
+        private void nearest(Node node, double x, double y, double[] best) {
+            if (node == null) {
+                return;
+            }
+            double dx = x - node.x;
+            double dy = y - node.y;
+            double distance = dx * dx + dy * dy;
+            if (distance < best[0]) {
+                best[0] = distance;
+                best[1] = node.vertex;
+            }
+            double split = node.axis == 0 ? dx : dy;
+            nearest(split <= 0 ? node.left : node.right, x, y, best);
+            if (split * split < best[0]) {
+                nearest(split <= 0 ? node.right : node.left, x, y, best);
+            }
+        }
+
+        private static class Node {
+            final int vertex;
+            final int axis;
+            final double x;
+            final double y;
+            Node left;
+            Node right;
+
+            Node(int vertex, int axis, double x, double y) {
+                this.vertex = vertex;
+                this.axis = axis;
+                this.x = x;
+                this.y = y;
+            }
+        }
+    }
+}
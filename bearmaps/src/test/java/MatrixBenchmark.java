@@ -0,0 +1,70 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures <code>Router.distanceMatrix</code> against one <code>Router.shortestPath</code> call
+ * per pair on random sources and targets, and how the matrix scales with the number of fork-join
+ * threads. Not a unit test; run the main method directly, optionally passing the path of the OSM
+ * XML file to load.
+ *
+ * <pre>java MatrixBenchmark [path] [sources] [targets] [rounds]</pre>
+ */
+public class MatrixBenchmark {
+    private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int columns = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        GraphDB g = GraphDB.parseStreaming(path);
+
+        Random random = new Random(1);
+        double[][] sources = points(random, rows);
+        double[][] targets = points(random, columns);
+
+        /* Warm up both code paths before timing anything. */
+        pairwise(g, sources, targets);
+        Router.distanceMatrix(g, sources, targets);
+
+        System.out.println(String.format("%d by %d over %d vertices", rows, columns,
+                g.csr().size()));
+        System.out.println(String.format("%-10s %8s %12s %8s", "mode", "threads", "ms",
+                "speedup"));
+        double baseline = IngestBenchmark.best(rounds, () -> pairwise(g, sources, targets));
+        System.out.println(String.format("%-10s %8d %12.1f %8.2f", "pairwise", 1, baseline,
+                1.0));
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                double ms = IngestBenchmark.best(rounds,
+                        () -> DistanceMatrix.compute(g, sources, targets, pool));
+                System.out.println(String.format("%-10s %8d %12.1f %8.2f", "matrix", threads,
+                        ms, baseline / ms));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static double[][] points(Random random, int count) {
+        double[][] points = new double[count][];
+        for (int k = 0; k < count; k += 1) {
+            points[k] = new double[]{MapServer.ROOT_ULLON
+                    + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON),
+                MapServer.ROOT_LRLAT
+                    + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT)};
+        }
+        return points;
+    }
+
+    /** Routes every pair separately, as callers did before the matrix existed. */
+    private static void pairwise(GraphDB g, double[][] sources, double[][] targets) {
+        for (double[] source : sources) {
+            for (double[] target : targets) {
+                Router.shortestPath(g, source[0], source[1], target[0], target[1]);
+            }
+        }
+    }
+}
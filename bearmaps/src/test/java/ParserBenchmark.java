@@ -0,0 +1,47 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the SAX-based <code>GraphBuildingHandler</code> with <code>OsmStreamReader</code> on
+ * throughput and allocation. Not a unit test; run the main method directly, optionally passing the
+ * path of the OSM XML file to load.
+ *
+ * <pre>java ParserBenchmark [path] [rounds]</pre>
+ */
+public class ParserBenchmark {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-su18/bearmaps/berkeley-2018-small.osm.xml";
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH_SMALL;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        double megabytes = new File(path).length() / 1e6;
+
+        System.out.println(String.format("%-10s %12s %12s %14s", "parser", "ms/build", "MB/s",
+                "KB alloc/build"));
+        /* Run each parser twice; the first pass warms up the JIT. */
+        for (int pass = 0; pass < 2; pass += 1) {
+            report("sax", rounds, megabytes, () -> new GraphDB(path), pass == 1);
+            report("streaming", rounds, megabytes, () -> GraphDB.parseStreaming(path),
+                    pass == 1);
+        }
+    }
+
+    private static void report(String name, int rounds, double megabytes,
+                               Runnable build, boolean print) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r += 1) {
+            build.run();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / rounds;
+        double kb = (threads.getThreadAllocatedBytes(thread) - allocated) / 1024.0 / rounds;
+        if (print) {
+            System.out.println(String.format("%-10s %12.3f %12.1f %14.1f", name, ms,
+                    megabytes / (ms / 1000), kb));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Compares the searches of <code>Router</code> on the routes in <code>path_params.txt</code>:
+ * for each search, the average number of vertices settled and the average latency of a route,
+ * and the largest difference in route length from the forward search. Not a unit test; run the
+ * main method directly, optionally passing the path of the OSM XML file to load.
+ *
+ * <pre>java RouterBenchmark [path] [rounds]</pre>
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
+    private static final String PARAMS_FILE = "path_params.txt";
+
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        GraphDB g = GraphDB.parseStreaming(path);
+        g.contracted();
+        long start = System.nanoTime();
+        ContractionHierarchy ch = g.awaitHierarchy();
+        System.out.println(String.format("hierarchy: %d upward edges, ready in %.1f s",
+                ch.targets.length, (System.nanoTime() - start) / 1e9));
+        start = System.nanoTime();
+        Landmarks landmarks = g.landmarks();
+        System.out.println(String.format("%d landmarks, ready in %.1f s", landmarks.size(),
+                (System.nanoTime() - start) / 1e9));
+
+        /* Four lines per route, after two lines of comments. */
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
+        int routes = (lines.size() - 2) / 4;
+        double[][] params = new double[routes][4];
+        for (int r = 0; r < routes; r += 1) {
+            for (int k = 0; k < 4; k += 1) {
+                params[r][k] = Double.parseDouble(lines.get(2 + 4 * r + k).trim());
+            }
+        }
+        double[] lengths = new double[routes];
+        for (int r = 0; r < routes; r += 1) {
+            lengths[r] = length(g, route(g, params[r], Router.Search.FORWARD));
+        }
+
+        System.out.println(String.format("%d routes over %d vertices", routes, g.csr().size()));
+        System.out.println(String.format("%-14s %12s %12s %14s", "search", "settled", "route us",
+                "length diff"));
+        for (Router.Search search : Router.Search.values()) {
+            long settled = 0;
+            double difference = 0;
+            for (int r = 0; r < routes; r += 1) {
+                List<Long> route = route(g, params[r], search);
+                settled += SearchState.settledByLastSearch();
+                difference = Math.max(difference, Math.abs(length(g, route) - lengths[r]));
+            }
+            /* Run every route a few times untimed first, so that the timed runs are compiled. */
+            for (int r = 0; r < 10 * routes; r += 1) {
+                route(g, params[r % routes], search);
+            }
+            double ms = IngestBenchmark.best(rounds, () -> {
+                for (int r = 0; r < routes; r += 1) {
+                    route(g, params[r], search);
+                }
+            });
+            System.out.println(String.format("%-14s %12.0f %12.1f %14.2e",
+                    search.name().toLowerCase(), (double) settled / routes, ms * 1000 / routes,
+                    difference));
+        }
+    }
+
+    private static List<Long> route(GraphDB g, double[] params, Router.Search search) {
+        return Router.shortestPath(g, params[0], params[1], params[2], params[3], search,
+                Router.Disconnected.REJECT);
+    }
+
+    /** Returns the length of a route in miles. */
+    private static double length(GraphDB g, List<Long> route) {
+        CSRGraph csr = g.csr();
+        double length = 0;
+        for (int k = 1; k < route.size(); k += 1) {
+            length += csr.weights[csr.edgeIndex(csr.indexOf(route.get(k - 1)),
+                    csr.indexOf(route.get(k)))];
+        }
+        return length;
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures batch snapping throughput against snapping the same points one at a time, and how it
+ * scales with the number of fork-join threads. Not a unit test; run the main method directly,
+ * optionally passing the path of the OSM XML file to load.
+ *
+ * <pre>java SnapBenchmark [path] [points] [rounds]</pre>
+ */
+public class SnapBenchmark {
+    private static final String OSM_DB_PATH = "../library-su18/bearmaps/berkeley-2018.osm.xml";
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int points = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        GraphDB g = GraphDB.parseStreaming(path);
+
+        Random random = new Random(1);
+        double[] lons = new double[points];
+        double[] lats = new double[points];
+        for (int i = 0; i < points; i += 1) {
+            lons[i] = MapServer.ROOT_ULLON
+                    + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+            lats[i] = MapServer.ROOT_LRLAT
+                    + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+        }
+
+        /* Warm up both code paths before timing anything. */
+        single(g, lons, lats);
+        BatchSnapper.closestIndices(g, lons, lats, ForkJoinPool.commonPool());
+
+        System.out.println(String.format("%-10s %8s %14s %8s", "mode", "threads", "points/s",
+                "speedup"));
+        double baseline = IngestBenchmark.best(rounds, () -> single(g, lons, lats));
+        System.out.println(String.format("%-10s %8d %14.0f %8.2f", "single", 1,
+                points / (baseline / 1000), 1.0));
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                double ms = IngestBenchmark.best(rounds,
+                        () -> BatchSnapper.closestIndices(g, lons, lats, pool));
+                System.out.println(String.format("%-10s %8d %14.0f %8.2f", "batch", threads,
+                        points / (ms / 1000), baseline / ms));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void single(GraphDB g, double[] lons, double[] lats) {
+        for (int i = 0; i < lons.length; i += 1) {
+            g.closestIndex(lons[i], lats[i]);
+        }
+    }
+}
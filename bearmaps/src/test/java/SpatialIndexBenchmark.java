@@ -0,0 +1,106 @@
+import java.util.Random;
+
+/**
+ * Compares the kinds of <code>SpatialIndex</code> on build time, retained memory and the latency
+ * of nearest and 10-nearest queries, over the same vertices and queries. The vertices are spread
+ * either evenly over the map, like junctions in a city, or in a few dense clusters. Not a unit
+ * test; run the main method directly.
+ *
+ * <pre>java SpatialIndexBenchmark [vertices] [queries] [rounds]</pre>
+ */
+public class SpatialIndexBenchmark {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println(String.format("%-10s %-8s %10s %10s %12s %12s", "vertices", "index",
+                "build ms", "MB", "nearest ns", "10-near ns"));
+        for (boolean clustered : new boolean[]{false, true}) {
+            Random random = new Random(1);
+            GraphBuilder builder = new GraphBuilder();
+            int way = builder.internWay(null, "residential", null);
+            double[][] centers = new double[16][2];
+            for (double[] center : centers) {
+                center[0] = random.nextDouble();
+                center[1] = random.nextDouble();
+            }
+            for (int id = 0; id < n; id += 1) {
+                double u = random.nextDouble();
+                double v = random.nextDouble();
+                if (clustered) {
+                    double[] center = centers[random.nextInt(centers.length)];
+                    u = center[0] + random.nextGaussian() * 0.01;
+                    v = center[1] + random.nextGaussian() * 0.01;
+                }
+                builder.addNode(id, MapServer.ROOT_ULLON + u * MapServer.ROOT_LON_DELTA,
+                        MapServer.ROOT_LRLAT + v * MapServer.ROOT_LAT_DELTA);
+            }
+            for (int id = 0; id + 1 < n; id += 2) {
+                builder.addWay(id, new long[]{id, id + 1}, 2, way);
+            }
+            CSRGraph csr = builder.build();
+            Components components = Components.label(csr);
+            double[] xs = new double[csr.size()];
+            double[] ys = new double[csr.size()];
+            for (int i = 0; i < csr.size(); i += 1) {
+                xs[i] = GraphDB.projectToX(csr.lons[i], csr.lats[i]);
+                ys[i] = GraphDB.projectToY(csr.lons[i], csr.lats[i]);
+            }
+            /* Queries land near vertices, as clicks on a map land near roads. */
+            double[] qx = new double[queries];
+            double[] qy = new double[queries];
+            for (int q = 0; q < queries; q += 1) {
+                int v = random.nextInt(csr.size());
+                qx[q] = xs[v] + (random.nextDouble() - 0.5) * 1e-4;
+                qy[q] = ys[v] + (random.nextDouble() - 0.5) * 1e-4;
+            }
+
+            for (SpatialIndex.Kind kind : SpatialIndex.Kind.values()) {
+                /* Build twice so that the timed build runs compiled code. */
+                kind.build(xs, ys);
+                long before = usedMemory();
+                long start = System.nanoTime();
+                SpatialIndex index = kind.build(xs, ys);
+                double buildMs = (System.nanoTime() - start) / 1e6;
+                double mb = (usedMemory() - before) / (double) (1 << 20);
+
+                SpatialIndex.Neighbors result = new SpatialIndex.Neighbors(10);
+                double nearest = Double.MAX_VALUE;
+                double neighbors = Double.MAX_VALUE;
+                long checksum = 0;
+                for (int r = 0; r < rounds + 1; r += 1) {
+                    start = System.nanoTime();
+                    for (int q = 0; q < queries; q += 1) {
+                        SpatialIndex.Nearest best = new SpatialIndex.Nearest();
+                        index.nearest(qx[q], qy[q], csr, components, -1, best);
+                        checksum += best.vertex;
+                    }
+                    nearest = Math.min(nearest, (double) (System.nanoTime() - start) / queries);
+                    start = System.nanoTime();
+                    for (int q = 0; q < queries; q += 1) {
+                        result.reset(10, Double.POSITIVE_INFINITY);
+                        index.neighbors(qx[q], qy[q], csr, components, -1, result);
+                        checksum += result.vertices[0];
+                    }
+                    neighbors = Math.min(neighbors, (double) (System.nanoTime() - start) / queries);
+                }
+                System.out.println(String.format("%-10s %-8s %10.1f %10.1f %12.1f %12.1f",
+                        clustered ? "clustered" : "even", kind.name().toLowerCase(), buildMs, mb,
+                        nearest, neighbors));
+                if (checksum == 42) {
+                    System.out.println();
+                }
+            }
+        }
+    }
+
+    /** Returns the heap in use after a few rounds of garbage collection. */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i += 1) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.PrimitiveIterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sanity checks for the CSR storage behind GraphDB, using the tiny clean graph.
+ */
+public class TestCSRGraph {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testVerticesAreSorted() {
+        PrimitiveIterator.OfLong it = (PrimitiveIterator.OfLong) graphTiny.vertices().iterator();
+        long previous = Long.MIN_VALUE;
+        int count = 0;
+        while (it.hasNext()) {
+            long v = it.nextLong();
+            assertTrue(v > previous);
+            previous = v;
+            count += 1;
+        }
+        assertEquals(7, count);
+    }
+
+    @Test
+    public void testEdgesAreSymmetric() {
+        for (long v : graphTiny.vertices()) {
+            for (long w : graphTiny.adjacent(v)) {
+                boolean found = false;
+                for (long u : graphTiny.adjacent(w)) {
+                    found |= u == v;
+                }
+                assertTrue(v + " -> " + w + " has no reverse edge", found);
+            }
+        }
+    }
+
+    @Test
+    public void testMissingVertex() {
+        assertEquals(0.0, graphTiny.lon(12345L), 0.0);
+        assertEquals(0.0, graphTiny.lat(12345L), 0.0);
+        assertFalse(graphTiny.adjacent(12345L).iterator().hasNext());
+    }
+
+    @Test
+    public void testEdgeWeights() {
+        CSRGraph csr = graphTiny.csr();
+        for (int i = 0; i < csr.size(); i += 1) {
+            for (int e = csr.offsets[i]; e < csr.offsets[i + 1]; e += 1) {
+                assertEquals(graphTiny.distance(csr.ids[i], csr.ids[csr.targets[e]]),
+                        csr.weights[e], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testWayMetadata() {
+        assertEquals("11/21 connector road", graphTiny.wayName(11L, 22L));
+        assertEquals("11/21 connector road", graphTiny.wayName(22L, 11L));
+        int way = graphTiny.wayBetween(41L, 63L);
+        assertEquals("11/41/63 southeast side highway", graphTiny.ways().names[way]);
+        assertEquals("tertiary", graphTiny.ways().highways[way]);
+        assertEquals("25 mph", graphTiny.ways().maxSpeeds[way]);
+        assertEquals(-1, graphTiny.wayBetween(11L, 66L));
+    }
+}
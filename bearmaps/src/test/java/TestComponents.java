@@ -0,0 +1,77 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks component labeling and how the router treats endpoints in different components, on a
+ * graph with a four-vertex street and a separate two-vertex street.
+ */
+public class TestComponents {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("components", ".osm.xml");
+        osm.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(osm, "UTF-8")) {
+            out.println("<osm>");
+            out.println("<node id=\"1\" lat=\"37.860\" lon=\"-122.260\"/>");
+            out.println("<node id=\"2\" lat=\"37.860\" lon=\"-122.259\"/>");
+            out.println("<node id=\"3\" lat=\"37.860\" lon=\"-122.258\"/>");
+            out.println("<node id=\"4\" lat=\"37.861\" lon=\"-122.258\"/>");
+            out.println("<node id=\"5\" lat=\"37.870\" lon=\"-122.250\"/>");
+            out.println("<node id=\"6\" lat=\"37.870\" lon=\"-122.249\"/>");
+            out.println("<way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>"
+                    + "<nd ref=\"4\"/><tag k=\"highway\" v=\"residential\"/></way>");
+            out.println("<way id=\"11\"><nd ref=\"5\"/><nd ref=\"6\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>");
+            out.println("</osm>");
+        }
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test
+    public void testLabels() {
+        Components components = graph.components();
+        assertEquals(2, components.count());
+        assertArrayEquals(new int[]{0, 0, 0, 0, 1, 1}, components.labels);
+        assertArrayEquals(new int[]{4, 2}, components.sizes);
+        assertEquals(0, components.largest);
+        assertTrue(components.connected(0, 3));
+        assertFalse(components.connected(3, 4));
+        assertEquals(Arrays.asList(2, 1), Arrays.asList(components.sizeHistogram()[0][0],
+                components.sizeHistogram()[0][1]));
+    }
+
+    @Test
+    public void testRouting() {
+        assertTrue(Router.shortestPath(graph, -122.260, 37.860, -122.249, 37.870).isEmpty());
+
+        List<Long> snapped = Router.shortestPath(graph, -122.260, 37.860, -122.249, 37.870,
+                true, Router.Disconnected.SNAP_TO_LARGEST);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), snapped);
+
+        List<Long> connected = Router.shortestPath(graph, -122.250, 37.870, -122.249, 37.870);
+        assertEquals(Arrays.asList(5L, 6L), connected);
+    }
+
+    @Test
+    public void testClosestInComponent() {
+        assertEquals(4, graph.closestIndex(-122.250, 37.870));
+        assertEquals(3, graph.closestIndex(-122.250, 37.870, 0));
+    }
+}
@@ -0,0 +1,270 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the degree-two chain contraction and the router's search over it against the plain
+ * search over every vertex, and every search against Dijkstra's algorithm, on a street grid
+ * whose blocks are subdivided by shape points, with missing streets, dead ends, loops and a
+ * detached ring.
+ */
+public class TestContractedGraph {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("grid", ".osm.xml");
+        osm.deleteOnExit();
+        writeGrid(osm, 12, new Random(4));
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test
+    public void testStructure() {
+        CSRGraph csr = graph.csr();
+        ContractedGraph cg = graph.contracted();
+        assertTrue(cg.size() < csr.size());
+        for (int i = 0; i < csr.size(); i += 1) {
+            if (cg.junctionOf[i] >= 0) {
+                assertEquals(i, cg.junctions[cg.junctionOf[i]]);
+                assertEquals(-1, cg.chainOf[i]);
+            } else {
+                assertEquals(2, csr.degree(i));
+                assertEquals(i, cg.chainVertices[cg.chainPosition[i]]);
+            }
+        }
+        for (int c = 0; c < cg.chainOffsets.length - 1; c += 1) {
+            double length = 0.0;
+            for (int k = cg.chainOffsets[c] + 1; k < cg.chainOffsets[c + 1]; k += 1) {
+                int e = csr.edgeIndex(cg.chainVertices[k - 1], cg.chainVertices[k]);
+                assertTrue(e >= 0);
+                length += csr.weights[e];
+                assertEquals(length, cg.chainDistances[k], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesUncontractedSearch() {
+        CSRGraph csr = graph.csr();
+        ContractedGraph cg = graph.contracted();
+        Random random = new Random(9);
+        for (int trial = 0; trial < 400; trial += 1) {
+            int s = random.nextInt(csr.size());
+            int t;
+            if (trial % 4 == 0 && cg.chainOf[s] >= 0) {
+                /* Both endpoints inside the same chain. */
+                int c = cg.chainOf[s];
+                t = cg.chainVertices[cg.chainOffsets[c] + 1
+                        + random.nextInt(cg.chainLength(c) - 2)];
+            } else {
+                t = random.nextInt(csr.size());
+            }
+            List<Long> expected = Router.shortestPath(graph, csr.lons[s], csr.lats[s],
+                    csr.lons[t], csr.lats[t], false);
+            List<Long> actual = Router.shortestPath(graph, csr.lons[s], csr.lats[s],
+                    csr.lons[t], csr.lats[t], true);
+            /* The default search is the uncontracted one, so its routes never change. */
+            assertEquals(expected, Router.shortestPath(graph, csr.lons[s], csr.lats[s],
+                    csr.lons[t], csr.lats[t]));
+            if (!graph.components().connected(s, t)) {
+                assertTrue(expected.isEmpty() && actual.isEmpty());
+                continue;
+            }
+            /* Where paths tie, the two searches may return different ones of the same length. */
+            assertEquals(expected.get(0), actual.get(0));
+            assertEquals(expected.get(expected.size() - 1), actual.get(actual.size() - 1));
+            assertEquals(length(expected), length(actual), 1e-9);
+        }
+    }
+
+    @Test
+    public void testEverySearchMatchesDijkstra() {
+        CSRGraph csr = graph.csr();
+        /* Built up front, so that HIERARCHY searches it rather than falling back. */
+        graph.awaitHierarchy();
+        ContractedGraph cg = graph.contracted();
+        Random random = new Random(17);
+        for (int trial = 0; trial < 100; trial += 1) {
+            int s = random.nextInt(csr.size());
+            double[] expected = dijkstra(csr, s);
+            /* Cycle through the searches, so that the state is reused at two sizes. */
+            for (int k = 0; k < 6; k += 1) {
+                int t = random.nextInt(csr.size());
+                Router.Search search = Router.Search.values()[k % Router.Search.values().length];
+                List<Long> path = Router.shortestPath(graph, csr.lons[s], csr.lats[s],
+                        csr.lons[t], csr.lats[t], search, Router.Disconnected.REJECT);
+                if (Double.isInfinite(expected[t])) {
+                    assertTrue(path.isEmpty());
+                } else {
+                    assertEquals(expected[t], length(path), 1e-9);
+                }
+            }
+        }
+        assertTrue(cg.size() < csr.size());
+    }
+
+    @Test
+    public void testJunctionsOnly() throws IOException {
+        /* A star of single-edge ways: every vertex is a junction and every chain one edge, so
+         * the chains kept fill as many slots as the graph has directed edges. */
+        int spokes = 10;
+        StringBuilder nodes = new StringBuilder();
+        StringBuilder ways = new StringBuilder();
+        node(nodes, 0, 37.86, -122.26);
+        for (int k = 1; k <= spokes; k += 1) {
+            node(nodes, k, 37.86 + 0.001 * Math.sin(k), -122.26 + 0.001 * Math.cos(k));
+            ways.append(String.format("<way id=\"%d\"><nd ref=\"0\"/><nd ref=\"%d\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>%n", spokes + k, k));
+        }
+        File osm = File.createTempFile("junctions", ".osm.xml");
+        osm.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(osm, "UTF-8")) {
+            out.print("<osm>\n" + nodes + ways + "</osm>\n");
+        }
+        GraphDB junctions = new GraphDB(osm.getPath());
+        CSRGraph csr = junctions.csr();
+        ContractedGraph cg = junctions.contracted();
+        assertEquals(spokes + 1, cg.size());
+        Random random = new Random(23);
+        for (int trial = 0; trial < 20; trial += 1) {
+            int s = random.nextInt(csr.size());
+            int t = random.nextInt(csr.size());
+            List<Long> path = Router.shortestPath(junctions, csr.lons[s], csr.lats[s],
+                    csr.lons[t], csr.lats[t], Router.Search.CONTRACTED,
+                    Router.Disconnected.REJECT);
+            assertEquals(dijkstra(csr, s)[t], length(csr, path), 1e-9);
+        }
+    }
+
+    /** Returns the length of a path, checking that consecutive vertices are adjacent. */
+    private static double length(List<Long> path) {
+        return length(graph.csr(), path);
+    }
+
+    /** Returns the length of a path in csr, checking that consecutive vertices are adjacent. */
+    private static double length(CSRGraph csr, List<Long> path) {
+        double length = 0.0;
+        for (int k = 1; k < path.size(); k += 1) {
+            int e = csr.edgeIndex(csr.indexOf(path.get(k - 1)), csr.indexOf(path.get(k)));
+            assertTrue(e >= 0);
+            length += csr.weights[e];
+        }
+        return length;
+    }
+
+    /** Returns the distance from s to every vertex, by a plain Dijkstra search. */
+    static double[] dijkstra(CSRGraph csr, int s) {
+        double[] distance = new double[csr.size()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        PriorityQueue<double[]> queue = new PriorityQueue<>((p, q) -> Double.compare(p[0], q[0]));
+        distance[s] = 0.0;
+        queue.add(new double[]{0.0, s});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int v = (int) top[1];
+            if (top[0] > distance[v]) {
+                continue;
+            }
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                if (distance[v] + csr.weights[e] < distance[w]) {
+                    distance[w] = distance[v] + csr.weights[e];
+                    queue.add(new double[]{distance[w], w});
+                }
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Writes an OSM file with a size-by-size grid of junctions about a block apart. Each block
+     * is a way through zero to four jittered shape points; about a tenth of the blocks are
+     * missing, some junctions grow a dead end or a loop, and a ring of shape points stands apart.
+     */
+    static void writeGrid(File file, int size, Random random) throws IOException {
+        StringBuilder nodes = new StringBuilder();
+        StringBuilder ways = new StringBuilder();
+        long[] next = {size * size};
+        for (int r = 0; r < size; r += 1) {
+            for (int c = 0; c < size; c += 1) {
+                node(nodes, r * size + c, 37.86 + r * 0.001, -122.26 + c * 0.001);
+            }
+        }
+        for (int r = 0; r < size; r += 1) {
+            for (int c = 0; c < size; c += 1) {
+                long v = r * size + c;
+                if (c + 1 < size && random.nextInt(10) > 0) {
+                    block(nodes, ways, next, random, v, v + 1);
+                }
+                if (r + 1 < size && random.nextInt(10) > 0) {
+                    block(nodes, ways, next, random, v, v + size);
+                }
+                if (random.nextInt(8) == 0) {
+                    block(nodes, ways, next, random, v, -1);
+                }
+                if (random.nextInt(8) == 0) {
+                    block(nodes, ways, next, random, v, v);
+                }
+            }
+        }
+        long ringStart = next[0];
+        StringBuilder ring = new StringBuilder();
+        for (int k = 0; k < 6; k += 1) {
+            node(nodes, next[0], 37.85 + 0.0005 * Math.sin(k), -122.27 + 0.0005 * Math.cos(k));
+            ring.append(String.format("<nd ref=\"%d\"/>", next[0]));
+            next[0] += 1;
+        }
+        ways.append(String.format("<way id=\"%d\">%s<nd ref=\"%d\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>%n", next[0], ring, ringStart));
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.print("<osm>\n" + nodes + ways + "</osm>\n");
+        }
+    }
+
+    /**
+     * Adds a way from junction v to junction w through new shape points. If w is -1 the way is
+     * a dead end; if w is v, it loops back.
+     */
+    private static void block(StringBuilder nodes, StringBuilder ways, long[] next, Random random,
+                              long v, long w) {
+        int points = w == v ? 3 + random.nextInt(2) : random.nextInt(5);
+        if (w < 0) {
+            points = 1 + random.nextInt(3);
+        }
+        StringBuilder refs = new StringBuilder(String.format("<nd ref=\"%d\"/>", v));
+        for (int k = 0; k < points; k += 1) {
+            node(nodes, next[0], 37.86 + random.nextDouble() * 0.012,
+                    -122.26 + random.nextDouble() * 0.012);
+            refs.append(String.format("<nd ref=\"%d\"/>", next[0]));
+            next[0] += 1;
+        }
+        if (w >= 0) {
+            refs.append(String.format("<nd ref=\"%d\"/>", w));
+        }
+        ways.append(String.format("<way id=\"%d\">%s<tag k=\"highway\" v=\"residential\"/>"
+                + "</way>%n", next[0], refs));
+        next[0] += 1;
+    }
+
+    private static void node(StringBuilder nodes, long id, double lat, double lon) {
+        nodes.append(String.format(Locale.ROOT, "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                id, lat, lon));
+    }
+}
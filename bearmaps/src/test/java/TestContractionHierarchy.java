@@ -0,0 +1,128 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the structure of a contraction hierarchy, that building it on more threads gives the
+ * same hierarchy, that routes are answered while it is built in the background, and that its
+ * file reads back intact and is rejected when damaged, on the street grid of
+ * <code>TestContractedGraph</code>.
+ */
+public class TestContractionHierarchy {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("grid", ".osm.xml");
+        osm.deleteOnExit();
+        TestContractedGraph.writeGrid(osm, 12, new Random(4));
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test
+    public void testHierarchyStructure() {
+        CSRGraph csr = graph.csr();
+        ContractionHierarchy ch = ContractionHierarchy.build(csr, 1);
+        assertEquals(csr.size(), ch.size());
+        boolean[] ranked = new boolean[csr.size()];
+        for (int v = 0; v < ch.size(); v += 1) {
+            assertTrue(!ranked[ch.ranks[v]]);
+            ranked[ch.ranks[v]] = true;
+            for (int e = ch.offsets[v]; e < ch.offsets[v + 1]; e += 1) {
+                int w = ch.targets[e];
+                assertTrue(ch.ranks[w] > ch.ranks[v]);
+                if (ch.middles[e] < 0) {
+                    assertEquals(csr.weights[csr.edgeIndex(v, w)], ch.weights[e], 0.0);
+                } else {
+                    int m = ch.middles[e];
+                    assertEquals(ch.weights[ch.edge(m, v)] + ch.weights[ch.edge(m, w)],
+                            ch.weights[e], 1e-12);
+                }
+            }
+        }
+        ContractionHierarchy parallel = ContractionHierarchy.build(csr, 3);
+        assertArrayEquals(ch.ranks, parallel.ranks);
+        assertArrayEquals(ch.offsets, parallel.offsets);
+        assertArrayEquals(ch.targets, parallel.targets);
+        assertArrayEquals(ch.middles, parallel.middles);
+    }
+
+    @Test
+    public void testRoutesWhileBuilding() throws Exception {
+        File osm = File.createTempFile("grid", ".osm.xml");
+        osm.deleteOnExit();
+        TestContractedGraph.writeGrid(osm, 12, new Random(4));
+        GraphDB fresh = new GraphDB(osm.getPath());
+        CSRGraph csr = fresh.csr();
+        Random random = new Random(37);
+        int s = random.nextInt(csr.size());
+        int t = random.nextInt(csr.size());
+        double[] expected = TestContractedGraph.dijkstra(csr, s);
+
+        /* The first request only starts the build, and is answered by another search. */
+        assertNull(fresh.hierarchy());
+        List<Long> route = Router.shortestPath(fresh, csr.lons[s], csr.lats[s], csr.lons[t],
+                csr.lats[t], Router.Search.HIERARCHY, Router.Disconnected.SNAP_TO_LARGEST);
+        assertEquals(expected[t], length(csr, route), 1e-9);
+
+        ContractionHierarchy ch = fresh.awaitHierarchy();
+        assertTrue(ch.builtFor(csr));
+        assertSame(ch, fresh.hierarchy());
+        route = Router.shortestPath(fresh, csr.lons[s], csr.lats[s], csr.lons[t], csr.lats[t],
+                Router.Search.HIERARCHY, Router.Disconnected.SNAP_TO_LARGEST);
+        assertEquals(expected[t], length(csr, route), 1e-9);
+    }
+
+    @Test
+    public void testHierarchyFile() throws IOException {
+        CSRGraph csr = graph.csr();
+        ContractionHierarchy ch = graph.awaitHierarchy();
+        File file = File.createTempFile("grid", ".ch");
+        file.deleteOnExit();
+        ch.write(file.getPath());
+        ContractionHierarchy read = ContractionHierarchy.read(file.getPath(), csr);
+        assertTrue(read != null && read.builtFor(csr));
+        assertArrayEquals(ch.ranks, read.ranks);
+        assertArrayEquals(ch.offsets, read.offsets);
+        assertArrayEquals(ch.targets, read.targets);
+        assertArrayEquals(ch.weights, read.weights, 0.0);
+        assertArrayEquals(ch.middles, read.middles);
+
+        /* A damaged or cut-short file is rejected rather than trusted. */
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file.toPath(), bytes);
+        assertNull(ContractionHierarchy.read(file.getPath(), csr));
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 12));
+        assertNull(ContractionHierarchy.read(file.getPath(), csr));
+        assertNull(ContractionHierarchy.read(file.getPath() + ".missing", csr));
+    }
+
+    /** Returns the length of a route, which must run along edges of <code>csr</code>. */
+    private static double length(CSRGraph csr, List<Long> route) {
+        double length = 0.0;
+        for (int k = 1; k < route.size(); k += 1) {
+            int e = csr.edgeIndex(csr.indexOf(route.get(k - 1)), csr.indexOf(route.get(k)));
+            assertTrue(e >= 0);
+            length += csr.weights[e];
+        }
+        return length;
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the distance matrix against Dijkstra's algorithm from every snapped source, with
+ * repeated points and points in a separate component, on the street grid of
+ * <code>TestContractedGraph</code>.
+ */
+public class TestDistanceMatrix {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("grid", ".osm.xml");
+        osm.deleteOnExit();
+        TestContractedGraph.writeGrid(osm, 12, new Random(4));
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test
+    public void testDistanceMatrixMatchesDijkstra() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(29);
+        /* Some points repeat, and the last vertices lie on the detached ring. */
+        double[][] sources = new double[12][];
+        double[][] targets = new double[30][];
+        for (int k = 0; k < sources.length + targets.length; k += 1) {
+            int v = k % 7 == 6 ? csr.size() - 1 - random.nextInt(3) : random.nextInt(csr.size());
+            double[] point = {csr.lons[v] + (random.nextDouble() - 0.5) * 1e-4,
+                              csr.lats[v] + (random.nextDouble() - 0.5) * 1e-4};
+            if (k < sources.length) {
+                sources[k] = k % 5 == 4 ? sources[k - 1] : point;
+            } else {
+                targets[k - sources.length] = k % 5 == 4 && k > sources.length
+                        ? targets[k - sources.length - 1] : point;
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(3);
+        double[] matrix;
+        try {
+            matrix = DistanceMatrix.compute(graph, sources, targets, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertArrayEquals(matrix, Router.distanceMatrix(graph, sources, targets), 0.0);
+        assertEquals(sources.length * targets.length, matrix.length);
+        for (int i = 0; i < sources.length; i += 1) {
+            double[] expected = TestContractedGraph.dijkstra(csr,
+                    graph.closestIndex(sources[i][0], sources[i][1]));
+            for (int j = 0; j < targets.length; j += 1) {
+                int t = graph.closestIndex(targets[j][0], targets[j][1]);
+                assertEquals(expected[t], matrix[i * targets.length + j], 1e-12);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMatrixTooLargeForAnArray() {
+        /* 46341 squared overflows an int; the request must fail before any point is snapped. */
+        double[][] points = new double[46341][];
+        Arrays.fill(points, new double[]{-122.26, 37.86});
+        DistanceMatrix.compute(graph, points, points, ForkJoinPool.commonPool());
+    }
+}
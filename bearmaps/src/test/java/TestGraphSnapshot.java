@@ -0,0 +1,80 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trip tests for binary graph snapshots.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-su18/bearmaps/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File source = folder.newFile("small.osm.xml");
+        Files.copy(Paths.get(OSM_DB_PATH_SMALL), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        GraphDB parsed = GraphDB.load(source.getPath());
+        GraphDB loaded = GraphSnapshot.read(GraphSnapshot.pathFor(source.getPath()),
+                source.getPath());
+        assertNotNull(loaded);
+
+        HashSet<Long> expected = new HashSet<>();
+        HashSet<Long> actual = new HashSet<>();
+        for (long v : parsed.vertices()) {
+            expected.add(v);
+            assertEquals(parsed.lon(v), loaded.lon(v), 0.0);
+            assertEquals(parsed.lat(v), loaded.lat(v), 0.0);
+            HashSet<Long> parsedNeighbors = new HashSet<>();
+            HashSet<Long> loadedNeighbors = new HashSet<>();
+            parsed.adjacent(v).forEach(parsedNeighbors::add);
+            loaded.adjacent(v).forEach(loadedNeighbors::add);
+            assertEquals(parsedNeighbors, loadedNeighbors);
+        }
+        loaded.vertices().forEach(actual::add);
+        assertEquals(expected, actual);
+        assertEquals(parsed.closest(-122.25207, 37.8680554),
+                loaded.closest(-122.25207, 37.8680554));
+    }
+
+    @Test
+    public void testStaleSnapshotIsIgnored() throws Exception {
+        File source = folder.newFile("small.osm.xml");
+        Files.copy(Paths.get(OSM_DB_PATH_SMALL), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        GraphDB.load(source.getPath());
+        assertTrue(source.setLastModified(source.lastModified() - 60_000));
+        assertNull(GraphSnapshot.read(GraphSnapshot.pathFor(source.getPath()), source.getPath()));
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws Exception {
+        File source = folder.newFile("small.osm.xml");
+        Files.copy(Paths.get(OSM_DB_PATH_SMALL), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        GraphDB.load(source.getPath());
+        String snapshotPath = GraphSnapshot.pathFor(source.getPath());
+        try (RandomAccessFile raf = new RandomAccessFile(snapshotPath, "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xFF);
+        }
+        assertNull(GraphSnapshot.read(snapshotPath, source.getPath()));
+    }
+}
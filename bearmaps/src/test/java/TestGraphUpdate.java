@@ -0,0 +1,297 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applies rounds of random OSM changes to a generated street grid and checks every resulting
+ * version against a graph loaded from scratch from the equivalent OSM file. Changed ways always
+ * pass through a new node, so no two ways share a segment and the expected graph is unambiguous.
+ */
+public class TestGraphUpdate {
+    private final Random random = new Random(11);
+    private final TreeMap<Long, double[]> nodes = new TreeMap<>();
+    private final Map<Long, Map<String, String>> nodeTags = new HashMap<>();
+    private final TreeMap<Long, long[]> ways = new TreeMap<>();
+    private final Map<Long, String> highways = new HashMap<>();
+    private long nextId = 1;
+
+    @Test
+    public void testMatchesFullLoad() throws IOException {
+        writeBaseGrid(8);
+        GraphDB previous = load(toXml());
+        LiveGraph live = new LiveGraph(previous);
+        previous.awaitHierarchy();
+        GraphDB expectedPrevious = previous;
+        for (int round = 0; round < 6; round += 1) {
+            File osc = File.createTempFile("change", ".osc");
+            osc.deleteOnExit();
+            try (PrintWriter out = new PrintWriter(osc, "UTF-8")) {
+                out.print(randomChange());
+            }
+            GraphDB updated = live.apply(osc.getPath());
+            /* Updated in place of a reload: old indices are kept and new vertices appended. */
+            assertTrue(updated.csr().size() > updated.csr().sortedCount);
+            assertEquals(previous.csr().sortedCount, updated.csr().sortedCount);
+            GraphDB expected = load(toXml());
+            assertSameGraph(expected, updated);
+            assertSameGraph(expected, updated.compacted());
+            /* Every version gets a hierarchy of its own, started by the update. */
+            assertTrue(updated.awaitHierarchy().builtFor(updated.csr()));
+            assertTrue(!previous.hierarchy().builtFor(updated.csr()));
+            /* The version that was current before the update still answers as it did. */
+            assertSameGraph(expectedPrevious, previous);
+            previous = updated;
+            expectedPrevious = expected;
+        }
+    }
+
+    @Test
+    public void testParseChange() throws IOException {
+        String osc = "<osmChange version=\"0.6\">"
+                + "<create><node id=\"1\" lat=\"37.5\" lon=\"-122.5\">"
+                + "<tag k=\"name\" v=\"Corner\"/></node></create>"
+                + "<modify><way id=\"7\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Elm\"/></way>"
+                + "<node id=\"1\" lat=\"37.6\" lon=\"-122.5\"/></modify>"
+                + "<delete><way id=\"8\"/><node id=\"3\"/></delete>"
+                + "<create><way id=\"9\"><nd ref=\"1\"/><tag k=\"highway\" v=\"footway\"/>"
+                + "</way></create>"
+                + "</osmChange>";
+        OsmChange change = OsmChange.parse(new ByteArrayInputStream(osc.getBytes("UTF-8")));
+        assertEquals(2, change.nodes.size());
+        assertEquals(37.6, change.nodes.get(1L).lat, 0.0);
+        assertTrue(change.nodes.get(1L).tags.isEmpty());
+        assertTrue(change.nodes.containsKey(3L) && change.nodes.get(3L) == null);
+        assertEquals("Elm", change.ways.get(7L).name);
+        assertTrue(change.ways.get(7L).routable());
+        assertEquals(2, change.ways.get(7L).refs.length);
+        assertTrue(change.ways.containsKey(8L) && change.ways.get(8L) == null);
+        assertTrue(!change.ways.get(9L).routable());
+    }
+
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        Set<Long> expectedIds = new HashSet<>();
+        for (long v : expected.vertices()) {
+            expectedIds.add(v);
+        }
+        Set<Long> actualIds = new HashSet<>();
+        for (long v : actual.vertices()) {
+            actualIds.add(v);
+        }
+        assertEquals(expectedIds, actualIds);
+        CSRGraph e = expected.csr();
+        CSRGraph a = actual.csr();
+        for (long v : expectedIds) {
+            assertEquals(expected.lon(v), actual.lon(v), 0.0);
+            assertEquals(expected.lat(v), actual.lat(v), 0.0);
+            assertEquals(expected.tags(v), actual.tags(v));
+            Set<Long> expectedNeighbors = new HashSet<>();
+            for (long w : expected.adjacent(v)) {
+                expectedNeighbors.add(w);
+            }
+            Set<Long> actualNeighbors = new HashSet<>();
+            for (long w : actual.adjacent(v)) {
+                actualNeighbors.add(w);
+            }
+            assertEquals(expectedNeighbors, actualNeighbors);
+            for (long w : expectedNeighbors) {
+                assertEquals(e.weights[e.edgeIndex(e.indexOf(v), e.indexOf(w))],
+                        a.weights[a.edgeIndex(a.indexOf(v), a.indexOf(w))], 0.0);
+                assertEquals(expected.wayName(v, w), actual.wayName(v, w));
+            }
+        }
+        assertEquals(expected.components().count(), actual.components().count());
+
+        Random random = new Random(3);
+        for (int k = 0; k < 50; k += 1) {
+            double lon = -122.26 + random.nextDouble() * 0.01;
+            double lat = 37.86 + random.nextDouble() * 0.01;
+            assertEquals(expected.closest(lon, lat), actual.closest(lon, lat));
+            double lon2 = -122.26 + random.nextDouble() * 0.01;
+            double lat2 = 37.86 + random.nextDouble() * 0.01;
+            List<Long> expectedPath = Router.shortestPath(expected, lon, lat, lon2, lat2);
+            List<Long> actualPath = Router.shortestPath(actual, lon, lat, lon2, lat2);
+            assertEquals(length(expected, expectedPath), length(actual, actualPath), 1e-9);
+        }
+    }
+
+    private static double length(GraphDB g, List<Long> path) {
+        double length = 0.0;
+        for (int k = 1; k < path.size(); k += 1) {
+            length += g.distance(path.get(k - 1), path.get(k));
+        }
+        return length;
+    }
+
+    /** Fills the model with a size-by-size grid of blocks, each through up to two shape points. */
+    private void writeBaseGrid(int size) {
+        long[][] junctions = new long[size][size];
+        for (int r = 0; r < size; r += 1) {
+            for (int c = 0; c < size; c += 1) {
+                junctions[r][c] = addNode(37.86 + r * 0.001, -122.26 + c * 0.001);
+                if (random.nextInt(6) == 0) {
+                    nodeTags.put(junctions[r][c], Map.of("highway", "traffic_signals"));
+                }
+            }
+        }
+        for (int r = 0; r < size; r += 1) {
+            for (int c = 0; c < size; c += 1) {
+                if (c + 1 < size) {
+                    addWay(junctions[r][c], junctions[r][c + 1], random.nextInt(3));
+                }
+                if (r + 1 < size) {
+                    addWay(junctions[r][c], junctions[r + 1][c], random.nextInt(3));
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the model at random and returns the change as an OSM change document: ways are
+     * deleted, rerouted, retagged and created, and routable nodes are moved, retagged and
+     * deleted.
+     */
+    private String randomChange() {
+        StringBuilder create = new StringBuilder();
+        StringBuilder modify = new StringBuilder();
+        StringBuilder delete = new StringBuilder();
+        List<Long> wayIds = new ArrayList<>(ways.keySet());
+        for (int k = 0; k < 4; k += 1) {
+            long way = wayIds.remove(random.nextInt(wayIds.size()));
+            ways.remove(way);
+            delete.append(String.format("<way id=\"%d\"/>", way));
+        }
+        for (int k = 0; k < 4; k += 1) {
+            long way = wayIds.remove(random.nextInt(wayIds.size()));
+            long[] old = ways.get(way);
+            long shape = addNode(37.86 + random.nextDouble() * 0.008,
+                    -122.26 + random.nextDouble() * 0.008);
+            create.append(nodeXml(shape));
+            ways.put(way, new long[]{old[0], shape, old[old.length - 1]});
+            if (random.nextInt(4) == 0) {
+                highways.put(way, "footway");
+            }
+            modify.append(wayXml(way));
+        }
+        List<Long> routable = new ArrayList<>(routableNodes());
+        for (int k = 0; k < 4; k += 1) {
+            long from = routable.get(random.nextInt(routable.size()));
+            long to = routable.get(random.nextInt(routable.size()));
+            long shape = addNode(37.86 + random.nextDouble() * 0.008,
+                    -122.26 + random.nextDouble() * 0.008);
+            create.append(nodeXml(shape));
+            long way = nextId++;
+            ways.put(way, new long[]{from, shape, to});
+            highways.put(way, "residential");
+            create.append(wayXml(way));
+        }
+        routable = new ArrayList<>(routableNodes());
+        for (int k = 0; k < 4; k += 1) {
+            long node = routable.remove(random.nextInt(routable.size()));
+            double[] position = nodes.get(node);
+            if (k % 2 == 0) {
+                position[0] += (random.nextDouble() - 0.5) * 0.0005;
+                position[1] += (random.nextDouble() - 0.5) * 0.0005;
+            }
+            nodeTags.put(node, Map.of("name", "Stop " + node));
+            modify.append(nodeXml(node));
+        }
+        for (int k = 0; k < 2; k += 1) {
+            long node = routable.remove(random.nextInt(routable.size()));
+            nodes.remove(node);
+            nodeTags.remove(node);
+            delete.append(String.format("<node id=\"%d\"/>", node));
+        }
+        return "<osmChange version=\"0.6\"><create>" + create + "</create><modify>" + modify
+                + "</modify><delete>" + delete + "</delete></osmChange>\n";
+    }
+
+    private Set<Long> routableNodes() {
+        Set<Long> result = new TreeSet<>();
+        for (Map.Entry<Long, long[]> way : ways.entrySet()) {
+            if (!highways.get(way.getKey()).equals("residential")) {
+                continue;
+            }
+            for (long ref : way.getValue()) {
+                if (nodes.containsKey(ref)) {
+                    result.add(ref);
+                }
+            }
+        }
+        return result;
+    }
+
+    private long addNode(double lat, double lon) {
+        long id = nextId++;
+        nodes.put(id, new double[]{lat, lon});
+        return id;
+    }
+
+    private void addWay(long from, long to, int shapePoints) {
+        long[] refs = new long[shapePoints + 2];
+        refs[0] = from;
+        for (int k = 1; k <= shapePoints; k += 1) {
+            refs[k] = addNode(37.86 + random.nextDouble() * 0.008,
+                    -122.26 + random.nextDouble() * 0.008);
+        }
+        refs[shapePoints + 1] = to;
+        long way = nextId++;
+        ways.put(way, refs);
+        highways.put(way, "residential");
+    }
+
+    private String nodeXml(long id) {
+        double[] position = nodes.get(id);
+        StringBuilder tags = new StringBuilder();
+        for (Map.Entry<String, String> tag : nodeTags.getOrDefault(id, Map.of()).entrySet()) {
+            tags.append(String.format("<tag k=\"%s\" v=\"%s\"/>", tag.getKey(), tag.getValue()));
+        }
+        return String.format(Locale.ROOT, "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">%s</node>%n",
+                id, position[0], position[1], tags);
+    }
+
+    private String wayXml(long id) {
+        StringBuilder refs = new StringBuilder();
+        for (long ref : ways.get(id)) {
+            refs.append(String.format("<nd ref=\"%d\"/>", ref));
+        }
+        return String.format("<way id=\"%d\">%s<tag k=\"highway\" v=\"%s\"/>"
+                + "<tag k=\"name\" v=\"Way %d\"/></way>%n", id, refs, highways.get(id), id);
+    }
+
+    private String toXml() {
+        StringBuilder xml = new StringBuilder("<osm>\n");
+        for (long id : nodes.keySet()) {
+            xml.append(nodeXml(id));
+        }
+        for (long id : ways.keySet()) {
+            xml.append(wayXml(id));
+        }
+        return xml.append("</osm>\n").toString();
+    }
+
+    private static GraphDB load(String xml) throws IOException {
+        File osm = File.createTempFile("update", ".osm.xml");
+        osm.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(osm, "UTF-8")) {
+            out.print(xml);
+        }
+        return GraphDB.parseStreaming(osm.getPath());
+    }
+}
@@ -0,0 +1,402 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the KD-tree behind <code>GraphDB.closest</code>, its batch form, <code>kNearest</code>
+ * and <code>withinRadius</code> on random points, a quarter of which share their position with
+ * another point, against a linear scan over every vertex, and under concurrent queries. The grid
+ * index is checked against the KD-tree, on ties at the borders of its cells against a linear
+ * scan, and both against a scan for vertices in a box, and the snap cache against the index at
+ * grid resolutions from finer to far coarser than the roads.
+ */
+public class TestKdTree {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("points", ".osm.xml");
+        osm.deleteOnExit();
+        writePoints(osm, 2000, new Random(5));
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test
+    public void testIndexesEveryVertex() {
+        int[] indexed = graph.withIndex(SpatialIndex.Kind.KD_TREE).kdTreeOrder().clone();
+        Arrays.sort(indexed);
+        int n = graph.csr().size();
+        assertEquals(n, indexed.length);
+        for (int i = 0; i < n; i += 1) {
+            assertEquals(i, indexed[i]);
+        }
+    }
+
+    @Test
+    public void testClosestMatchesLinearScan() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(8);
+        for (int trial = 0; trial < 500; trial += 1) {
+            double lon = -122.27 + random.nextDouble() * 0.03;
+            double lat = 37.85 + random.nextDouble() * 0.03;
+            double x = GraphDB.projectToX(lon, lat);
+            double y = GraphDB.projectToY(lon, lat);
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < csr.size(); i += 1) {
+                best = Math.min(best, GraphDB.euclideanDistance(x, y,
+                        GraphDB.projectToX(csr.lons[i], csr.lats[i]),
+                        GraphDB.projectToY(csr.lons[i], csr.lats[i])));
+            }
+            int found = graph.closestIndex(lon, lat);
+            assertEquals(best, GraphDB.euclideanDistance(x, y,
+                    GraphDB.projectToX(csr.lons[found], csr.lats[found]),
+                    GraphDB.projectToY(csr.lons[found], csr.lats[found])), 0.0);
+        }
+    }
+
+    @Test
+    public void testCoincidentVerticesSnapToLowestIndex() {
+        CSRGraph csr = graph.csr();
+        for (SpatialIndex.Kind kind : SpatialIndex.Kind.values()) {
+            GraphDB g = graph.withIndex(kind);
+            for (int i = 0; i < csr.size(); i += 1) {
+                int lowest = i;
+                for (int j = 0; j < i; j += 1) {
+                    if (csr.lons[j] == csr.lons[i] && csr.lats[j] == csr.lats[i]) {
+                        lowest = j;
+                        break;
+                    }
+                }
+                assertEquals(kind.toString(), lowest,
+                        g.closestIndex(csr.lons[i], csr.lats[i], -1));
+            }
+        }
+    }
+
+    @Test
+    public void testKNearestMatchesLinearScan() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(21);
+        SpatialIndex.Neighbors result = new SpatialIndex.Neighbors(1);
+        for (int trial = 0; trial < 200; trial += 1) {
+            double lon = -122.27 + random.nextDouble() * 0.03;
+            double lat = 37.85 + random.nextDouble() * 0.03;
+            int k = 1 + random.nextInt(40);
+            double[] expected = sortedDistances(csr, lon, lat);
+            long[] found = graph.kNearest(lon, lat, k);
+            assertEquals(k, found.length);
+            assertEquals(k, graph.kNearest(lon, lat, k, -1, result));
+            for (int i = 0; i < k; i += 1) {
+                assertEquals(expected[i], distance(csr, lon, lat, csr.indexOf(found[i])), 0.0);
+                assertEquals(found[i], csr.ids[result.vertices[i]]);
+            }
+        }
+        assertEquals(csr.size(), graph.kNearest(-122.26, 37.86, csr.size() + 5).length);
+    }
+
+    @Test
+    public void testWithinRadiusMatchesLinearScan() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(34);
+        for (int trial = 0; trial < 200; trial += 1) {
+            double lon = -122.27 + random.nextDouble() * 0.03;
+            double lat = 37.85 + random.nextDouble() * 0.03;
+            double miles = random.nextDouble() * 0.2;
+            double[] expected = sortedDistances(csr, lon, lat);
+            int count = 0;
+            while (count < expected.length && expected[count] * 3963 <= miles) {
+                count += 1;
+            }
+            long[] found = graph.withinRadius(lon, lat, miles);
+            assertEquals(count, found.length);
+            for (int i = 0; i < count; i += 1) {
+                assertEquals(expected[i], distance(csr, lon, lat, csr.indexOf(found[i])), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testGridMatchesKdTree() {
+        CSRGraph csr = graph.csr();
+        GraphDB tree = graph.withIndex(SpatialIndex.Kind.KD_TREE);
+        GraphDB grid = graph.withIndex(SpatialIndex.Kind.GRID);
+        assertEquals(csr.size(), grid.spatialIndex().size());
+        int largest = graph.components().largest;
+        Random random = new Random(89);
+        for (int trial = 0; trial < 500; trial += 1) {
+            /* Some of the points lie well outside the box of the vertices. */
+            double lon = -122.30 + random.nextDouble() * 0.09;
+            double lat = 37.82 + random.nextDouble() * 0.09;
+            int component = trial % 3 == 0 ? largest : -1;
+            assertEquals(distance(csr, lon, lat, tree.closestIndex(lon, lat, component)),
+                    distance(csr, lon, lat, grid.closestIndex(lon, lat, component)), 0.0);
+            int k = 1 + random.nextInt(20);
+            long[] expected = tree.kNearest(lon, lat, k);
+            long[] found = grid.kNearest(lon, lat, k);
+            assertEquals(expected.length, found.length);
+            for (int i = 0; i < k; i += 1) {
+                assertEquals(distance(csr, lon, lat, csr.indexOf(expected[i])),
+                        distance(csr, lon, lat, csr.indexOf(found[i])), 0.0);
+            }
+            double miles = random.nextDouble() * 0.2;
+            assertEquals(tree.withinRadius(lon, lat, miles).length,
+                    grid.withinRadius(lon, lat, miles).length);
+        }
+
+        SpatialIndex.Nearest best = new SpatialIndex.Nearest();
+        GridIndex.build(new double[0], new double[0]).nearest(0, 0, csr, graph.components(), -1,
+                best);
+        assertEquals(-1, best.vertex);
+    }
+
+    @Test
+    public void testGridBreaksTiesByIndex() {
+        /*
+         * The vertices of the graph, moved onto a 41 by 26 lattice with the rest stacked on its
+         * points, in random order. At two vertices a cell this makes cells exactly one lattice
+         * step wide, so queries on and between lattice points tie with vertices on cell borders.
+         */
+        CSRGraph csr = graph.csr();
+        int n = csr.size();
+        int columns = 41;
+        int rows = 26;
+        assertEquals(n / GridIndex.PER_CELL, (columns - 1) * (rows - 1));
+        Random random = new Random(26);
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            int p = i < columns * rows ? i : random.nextInt(columns * rows);
+            int j = random.nextInt(i + 1);
+            xs[i] = xs[j];
+            ys[i] = ys[j];
+            xs[j] = p % columns;
+            ys[j] = p / columns;
+        }
+        GridIndex grid = GridIndex.build(xs, ys);
+        for (int trial = 0; trial < 2000; trial += 1) {
+            double x = random.nextInt(2 * columns + 2) / 2.0 - 0.5;
+            double y = random.nextInt(2 * rows + 2) / 2.0 - 0.5;
+            int expected = -1;
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < n; i += 1) {
+                double distance = (x - xs[i]) * (x - xs[i]) + (y - ys[i]) * (y - ys[i]);
+                if (distance < best) {
+                    best = distance;
+                    expected = i;
+                }
+            }
+            SpatialIndex.Nearest found = new SpatialIndex.Nearest();
+            grid.nearest(x, y, csr, graph.components(), -1, found);
+            assertEquals(expected, found.vertex);
+        }
+    }
+
+    @Test
+    public void testVerticesInMatchesLinearScan() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(144);
+        for (SpatialIndex.Kind kind : SpatialIndex.Kind.values()) {
+            GraphDB g = graph.withIndex(kind);
+            for (int trial = 0; trial < 200; trial += 1) {
+                double ullon = -122.28 + random.nextDouble() * 0.04;
+                double ullat = 37.85 + random.nextDouble() * 0.04;
+                double lrlon = ullon + random.nextDouble() * 0.02;
+                double lrlat = ullat - random.nextDouble() * 0.02;
+                List<Long> expected = new ArrayList<>();
+                for (int i = 0; i < csr.size(); i += 1) {
+                    if (csr.lons[i] >= ullon && csr.lons[i] <= lrlon && csr.lats[i] >= lrlat
+                            && csr.lats[i] <= ullat) {
+                        expected.add(csr.ids[i]);
+                    }
+                }
+                long[] found = g.verticesIn(ullon, ullat, lrlon, lrlat);
+                Arrays.sort(found);
+                assertEquals(expected.size(), found.length);
+                for (int k = 0; k < found.length; k += 1) {
+                    assertEquals((long) expected.get(k), found[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchClosestMatchesSingle() {
+        Random random = new Random(55);
+        int count = 5000;
+        double[] lons = new double[count];
+        double[] lats = new double[count];
+        for (int i = 0; i < count; i += 1) {
+            lons[i] = -122.27 + random.nextDouble() * 0.03;
+            lats[i] = 37.85 + random.nextDouble() * 0.03;
+        }
+        long[] batch = graph.closest(lons, lats);
+        assertEquals(count, batch.length);
+        for (int i = 0; i < count; i += 1) {
+            assertEquals(graph.closest(lons[i], lats[i]), batch[i]);
+        }
+        assertEquals(0, graph.closest(new double[0], new double[0]).length);
+        /* This graph is snapped in input order; the order used for large graphs is checked here. */
+        int[] order = BatchSnapper.mortonOrder(lons, lats);
+        Arrays.sort(order);
+        for (int i = 0; i < count; i += 1) {
+            assertEquals(i, order[i]);
+        }
+    }
+
+    @Test
+    public void testSnapCacheMatchesIndex() {
+        Random random = new Random(21);
+        int queries = 4000;
+        /* Most queries repeat an earlier point, exactly or a meter or so away. */
+        double[] lons = new double[queries];
+        double[] lats = new double[queries];
+        int repeats = 0;
+        for (int q = 0; q < queries; q += 1) {
+            int p = q < 300 ? -1 : random.nextInt(q);
+            if (p < 0 || random.nextInt(4) == 0) {
+                lons[q] = -122.27 + random.nextDouble() * 0.03;
+                lats[q] = 37.85 + random.nextDouble() * 0.03;
+            } else if (random.nextBoolean()) {
+                lons[q] = lons[p];
+                lats[q] = lats[p];
+                repeats += 1;
+            } else {
+                lons[q] = lons[p] + (random.nextDouble() - 0.5) * 2e-5;
+                lats[q] = lats[p] + (random.nextDouble() - 0.5) * 2e-5;
+            }
+        }
+        for (double resolution : new double[]{1e-5, 1e-4, 1e-3, 1e-2}) {
+            for (int capacity : new int[]{0, 64, 1 << 14}) {
+                SnapCache cache = new SnapCache(resolution, capacity);
+                for (int q = 0; q < queries; q += 1) {
+                    assertEquals(graph.closestIndex(lons[q], lats[q], -1),
+                            cache.closest(graph, lons[q], lats[q]));
+                }
+                assertTrue(cache.size() <= capacity + 15);
+                if (capacity > 0) {
+                    assertEquals(queries, cache.hits() + cache.misses());
+                }
+                if (capacity > 64) {
+                    assertTrue(cache.toString(), cache.hits() >= repeats);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSnapCacheAtCoincidentVertices() {
+        CSRGraph csr = graph.csr();
+        for (double resolution : new double[]{1e-5, 1e-4, 1e-3}) {
+            SnapCache cache = new SnapCache(resolution, 1 << 14);
+            /* Every position twice, so that the second query is answered from a cached cell. */
+            for (int pass = 0; pass < 2; pass += 1) {
+                for (int i = 0; i < csr.size(); i += 1) {
+                    assertEquals(graph.closestIndex(csr.lons[i], csr.lats[i], -1),
+                            cache.closest(graph, csr.lons[i], csr.lats[i]));
+                }
+            }
+            assertTrue(cache.hits() >= csr.size());
+        }
+        for (int i = 0; i < csr.size(); i += 1) {
+            assertEquals(graph.closestIndex(csr.lons[i], csr.lats[i], -1),
+                    graph.closestIndex(csr.lons[i], csr.lats[i]));
+        }
+    }
+
+    @Test
+    public void testConcurrentClosest() throws Exception {
+        Random random = new Random(13);
+        int queries = 2000;
+        double[] lons = new double[queries];
+        double[] lats = new double[queries];
+        int[] expected = new int[queries];
+        for (int q = 0; q < queries; q += 1) {
+            lons[q] = -122.27 + random.nextDouble() * 0.03;
+            lats[q] = 37.85 + random.nextDouble() * 0.03;
+            expected[q] = graph.closestIndex(lons[q], lats[q]);
+        }
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t += 1) {
+                int offset = t * 97;
+                results.add(pool.submit(() -> {
+                    int mismatches = 0;
+                    for (int k = 0; k < 20 * queries; k += 1) {
+                        int q = (offset + k) % queries;
+                        if (graph.closestIndex(lons[q], lats[q]) != expected[q]) {
+                            mismatches += 1;
+                        }
+                    }
+                    return mismatches;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, (int) result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Returns the projected distance from the given point to every vertex, in order. */
+    private static double[] sortedDistances(CSRGraph csr, double lon, double lat) {
+        double[] distances = new double[csr.size()];
+        for (int i = 0; i < csr.size(); i += 1) {
+            distances[i] = distance(csr, lon, lat, i);
+        }
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private static double distance(CSRGraph csr, double lon, double lat, int i) {
+        return GraphDB.euclideanDistance(GraphDB.projectToX(lon, lat),
+                GraphDB.projectToY(lon, lat), GraphDB.projectToX(csr.lons[i], csr.lats[i]),
+                GraphDB.projectToY(csr.lons[i], csr.lats[i]));
+    }
+
+    /**
+     * Writes count random nodes in pairs joined by a way; every fourth node repeats the position
+     * of the node before it.
+     */
+    private static void writePoints(File file, int count, Random random) throws IOException {
+        StringBuilder xml = new StringBuilder("<osm>\n");
+        double lat = 0;
+        double lon = 0;
+        for (int id = 0; id < count; id += 1) {
+            if (id % 4 != 3) {
+                lat = 37.86 + random.nextDouble() * 0.01;
+                lon = -122.26 + random.nextDouble() * 0.01;
+            }
+            xml.append(String.format(Locale.ROOT, "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                    id, lat, lon));
+        }
+        for (int id = 0; id + 1 < count; id += 2) {
+            xml.append(String.format("<way id=\"%d\"><nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way>%n", count + id, id, id + 1));
+        }
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.print(xml.append("</osm>\n"));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the landmarks lie apart in the largest component, that their bounds never exceed
+ * the distances found by Dijkstra's algorithm, and that they let A* settle fewer vertices, on the
+ * street grid of <code>TestContractedGraph</code>.
+ */
+public class TestLandmarks {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("grid", ".osm.xml");
+        osm.deleteOnExit();
+        TestContractedGraph.writeGrid(osm, 12, new Random(4));
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test(timeout = 20000)
+    public void testFirstRouteBuildsLandmarks() throws Exception {
+        /* A graph of its own, so that the first landmark route is what builds the tables. */
+        File osm = File.createTempFile("grid", ".osm.xml");
+        osm.deleteOnExit();
+        TestContractedGraph.writeGrid(osm, 12, new Random(4));
+        GraphDB fresh = new GraphDB(osm.getPath());
+        CSRGraph csr = fresh.csr();
+        Random random = new Random(31);
+        int s = random.nextInt(csr.size());
+        int t = random.nextInt(csr.size());
+        double[] expected = TestContractedGraph.dijkstra(csr, s);
+        List<Long> route = Router.shortestPath(fresh, csr.lons[s], csr.lats[s], csr.lons[t],
+                csr.lats[t], Router.Search.LANDMARKS, Router.Disconnected.SNAP_TO_LARGEST);
+        assertEquals(csr.ids[s], (long) route.get(0));
+        assertEquals(csr.ids[t], (long) route.get(route.size() - 1));
+        double length = 0.0;
+        for (int k = 1; k < route.size(); k += 1) {
+            length += csr.weights[csr.edgeIndex(csr.indexOf(route.get(k - 1)),
+                    csr.indexOf(route.get(k)))];
+        }
+        assertEquals(expected[t], length, 1e-9);
+    }
+
+    @Test
+    public void testLandmarkBounds() {
+        CSRGraph csr = graph.csr();
+        Components components = graph.components();
+        Landmarks landmarks = graph.landmarks();
+        assertEquals(Landmarks.DEFAULT_COUNT, landmarks.size());
+        for (int i = 0; i < landmarks.size(); i += 1) {
+            assertTrue(components.inLargest(landmarks.vertices[i]));
+            for (int j = 0; j < i; j += 1) {
+                assertTrue(landmarks.vertices[i] != landmarks.vertices[j]);
+            }
+        }
+        landmarks.verify(csr);
+
+        Random random = new Random(23);
+        long forward = 0;
+        long guided = 0;
+        for (int trial = 0; trial < 40; trial += 1) {
+            int s = random.nextInt(csr.size());
+            double[] expected = TestContractedGraph.dijkstra(csr, s);
+            for (int t = 0; t < csr.size(); t += 1) {
+                assertTrue(landmarks.lowerBound(t, s) <= expected[t]);
+                assertEquals(landmarks.lowerBound(s, t), landmarks.lowerBound(t, s), 0.0);
+            }
+            int t = random.nextInt(csr.size());
+            Router.shortestPath(graph, csr.lons[s], csr.lats[s], csr.lons[t], csr.lats[t],
+                    Router.Search.FORWARD, Router.Disconnected.REJECT);
+            forward += SearchState.settledByLastSearch();
+            Router.shortestPath(graph, csr.lons[s], csr.lats[s], csr.lons[t], csr.lats[t],
+                    Router.Search.LANDMARKS, Router.Disconnected.REJECT);
+            guided += SearchState.settledByLastSearch();
+        }
+        assertTrue(guided < forward);
+    }
+}
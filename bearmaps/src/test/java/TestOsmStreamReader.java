@@ -0,0 +1,151 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the streaming reader builds the same graph as the SAX-based loaders.
+ */
+public class TestOsmStreamReader {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-su18/bearmaps/berkeley-2018-small.osm.xml";
+
+    @Test
+    public void testMatchesParallelLoader() throws Exception {
+        for (String path : new String[]{OSM_DB_PATH_TINY, OSM_DB_PATH_SMALL}) {
+            CSRGraph expected = ParallelGraphLoader.load(path, 1);
+            CSRGraph actual = OsmStreamReader.load(path);
+            assertSameGraph(expected, actual);
+        }
+    }
+
+    @Test
+    public void testRoutableOnlyMatchesFullLoad() throws Exception {
+        for (String path : new String[]{OSM_DB_PATH_TINY, OSM_DB_PATH_SMALL}) {
+            CSRGraph expected = OsmStreamReader.load(path);
+            CSRGraph actual = OsmStreamReader.loadRoutable(path);
+            assertSameGraph(expected, actual);
+        }
+    }
+
+    @Test
+    public void testParsing() throws Exception {
+        String xml = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<!-- a comment with a <node> in it -->\n"
+                + "<osm version=\"0.6\">\n"
+                + "\t<node id=\"1\" lat=\"37.8686991\" lon=\"-122.2521165\">\n"
+                + "\t\t<tag k=\"name\" v=\"Caf&#233; &amp; Bar &apos;x&apos;\"/>\n"
+                + "\t</node>\n"
+                + "\t<node id='2' lat='-0.000000123' lon='1.5e1'/>\n"
+                + "\t<node id=\"3\" lat=\"1\" lon=\"2\"/>\n"
+                + "\t<way id=\"9\">\n\t\t<nd ref=\"1\"/>\n\t\t<nd ref=\"2\"/>\n"
+                + "\t\t<tag k=\"highway\" v=\"residential\"/>\n\t</way>\n"
+                + "\t<way id=\"10\">\n\t\t<nd ref=\"2\"/>\n\t\t<nd ref=\"3\"/>\n"
+                + "\t\t<tag k=\"highway\" v=\"footway\"/>\n\t</way>\n"
+                + "</osm>\n";
+        GraphBuilder builder = new GraphBuilder();
+        new OsmStreamReader(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+                .read(builder);
+        CSRGraph g = builder.build();
+        assertArrayEquals(new long[]{1, 2}, g.ids);
+        assertEquals(37.8686991, g.lats[0], 0.0);
+        assertEquals(-122.2521165, g.lons[0], 0.0);
+        assertEquals(-0.000000123, g.lats[1], 0.0);
+        assertEquals(15.0, g.lons[1], 0.0);
+        assertEquals("Caf\u00e9 & Bar 'x'", g.tags.get(0, "name"));
+        assertEquals(Arrays.asList(1, 0), Arrays.asList(g.targets[0], g.targets[1]));
+    }
+
+    @Test
+    public void testMalformedInput() throws Exception {
+        String[] tags = {"<tag k=\"name\" v=\"&#xZZ;\"/>", "<tag k=\"name\" v=\"&#99999999;\"/>",
+            "<tag k=\"name\" v=\"&#-1;\"/>", "<tag k=\"name\" v=\"&#;\"/>"};
+        for (String tag : tags) {
+            String xml = "<osm><node id=\"1\" lat=\"0\" lon=\"0\">" + tag + "</node></osm>";
+            try {
+                new OsmStreamReader(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+                        .read(new GraphBuilder());
+                fail(tag);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("Malformed"));
+            }
+        }
+    }
+
+    @Test
+    public void testManyComments() throws Exception {
+        StringBuilder xml = new StringBuilder("<osm>\n");
+        for (int k = 0; k < 200000; k += 1) {
+            xml.append("<!-- ").append(k).append(" -->");
+        }
+        xml.append("\n<node id=\"1\" lat=\"0\" lon=\"0\"/><node id=\"2\" lat=\"0\" lon=\"1\"/>"
+                + "<way id=\"3\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>\n</osm>\n");
+        GraphBuilder builder = new GraphBuilder();
+        new OsmStreamReader(new ByteArrayInputStream(xml.toString()
+                .getBytes(StandardCharsets.UTF_8))).read(builder);
+        assertArrayEquals(new long[]{1, 2}, builder.build().ids);
+    }
+
+    @Test
+    public void testCoordinatesMatchParseDouble() throws Exception {
+        Random random = new Random(61);
+        int n = 2000;
+        String[] lats = new String[n];
+        String[] lons = new String[n];
+        StringBuilder xml = new StringBuilder("<osm>\n");
+        for (int i = 0; i < n; i += 1) {
+            lats[i] = String.format(Locale.ROOT, "%.7f", random.nextDouble() * 180 - 90);
+            lons[i] = String.format(Locale.ROOT, "%." + random.nextInt(10) + "f",
+                    random.nextDouble() * 360 - 180);
+            xml.append(String.format("<node id=\"%d\" lat=\"%s\" lon=\"%s\"/>%n", i, lats[i],
+                    lons[i]));
+        }
+        xml.append("<way id=\"1\">");
+        for (int i = 0; i < n; i += 1) {
+            xml.append(String.format("<nd ref=\"%d\"/>", i));
+        }
+        xml.append("<tag k=\"highway\" v=\"primary\"/></way>\n</osm>\n");
+
+        GraphBuilder builder = new GraphBuilder();
+        new OsmStreamReader(new ByteArrayInputStream(xml.toString()
+                .getBytes(StandardCharsets.UTF_8))).read(builder);
+        CSRGraph g = builder.build();
+        for (int i = 0; i < n; i += 1) {
+            assertEquals(Double.parseDouble(lats[i]), g.lats[i], 0.0);
+            assertEquals(Double.parseDouble(lons[i]), g.lons[i], 0.0);
+        }
+    }
+
+    private static void assertSameGraph(CSRGraph expected, CSRGraph actual) {
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.lats, actual.lats, 0.0);
+        assertArrayEquals(expected.lons, actual.lons, 0.0);
+        assertArrayEquals(expected.offsets, actual.offsets);
+        assertArrayEquals(expected.targets, actual.targets);
+        assertArrayEquals(expected.weights, actual.weights, 0.0);
+        assertArrayEquals(expected.ways, actual.ways);
+        assertArrayEquals(expected.wayTable.names, actual.wayTable.names);
+        assertArrayEquals(expected.wayTable.highways, actual.wayTable.highways);
+        assertArrayEquals(expected.wayTable.maxSpeeds, actual.wayTable.maxSpeeds);
+        assertArrayEquals(expected.tags.keys, actual.tags.keys);
+        assertArrayEquals(expected.tags.values, actual.tags.values);
+        assertArrayEquals(expected.tags.vertices, actual.tags.vertices);
+        assertArrayEquals(expected.tags.offsets, actual.tags.offsets);
+        assertArrayEquals(expected.tags.tagKeys, actual.tags.tagKeys);
+        assertArrayEquals(expected.tags.tagValues, actual.tags.tagValues);
+        assertArrayEquals(expected.osmWays.ids(), actual.osmWays.ids());
+        assertArrayEquals(expected.osmWays.offsets(), actual.osmWays.offsets());
+        assertArrayEquals(expected.osmWays.refs(), actual.osmWays.refs());
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that parallel ingestion builds the same graph as the SAX handler.
+ */
+public class TestParallelGraphLoader {
+    private static final String OSM_DB_PATH_TINY = "../library-su18/bearmaps/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-su18/bearmaps/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTinyGraph() {
+        assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), GraphDB.parseParallel(OSM_DB_PATH_TINY, 3));
+    }
+
+    @Test
+    public void testSmallGraph() {
+        GraphDB expected = new GraphDB(OSM_DB_PATH_SMALL);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            assertSameGraph(expected, GraphDB.parseParallel(OSM_DB_PATH_SMALL, threads));
+        }
+    }
+
+    @Test
+    public void testChunkBoundaries() {
+        String xml = "<?xml version='1.0'?>\n<osm>\n"
+                + "\t<node id=\"1\" lat=\"0\" lon=\"0\"/>\n"
+                + "\t<node id=\"2\" lat=\"0\" lon=\"0\">\n\t\t<tag k=\"a\" v=\"b\"/>\n\t</node>\n"
+                + "\t<way id=\"3\">\n\t\t<nd ref=\"1\"/>\n\t\t<nd ref=\"2\"/>\n\t</way>\n"
+                + "</osm>\n";
+        byte[] data = xml.getBytes(StandardCharsets.UTF_8);
+        int[] bounds = ParallelGraphLoader.chunkBoundaries(data, 16);
+        assertEquals(xml.indexOf("<node"), bounds[0]);
+        assertEquals(xml.indexOf("</osm>"), bounds[bounds.length - 1]);
+        for (int c = 1; c + 1 < bounds.length; c += 1) {
+            assertTrue(bounds[c] > bounds[c - 1]);
+            String rest = xml.substring(bounds[c]);
+            assertTrue(rest.startsWith("<node ") || rest.startsWith("<way "));
+        }
+    }
+
+    @Test
+    public void testSelfLoops() throws IOException {
+        /* Way 5 repeats node 1, and way 6 only loops on node 4, which is then on no edge. */
+        String xml = "<?xml version='1.0'?>\n<osm>\n"
+                + "\t<node id=\"1\" lat=\"0\" lon=\"0\"/>\n"
+                + "\t<node id=\"2\" lat=\"0.001\" lon=\"0\"/>\n"
+                + "\t<node id=\"3\" lat=\"0.001\" lon=\"0.001\"/>\n"
+                + "\t<node id=\"4\" lat=\"0\" lon=\"0.001\"/>\n"
+                + "\t<way id=\"5\">\n\t\t<nd ref=\"1\"/>\n\t\t<nd ref=\"1\"/>\n"
+                + "\t\t<nd ref=\"2\"/>\n\t\t<nd ref=\"3\"/>\n"
+                + "\t\t<tag k=\"highway\" v=\"residential\"/>\n\t</way>\n"
+                + "\t<way id=\"6\">\n\t\t<nd ref=\"4\"/>\n\t\t<nd ref=\"4\"/>\n"
+                + "\t\t<tag k=\"highway\" v=\"residential\"/>\n\t</way>\n"
+                + "</osm>\n";
+        File osm = folder.newFile("loops.osm.xml");
+        Files.write(osm.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        String path = osm.getPath();
+        GraphDB expected = new GraphDB(path);
+        assertEquals(3, expected.csr().size());
+        assertEquals(4, expected.csr().targets.length);
+        assertSameGraph(expected, GraphDB.parseParallel(path, 2));
+        assertSameGraph(expected, GraphDB.parseStreaming(path));
+        assertSameGraph(expected, GraphDB.parseRoutableOnly(path));
+    }
+
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(adjacency(expected), adjacency(actual));
+        for (long v : expected.vertices()) {
+            assertEquals(expected.lon(v), actual.lon(v), 0.0);
+            assertEquals(expected.lat(v), actual.lat(v), 0.0);
+        }
+    }
+
+    private static Map<Long, Set<Long>> adjacency(GraphDB g) {
+        Map<Long, Set<Long>> result = new HashMap<>();
+        for (long v : g.vertices()) {
+            Set<Long> neighbors = new HashSet<>();
+            g.adjacent(v).forEach(neighbors::add);
+            result.put(v, neighbors);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,292 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks nearest and range queries on the packed R-tree over road segments against a scan over
+ * every edge, and routes between points snapped to segments against Dijkstra's algorithm, on a
+ * generated street grid with diagonal shortcuts and a detached square.
+ */
+public class TestSegmentIndex {
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File osm = File.createTempFile("segments", ".osm.xml");
+        osm.deleteOnExit();
+        writeGrid(osm, 30, new Random(6));
+        graph = new GraphDB(osm.getPath());
+        initialized = true;
+    }
+
+    @Test
+    public void testNearestMatchesLinearScan() {
+        CSRGraph csr = graph.csr();
+        assertEquals(csr.targets.length / 2, graph.segments().size());
+        Random random = new Random(17);
+        for (int trial = 0; trial < 500; trial += 1) {
+            double lon = -122.265 + random.nextDouble() * 0.04;
+            double lat = 37.855 + random.nextDouble() * 0.04;
+            int component = trial % 5 == 0 ? graph.components().largest : -1;
+            double x = GraphDB.projectToX(lon, lat);
+            double y = GraphDB.projectToY(lon, lat);
+            double best = Double.POSITIVE_INFINITY;
+            for (int v = 0; v < csr.size(); v += 1) {
+                for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                    if (component < 0 || graph.components().labels[v] == component) {
+                        best = Math.min(best, distance(csr, x, y, v, csr.targets[e]));
+                    }
+                }
+            }
+            SegmentIndex.Hit hit = graph.nearestEdge(lon, lat, component);
+            assertNotNull(hit);
+            assertEquals(best, hit.distance, 1e-18);
+            assertEquals(hit.to, csr.targets[hit.entry]);
+            assertTrue(hit.fraction >= 0 && hit.fraction <= 1);
+            if (component >= 0) {
+                assertEquals(component, graph.components().labels[hit.from]);
+            }
+            double px = GraphDB.projectToX(hit.lon, hit.lat);
+            double py = GraphDB.projectToY(hit.lon, hit.lat);
+            assertEquals(hit.distance, (x - px) * (x - px) + (y - py) * (y - py), 1e-12);
+        }
+    }
+
+    @Test
+    public void testRouteMatchesDijkstra() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(23);
+        for (int trial = 0; trial < 200; trial += 1) {
+            double stlon = -122.265 + random.nextDouble() * 0.04;
+            double stlat = 37.855 + random.nextDouble() * 0.04;
+            /* Every tenth route ends a few yards on, often along the same segment. */
+            boolean near = trial % 10 == 0;
+            double destlon = near ? stlon + 0.0001 : -122.265 + random.nextDouble() * 0.04;
+            double destlat = near ? stlat : 37.855 + random.nextDouble() * 0.04;
+            Router.EdgeRoute route = Router.shortestPathBetweenEdges(graph, stlon, stlat,
+                    destlon, destlat, Router.Disconnected.REJECT);
+            SegmentIndex.Hit s = route.start;
+            SegmentIndex.Hit t = route.end;
+
+            double startLength = csr.weights[s.entry];
+            double endLength = csr.weights[t.entry];
+            double[] fromStart = dijkstra(csr, s.from, s.to, s.fraction * startLength,
+                    (1 - s.fraction) * startLength);
+            double expected = Math.min(fromStart[t.from] + t.fraction * endLength,
+                    fromStart[t.to] + (1 - t.fraction) * endLength);
+            if (s.entry == t.entry) {
+                expected = Math.min(expected, Math.abs(s.fraction - t.fraction) * startLength);
+            }
+            assertEquals(expected, route.length, 1e-9);
+            if (Double.isInfinite(expected)) {
+                assertTrue(route.vertices.isEmpty());
+                continue;
+            }
+
+            /* The vertices must add up to the reported length with the partial segments. */
+            List<Long> path = route.vertices;
+            if (path.isEmpty()) {
+                assertEquals(s.entry, t.entry);
+                continue;
+            }
+            int first = csr.indexOf(path.get(0));
+            int last = csr.indexOf(path.get(path.size() - 1));
+            double length = first == s.from ? s.fraction * startLength
+                    : (1 - s.fraction) * startLength;
+            assertTrue(first == s.from || first == s.to);
+            for (int k = 1; k < path.size(); k += 1) {
+                int e = csr.edgeIndex(csr.indexOf(path.get(k - 1)), csr.indexOf(path.get(k)));
+                assertTrue(e >= 0);
+                length += csr.weights[e];
+            }
+            assertTrue(last == t.from || last == t.to);
+            length += last == t.from ? t.fraction * endLength : (1 - t.fraction) * endLength;
+            assertEquals(route.length, length, 1e-9);
+        }
+    }
+
+    @Test
+    public void testSegmentsInMatchesLinearScan() {
+        CSRGraph csr = graph.csr();
+        Random random = new Random(41);
+        SpatialIndex.Matches found = new SpatialIndex.Matches(1);
+        for (int trial = 0; trial < 300; trial += 1) {
+            double ullon = -122.265 + random.nextDouble() * 0.04;
+            double ullat = 37.855 + random.nextDouble() * 0.04;
+            double lrlon = ullon + random.nextDouble() * (trial % 4 == 0 ? 0.0005 : 0.01);
+            double lrlat = ullat - random.nextDouble() * (trial % 4 == 0 ? 0.0005 : 0.01);
+            List<Integer> expected = new ArrayList<>();
+            for (int v = 0; v < csr.size(); v += 1) {
+                for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                    int w = csr.targets[e];
+                    if (v < w && touches(csr.lons[v], csr.lats[v], csr.lons[w], csr.lats[w],
+                            ullon, lrlat, lrlon, ullat)) {
+                        expected.add(e);
+                    }
+                }
+            }
+            int count = graph.segmentsIn(ullon, ullat, lrlon, lrlat, found);
+            int[] sorted = Arrays.copyOf(found.items, count);
+            Arrays.sort(sorted);
+            assertEquals(expected.size(), count);
+            for (int k = 0; k < count; k += 1) {
+                assertEquals((int) expected.get(k), sorted[k]);
+            }
+        }
+    }
+
+    @Test
+    public void testGraphWithoutEdges() throws IOException {
+        File osm = File.createTempFile("edgeless", ".osm.xml");
+        osm.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(osm, "UTF-8")) {
+            out.print("<osm>\n<node id=\"1\" lat=\"37.86\" lon=\"-122.26\"/>\n</osm>\n");
+        }
+        GraphDB empty = new GraphDB(osm.getPath());
+        assertEquals(0, empty.segments().size());
+        assertNull(empty.nearestEdge(-122.26, 37.86));
+        assertEquals(0, empty.segmentsIn(-122.27, 37.87, -122.25, 37.85,
+                new SpatialIndex.Matches(1)));
+    }
+
+    /**
+     * Returns whether the segment from a to b touches the box: either an endpoint is inside it,
+     * or the segment crosses one of its sides.
+     */
+    private static boolean touches(double ax, double ay, double bx, double by, double minX,
+                                   double minY, double maxX, double maxY) {
+        if (ax >= minX && ax <= maxX && ay >= minY && ay <= maxY
+                || bx >= minX && bx <= maxX && by >= minY && by <= maxY) {
+            return true;
+        }
+        double[][] sides = {{minX, minY, maxX, minY}, {maxX, minY, maxX, maxY},
+            {maxX, maxY, minX, maxY}, {minX, maxY, minX, minY}};
+        for (double[] side : sides) {
+            double d1 = turn(side[0], side[1], side[2], side[3], ax, ay);
+            double d2 = turn(side[0], side[1], side[2], side[3], bx, by);
+            double d3 = turn(ax, ay, bx, by, side[0], side[1]);
+            double d4 = turn(ax, ay, bx, by, side[2], side[3]);
+            if (d1 * d2 <= 0 && d3 * d4 <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double turn(double ax, double ay, double bx, double by, double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    /** Returns the squared projected distance from (x, y) to the segment from v to w. */
+    private static double distance(CSRGraph csr, double x, double y, int v, int w) {
+        double ax = GraphDB.projectToX(csr.lons[v], csr.lats[v]);
+        double ay = GraphDB.projectToY(csr.lons[v], csr.lats[v]);
+        double bx = GraphDB.projectToX(csr.lons[w], csr.lats[w]) - ax;
+        double by = GraphDB.projectToY(csr.lons[w], csr.lats[w]) - ay;
+        double length = bx * bx + by * by;
+        double t = length == 0 ? 0 : ((x - ax) * bx + (y - ay) * by) / length;
+        t = Math.max(0, Math.min(1, t));
+        double dx = x - (ax + t * bx);
+        double dy = y - (ay + t * by);
+        return dx * dx + dy * dy;
+    }
+
+    /** Returns the distance to every vertex from two sources at the given initial distances. */
+    private static double[] dijkstra(CSRGraph csr, int a, int b, double da, double db) {
+        double[] distance = new double[csr.size()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        PriorityQueue<double[]> queue = new PriorityQueue<>((p, q) -> Double.compare(p[0], q[0]));
+        distance[a] = da;
+        distance[b] = Math.min(distance[b], db);
+        queue.add(new double[]{distance[a], a});
+        queue.add(new double[]{distance[b], b});
+        while (!queue.isEmpty()) {
+            double[] top = queue.poll();
+            int v = (int) top[1];
+            if (top[0] > distance[v]) {
+                continue;
+            }
+            for (int e = csr.offsets[v]; e < csr.offsets[v + 1]; e += 1) {
+                int w = csr.targets[e];
+                if (distance[v] + csr.weights[e] < distance[w]) {
+                    distance[w] = distance[v] + csr.weights[e];
+                    queue.add(new double[]{distance[w], w});
+                }
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Writes an OSM file with a size-by-size grid of junctions about a block apart, joined by
+     * blocks of one to three segments; about a tenth of the blocks are missing, some are
+     * replaced by diagonals, and a small square stands apart.
+     */
+    private static void writeGrid(File file, int size, Random random) throws IOException {
+        StringBuilder xml = new StringBuilder("<osm>\n");
+        StringBuilder ways = new StringBuilder();
+        long next = size * size;
+        for (int r = 0; r < size; r += 1) {
+            for (int c = 0; c < size; c += 1) {
+                node(xml, r * size + c, 37.86 + r * 0.001 + random.nextDouble() * 0.0002,
+                        -122.26 + c * 0.001 + random.nextDouble() * 0.0002);
+            }
+        }
+        for (int r = 0; r < size; r += 1) {
+            for (int c = 0; c < size; c += 1) {
+                long v = r * size + c;
+                long[] neighbors = {c + 1 < size ? v + 1 : -1, r + 1 < size ? v + size : -1,
+                    c + 1 < size && r + 1 < size && random.nextInt(6) == 0 ? v + size + 1 : -1};
+                for (long w : neighbors) {
+                    if (w < 0 || random.nextInt(10) == 0) {
+                        continue;
+                    }
+                    StringBuilder refs = new StringBuilder(String.format("<nd ref=\"%d\"/>", v));
+                    for (int k = random.nextInt(3); k > 0; k -= 1) {
+                        node(xml, next, 37.86 + (v / size + random.nextDouble()) * 0.001,
+                                -122.26 + (v % size + random.nextDouble()) * 0.001);
+                        refs.append(String.format("<nd ref=\"%d\"/>", next));
+                        next += 1;
+                    }
+                    refs.append(String.format("<nd ref=\"%d\"/>", w));
+                    ways.append(String.format("<way id=\"%d\">%s<tag k=\"highway\" "
+                            + "v=\"residential\"/></way>%n", next, refs));
+                    next += 1;
+                }
+            }
+        }
+        long square = next;
+        for (int k = 0; k < 4; k += 1) {
+            node(xml, square + k, 37.852 + (k / 2) * 0.0005, -122.268 + (k % 2) * 0.0005);
+        }
+        ways.append(String.format("<way id=\"%d\"><nd ref=\"%d\"/><nd ref=\"%d\"/><nd ref=\"%d\"/>"
+                + "<nd ref=\"%d\"/><nd ref=\"%d\"/><tag k=\"highway\" v=\"residential\"/></way>%n",
+                square + 4, square, square + 1, square + 3, square + 2, square));
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.print(xml.append(ways).append("</osm>\n"));
+        }
+    }
+
+    private static void node(StringBuilder xml, long id, double lat, double lon) {
+        xml.append(String.format(Locale.ROOT, "<node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                id, lat, lon));
+    }
+}
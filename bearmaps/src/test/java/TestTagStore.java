@@ -0,0 +1,106 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the columnar tag store against what the node tags in the XML say.
+ */
+public class TestTagStore {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-su18/bearmaps/berkeley-2018-small.osm.xml";
+
+    @Test
+    public void testBuild() {
+        TagStore.Builder builder = new TagStore.Builder();
+        builder.add(30, "name", "Oxford St");
+        builder.add(10, "name", "Hearst Ave");
+        builder.add(10, "highway", "traffic_signals");
+        builder.add(20, "amenity", "cafe");
+        builder.add(10, "name", "Hearst Avenue");
+        TagStore.Builder other = new TagStore.Builder();
+        other.add(40, "highway", "traffic_signals");
+        builder.addAll(other);
+
+        TagStore tags = builder.build(new long[]{10, 30, 40});
+        /* Node 20 is not in the graph, so neither its tag nor its key survive. */
+        assertArrayEquals(new String[]{"highway", "name"}, tags.keys);
+        assertEquals(3, tags.values.length);
+        assertArrayEquals(new int[]{0, 1, 2}, tags.vertices);
+        assertEquals("Hearst Avenue", tags.get(0, "name"));
+        assertEquals("traffic_signals", tags.get(0, "highway"));
+        assertEquals("Oxford St", tags.get(1, "name"));
+        assertNull(tags.get(1, "highway"));
+        assertEquals("traffic_signals", tags.get(2, tags.keyIndex("highway")));
+        assertNull(tags.get(2, "amenity"));
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("highway", "traffic_signals");
+        expected.put("name", "Hearst Avenue");
+        assertEquals(expected, tags.tags(0));
+        assertTrue(tags.tags(3).isEmpty());
+    }
+
+    @Test
+    public void testWith() {
+        TagStore.Builder builder = new TagStore.Builder();
+        builder.add(0, "name", "Hearst Ave");
+        builder.add(2, "highway", "traffic_signals");
+        builder.add(2, "name", "Oxford St");
+        TagStore tags = builder.build(new long[]{0, 1, 2, 3});
+
+        Map<Integer, Map<String, String>> replaced = new HashMap<>();
+        replaced.put(0, new HashMap<>());
+        Map<String, String> cafe = new HashMap<>();
+        cafe.put("name", "Cafe");
+        cafe.put("amenity", "cafe");
+        replaced.put(3, cafe);
+        TagStore updated = tags.with(replaced);
+        /* The store it came from is unchanged. */
+        assertEquals("Hearst Ave", tags.get(0, "name"));
+        assertTrue(tags.tags(3).isEmpty());
+
+        assertEquals(2, updated.taggedCount());
+        assertNull(updated.get(0, "name"));
+        assertTrue(updated.tags(0).isEmpty());
+        assertEquals("Oxford St", updated.get(2, updated.keyIndex("name")));
+        assertEquals("cafe", updated.get(3, "amenity"));
+        assertArrayEquals(new String[]{"amenity", "name"},
+                updated.tags(3).keySet().toArray(new String[0]));
+
+        TagStore compacted = updated.compact();
+        assertArrayEquals(new int[]{2, 3}, compacted.vertices);
+        for (int i = 0; i < 4; i += 1) {
+            assertEquals(updated.tags(i), compacted.tags(i));
+        }
+        TagStore remapped = updated.remap(new int[]{-1, -1, 1, 0}, 2);
+        assertEquals(cafe, remapped.tags(0));
+        assertEquals("traffic_signals", remapped.get(1, "highway"));
+    }
+
+    @Test
+    public void testLoadersAgree() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_SMALL);
+        CSRGraph expected = OsmStreamReader.load(OSM_DB_PATH_SMALL);
+        TagStore tags = g.csr().tags;
+        assertTrue(tags.taggedCount() > 0);
+        assertArrayEquals(expected.tags.keys, tags.keys);
+        assertEquals(expected.tags.values.length, tags.values.length);
+        assertArrayEquals(expected.tags.vertices, tags.vertices);
+        for (int i : tags.vertices) {
+            long v = g.csr().ids[i];
+            assertEquals(expected.tags.tags(i), g.tags(v));
+            for (Map.Entry<String, String> tag : g.tags(v).entrySet()) {
+                assertEquals(tag.getValue(), g.tag(v, tag.getKey()));
+            }
+        }
+        assertTrue(g.tags(12345L).isEmpty());
+        assertNull(g.tag(12345L, "name"));
+    }
+}